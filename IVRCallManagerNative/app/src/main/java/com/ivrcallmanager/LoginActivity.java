@@ -14,13 +14,9 @@ import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 
+import com.ivrcallmanager.network.ApiClient;
 import com.ivrcallmanager.utils.PreferenceManager;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -137,51 +133,17 @@ public class LoginActivity extends AppCompatActivity {
     }
     
     private String makeLoginRequest(String email, String password) throws Exception {
-        URL url = new URL("https://ivr.wxon.in/api/auth/login");
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        // Create JSON payload
+        JSONObject json = new JSONObject();
+        json.put("email", email);
+        json.put("password", password);
         
-        try {
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setRequestProperty("Accept", "application/json");
-            conn.setDoOutput(true);
-            conn.setConnectTimeout(30000);
-            conn.setReadTimeout(30000);
-            
-            // Create JSON payload
-            JSONObject json = new JSONObject();
-            json.put("email", email);
-            json.put("password", password);
-            
-            // Send request
-            OutputStream os = conn.getOutputStream();
-            os.write(json.toString().getBytes("UTF-8"));
-            os.close();
-            
-            // Read response
-            int responseCode = conn.getResponseCode();
-            Log.d(TAG, "Response Code: " + responseCode);
-            
-            BufferedReader reader;
-            if (responseCode >= 200 && responseCode < 300) {
-                reader = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-            } else {
-                reader = new BufferedReader(new InputStreamReader(conn.getErrorStream()));
-            }
-            
-            StringBuilder response = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                response.append(line);
-            }
-            reader.close();
-            
-            Log.d(TAG, "Response: " + response.toString());
-            return response.toString();
-            
-        } finally {
-            conn.disconnect();
-        }
+        ApiClient.ApiResponse response = ApiClient.getInstance().post(ApiClient.Endpoint.AUTH,
+            "/auth/login", null, json);
+        
+        Log.d(TAG, "Response Code: " + response.code);
+        Log.d(TAG, "Response: " + response.body);
+        return response.body;
     }
     
     private void handleLoginResponse(String response) {
@@ -233,18 +195,13 @@ public class LoginActivity extends AppCompatActivity {
         }
     }
     
-    private boolean registerDeviceAfterLogin(String token, String deviceId, String deviceName) {
+    private boolean registerDeviceAfterLogin(String loginResult, String deviceId, String deviceName) {
         try {
-            URL url = new URL("https://ivr.wxon.in/api/devices/register");
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setRequestProperty("Accept", "application/json");
-            conn.setRequestProperty("Authorization", "Bearer " + token);
-            conn.setDoOutput(true);
-            conn.setConnectTimeout(15000);
-            conn.setReadTimeout(15000);
+            JSONObject data = new JSONObject(loginResult).optJSONObject("data");
+            String token = data != null ? data.optString("token", null) : null;
+            if (token == null) {
+                return false;
+            }
             
             // Create device registration JSON
             JSONObject json = new JSONObject();
@@ -254,15 +211,11 @@ public class LoginActivity extends AppCompatActivity {
             json.put("deviceModel", Build.MODEL);
             json.put("appVersion", "2.0.0");
             
-            // Send request
-            OutputStream os = conn.getOutputStream();
-            os.write(json.toString().getBytes("UTF-8"));
-            os.close();
-            
-            int responseCode = conn.getResponseCode();
-            Log.d(TAG, "Device registration response: " + responseCode);
+            ApiClient.ApiResponse response = ApiClient.getInstance().post(ApiClient.Endpoint.REGISTER,
+                "/devices/register", token, json);
+            Log.d(TAG, "Device registration response: " + response.code);
             
-            if (responseCode >= 200 && responseCode < 300) {
+            if (response.isSuccessful()) {
                 // Save device info
                 PreferenceManager.saveDeviceData(this, deviceId, deviceName);
                 return true;
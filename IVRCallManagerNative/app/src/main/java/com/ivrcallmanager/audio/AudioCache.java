@@ -0,0 +1,683 @@
+package com.ivrcallmanager.audio;
+
+import android.util.Log;
+
+import com.ivrcallmanager.network.ApiClient;
+import com.ivrcallmanager.utils.PreferenceManager;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import okhttp3.Response;
+
+/**
+ * Size-capped on-disk cache of campaign audio files.
+ *
+ * Downloads go to a .part file, are hashed while they stream, and are only
+ * renamed into place once the SHA-256 matches what the backend announced, so
+ * a cache hit is always a complete file. An interrupted download keeps its
+ * part and a small metadata sidecar, and the next attempt resumes it with a
+ * Range request guarded by If-Range, after an exponential backoff.
+ *
+ * Entries are revalidated with their ETag once they are older than
+ * {@link #REVALIDATE_AFTER_MS}, which picks up audio replaced on the server.
+ * The least recently used files are evicted when the cache grows past its cap.
+ *
+ * The index is loaded once when the cache is created and rewritten atomically
+ * whenever it changes.
+ */
+public class AudioCache {
+
+    private static final String TAG = "AudioCache";
+
+    private static final String DIR_NAME = "audio_cache";
+    private static final String INDEX_FILE = "index.json";
+    private static final String LEGACY_DIR_NAME = "audio";
+
+    private static final long DEFAULT_MAX_BYTES = 50L * 1024 * 1024;
+    private static final long REVALIDATE_AFTER_MS = 10 * 60 * 1000;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    // Partial downloads and their metadata sidecar, kept across restarts
+    private static final String PART_SUFFIX = ".part";
+    private static final String META_SUFFIX = ".part.json";
+    private static final long PART_MAX_AGE_MS = 24 * 60 * 60 * 1000;
+
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long INITIAL_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 16000;
+
+    /** Called with each chunk read from the network, e.g. to rate-limit a download. */
+    public interface Throttle {
+        void onBytes(int bytes) throws InterruptedException;
+    }
+
+    /**
+     * A download in progress, readable while it is still arriving: the first
+     * {@link #getAvailable()} bytes of {@link #getFile()} are final. The
+     * object stays the same across resumed attempts; if the part has to be
+     * thrown away the download ends as failed and a new one takes its place.
+     */
+    public static class Download {
+        private final File file;
+        private long available;
+        private long total;
+        private boolean complete = false;
+        private boolean failed = false;
+
+        Download(File file, long available, long total) {
+            this.file = file;
+            this.available = available;
+            this.total = total;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public synchronized long getAvailable() {
+            return available;
+        }
+
+        /** Final size in bytes, or -1 while unknown. */
+        public synchronized long getTotal() {
+            return total;
+        }
+
+        public synchronized boolean isComplete() {
+            return complete;
+        }
+
+        public synchronized boolean isFailed() {
+            return failed;
+        }
+
+        /**
+         * Wait until more than {@code position} bytes are available, the
+         * download ends, or the timeout passes. Returns the bytes available.
+         */
+        public synchronized long awaitAvailable(long position, long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            long remaining = timeoutMs;
+            while (available <= position && !complete && !failed && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return available;
+        }
+
+        synchronized void advance(long available, long total) {
+            this.available = available;
+            this.total = total;
+            notifyAll();
+        }
+
+        synchronized void end(boolean complete) {
+            if (complete) {
+                this.complete = true;
+                this.total = available;
+            } else {
+                this.failed = true;
+            }
+            notifyAll();
+        }
+    }
+
+    private static class Entry {
+        final int audioFileId;
+        final String fileName;
+        String etag;
+        String sha256;
+        long size;
+        long validatedAt;
+
+        Entry(int audioFileId, String fileName) {
+            this.audioFileId = audioFileId;
+            this.fileName = fileName;
+        }
+    }
+
+    private final File dir;
+    private final File indexFile;
+    private final ApiClient apiClient;
+    private final PreferenceManager prefManager;
+    private final long maxBytes;
+
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Integer, Object> fetchLocks = new HashMap<>();
+    private final Map<Integer, Download> downloads = new HashMap<>();
+    private final Random random = new Random();
+    private long totalBytes = 0;
+
+    private long bytesDownloaded = 0;
+    private long bytesResumed = 0;
+    private long resumes = 0;
+    private long retries = 0;
+
+    public AudioCache(File filesDir, ApiClient apiClient, PreferenceManager prefManager) {
+        this(filesDir, apiClient, prefManager, DEFAULT_MAX_BYTES);
+    }
+
+    public AudioCache(File filesDir, ApiClient apiClient, PreferenceManager prefManager, long maxBytes) {
+        this.dir = new File(filesDir, DIR_NAME);
+        this.indexFile = new File(dir, INDEX_FILE);
+        this.apiClient = apiClient;
+        this.prefManager = prefManager;
+        this.maxBytes = maxBytes;
+
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+
+        removeLegacyFiles(new File(filesDir, LEGACY_DIR_NAME));
+        loadIndex();
+    }
+
+    /** Cached file for this audio, without touching the network, or null. */
+    public synchronized File get(int audioFileId) {
+        Entry entry = entries.get(audioFileId);
+        if (entry == null) return null;
+
+        File file = new File(dir, entry.fileName);
+        if (file.length() != entry.size) {
+            Log.w(TAG, "Cached audio " + audioFileId + " is damaged, dropping it");
+            remove(entry);
+            saveIndex();
+            return null;
+        }
+        return file;
+    }
+
+    /** Whether the audio is cached and was validated against the server recently. */
+    public synchronized boolean isFresh(int audioFileId) {
+        Entry entry = entries.get(audioFileId);
+        return entry != null && System.currentTimeMillis() - entry.validatedAt < REVALIDATE_AFTER_MS
+            && new File(dir, entry.fileName).length() == entry.size;
+    }
+
+    /** SHA-256 of the cached file, identifying its version, or null if not cached. */
+    public synchronized String getSha256(int audioFileId) {
+        Entry entry = entries.get(audioFileId);
+        return entry != null ? entry.sha256 : null;
+    }
+
+    public File fetch(int audioFileId) {
+        return fetch(audioFileId, null);
+    }
+
+    /**
+     * Return a verified local copy of the audio, downloading or revalidating
+     * it first when needed. Blocks; call from a background thread. Returns a
+     * stale copy if the server cannot be reached, or null if there is none.
+     */
+    public File fetch(int audioFileId, Throttle throttle) {
+        synchronized (lockFor(audioFileId)) {
+            File cached = get(audioFileId);
+            Entry entry;
+            synchronized (this) {
+                entry = entries.get(audioFileId);
+            }
+
+            if (cached != null && entry != null && System.currentTimeMillis() - entry.validatedAt < REVALIDATE_AFTER_MS) {
+                return cached;
+            }
+
+            try {
+                File fetched = downloadWithRetry(audioFileId, cached != null && entry != null ? entry.etag : null, throttle);
+                return fetched != null ? fetched : cached;
+            } catch (Exception e) {
+                Log.e(TAG, "Error fetching audio " + audioFileId + (cached != null ? ", using cached copy" : ""), e);
+                return cached;
+            }
+        }
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    private synchronized Object lockFor(int audioFileId) {
+        Object lock = fetchLocks.get(audioFileId);
+        if (lock == null) {
+            lock = new Object();
+            fetchLocks.put(audioFileId, lock);
+        }
+        return lock;
+    }
+
+    // Retry transient failures, resuming from whatever part is already on disk
+    private File downloadWithRetry(int audioFileId, String etag, Throttle throttle) throws Exception {
+        long backoffMs = INITIAL_BACKOFF_MS;
+        File file = null;
+
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    file = download(audioFileId, etag, throttle);
+                    return file;
+                } catch (IOException e) {
+                    if (attempt >= MAX_ATTEMPTS) throw e;
+
+                    long delay = backoffMs + random.nextInt((int) (backoffMs / 2) + 1);
+                    Log.w(TAG, "Download of audio " + audioFileId + " failed (attempt " + attempt + "), retrying in " + delay + "ms: " + e.getMessage());
+                    synchronized (this) {
+                        retries++;
+                    }
+                    Thread.sleep(delay);
+                    backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+                }
+            }
+        } finally {
+            if (file == null) {
+                // Readers waiting on the part must not wait for bytes that will not come
+                endDownload(audioFileId, false);
+            }
+        }
+    }
+
+    private File download(int audioFileId, String etag, Throttle throttle) throws Exception {
+        String token = prefManager.getAuthToken();
+        if (token == null || token.isEmpty()) {
+            Log.e(TAG, "No auth token for audio download");
+            return null;
+        }
+
+        File part = new File(dir, audioFileId + PART_SUFFIX);
+        File meta = new File(dir, audioFileId + META_SUFFIX);
+        JSONObject partMeta = readMeta(audioFileId, part, meta);
+        long resumeFrom = partMeta != null ? part.length() : 0;
+
+        Map<String, String> headers = new HashMap<>();
+        if (resumeFrom > 0) {
+            headers.put("Range", "bytes=" + resumeFrom + "-");
+            // Only resume if the server still has the version the part came from
+            headers.put("If-Range", partMeta.getString("etag"));
+        } else if (etag != null) {
+            headers.put("If-None-Match", etag);
+        }
+
+        try (Response response = apiClient.stream(ApiClient.Endpoint.DOWNLOAD,
+                "/audio/" + audioFileId + "/download", token, headers)) {
+
+            int code = response.code();
+
+            if (code == 304) {
+                synchronized (this) {
+                    Entry entry = entries.get(audioFileId);
+                    if (entry != null) {
+                        entry.validatedAt = System.currentTimeMillis();
+                        saveIndex();
+                    }
+                }
+                Log.d(TAG, "Audio " + audioFileId + " not modified");
+                return get(audioFileId);
+            }
+
+            if (code == 416) {
+                // The part no longer lines up with the file on the server
+                discardPart(audioFileId, part, meta);
+                throw new IOException("Range not satisfiable, restarting download");
+            }
+
+            if (code >= 500) {
+                throw new IOException("Server error " + code);
+            }
+
+            if ((code != 200 && code != 206) || response.body() == null) {
+                Log.e(TAG, "Failed to download audio " + audioFileId + ". Response code: " + code);
+                return null;
+            }
+
+            long offset = 0;
+            long total;
+            String expectedSha;
+
+            if (code == 206) {
+                long[] range = parseContentRange(response.header("Content-Range"));
+                if (range == null || range[0] != resumeFrom) {
+                    discardPart(audioFileId, part, meta);
+                    throw new IOException("Unexpected Content-Range " + response.header("Content-Range"));
+                }
+                offset = resumeFrom;
+                total = range[1];
+                expectedSha = partMeta.optString("sha256", null);
+
+                synchronized (this) {
+                    resumes++;
+                    bytesResumed += resumeFrom;
+                }
+                Log.d(TAG, "Resuming audio " + audioFileId + " at " + resumeFrom + "/" + total);
+            } else {
+                // Full body: any part on disk is for another version
+                discardPart(audioFileId, part, meta);
+                total = response.body().contentLength();
+                expectedSha = response.header("X-Content-SHA256");
+                writeMeta(meta, response.header("ETag"), expectedSha, total);
+            }
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            if (offset > 0) {
+                hashFile(part, digest);
+            }
+
+            long written = offset;
+
+            try (InputStream in = response.body().byteStream();
+                 FileOutputStream out = new FileOutputStream(part, offset > 0)) {
+                Download active = beginDownload(audioFileId, part, written, total);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    if (throttle != null) {
+                        throttle.onBytes(read);
+                    }
+                    digest.update(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                    written += read;
+
+                    synchronized (this) {
+                        bytesDownloaded += read;
+                    }
+                    active.advance(written, total);
+                }
+                out.getFD().sync();
+            }
+
+            String sha256 = toHex(digest.digest());
+            if ((total >= 0 && written != total)
+                || (expectedSha != null && !expectedSha.equalsIgnoreCase(sha256))) {
+                Log.e(TAG, "Audio " + audioFileId + " failed verification (" + written + " bytes, sha256 " + sha256 + ")");
+                discardPart(audioFileId, part, meta);
+                throw new IOException("Downloaded audio failed verification");
+            }
+
+            String etagOut = code == 206 ? partMeta.getString("etag") : response.header("ETag");
+            File file = commit(audioFileId, part, etagOut, sha256, written);
+            meta.delete();
+            endDownload(audioFileId, true);
+            return file;
+        }
+    }
+
+    /** The audio's download in progress, or null if it is not downloading. */
+    public synchronized Download getDownload(int audioFileId) {
+        return downloads.get(audioFileId);
+    }
+
+    /** Download progress of the audio, 0..1, or -1 if it is not downloading. */
+    public synchronized float getProgress(int audioFileId) {
+        Download download = downloads.get(audioFileId);
+        if (download == null || download.getTotal() <= 0) return -1;
+        return (float) download.getAvailable() / download.getTotal();
+    }
+
+    public synchronized String describe() {
+        return "files=" + entries.size() + " bytes=" + totalBytes + "/" + maxBytes
+            + " downloaded=" + bytesDownloaded + " resumedFrom=" + bytesResumed
+            + " resumes=" + resumes + " retries=" + retries;
+    }
+
+    private synchronized Download beginDownload(int audioFileId, File part, long available, long total) {
+        Download download = downloads.get(audioFileId);
+        // A resumed attempt appends to the same file, so readers can carry on
+        if (download == null || available == 0) {
+            if (download != null) {
+                download.end(false);
+            }
+            download = new Download(part, available, total);
+            downloads.put(audioFileId, download);
+        } else {
+            download.advance(available, total);
+        }
+        return download;
+    }
+
+    private synchronized void endDownload(int audioFileId, boolean complete) {
+        Download download = downloads.remove(audioFileId);
+        if (download != null) {
+            download.end(complete);
+        }
+    }
+
+    // Metadata of a resumable part, or null if there is nothing to resume
+    private JSONObject readMeta(int audioFileId, File part, File meta) {
+        if (!part.exists() || !meta.exists() || part.length() == 0) return null;
+
+        try {
+            JSONObject json = new JSONObject(readFile(meta));
+            if (json.optString("etag", "").isEmpty()) return null;
+
+            long total = json.optLong("total", -1);
+            if (total >= 0 && part.length() >= total) {
+                // Complete but never committed; cheaper to fetch again than to trust it
+                discardPart(audioFileId, part, meta);
+                return null;
+            }
+            return json;
+        } catch (Exception e) {
+            Log.w(TAG, "Unreadable part metadata, restarting download");
+            discardPart(audioFileId, part, meta);
+            return null;
+        }
+    }
+
+    private void writeMeta(File meta, String etag, String sha256, long total) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("etag", etag);
+        json.put("sha256", sha256);
+        json.put("total", total);
+
+        File tmp = new File(meta.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(json.toString().getBytes("UTF-8"));
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(meta)) {
+            throw new IOException("Could not write download metadata");
+        }
+    }
+
+    private void discardPart(int audioFileId, File part, File meta) {
+        endDownload(audioFileId, false);
+        part.delete();
+        meta.delete();
+    }
+
+    // "bytes start-end/total" -> { start, total }
+    private static long[] parseContentRange(String header) {
+        if (header == null || !header.startsWith("bytes ")) return null;
+
+        try {
+            String spec = header.substring(6);
+            int dash = spec.indexOf('-');
+            int slash = spec.indexOf('/');
+            long start = Long.parseLong(spec.substring(0, dash));
+            long total = Long.parseLong(spec.substring(slash + 1));
+            return new long[] { start, total };
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static void hashFile(File file, MessageDigest digest) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+    }
+
+    private synchronized File commit(int audioFileId, File tmp, String etag, String sha256, long size) throws IOException {
+        Entry old = entries.get(audioFileId);
+        if (old != null) {
+            remove(old);
+        }
+
+        Entry entry = new Entry(audioFileId, audioFileId + ".audio");
+        File file = new File(dir, entry.fileName);
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not move downloaded audio into the cache");
+        }
+
+        entry.etag = etag;
+        entry.sha256 = sha256;
+        entry.size = size;
+        entry.validatedAt = System.currentTimeMillis();
+        entries.put(audioFileId, entry);
+        totalBytes += size;
+
+        evict(audioFileId);
+        saveIndex();
+
+        Log.d(TAG, "Cached audio " + audioFileId + " (" + size + " bytes, cache " + totalBytes + "/" + maxBytes + ")");
+        return file;
+    }
+
+    // Drop least recently used entries until the cache fits, keeping the newest file
+    private void evict(int keepId) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.audioFileId == keepId) continue;
+
+            new File(dir, entry.fileName).delete();
+            totalBytes -= entry.size;
+            it.remove();
+            Log.d(TAG, "Evicted audio " + entry.audioFileId);
+        }
+    }
+
+    private void remove(Entry entry) {
+        new File(dir, entry.fileName).delete();
+        entries.remove(entry.audioFileId);
+        totalBytes -= entry.size;
+    }
+
+    private void loadIndex() {
+        // Leftover temp files, and partial downloads nobody came back for
+        File[] files = dir.listFiles();
+        if (files != null) {
+            long now = System.currentTimeMillis();
+            for (File file : files) {
+                String name = file.getName();
+                boolean partial = name.endsWith(PART_SUFFIX) || name.endsWith(META_SUFFIX);
+                if (name.endsWith(".tmp") || (partial && now - file.lastModified() > PART_MAX_AGE_MS)) {
+                    file.delete();
+                }
+            }
+        }
+
+        if (!indexFile.exists()) return;
+
+        try {
+            JSONObject json = new JSONObject(readFile(indexFile));
+            JSONArray list = json.optJSONArray("entries");
+            if (list == null) return;
+
+            // Stored least recently used first
+            for (int i = 0; i < list.length(); i++) {
+                JSONObject item = list.getJSONObject(i);
+                Entry entry = new Entry(item.getInt("id"), item.getString("file"));
+                entry.etag = item.optString("etag", null);
+                entry.sha256 = item.optString("sha256", null);
+                entry.size = item.getLong("size");
+                entry.validatedAt = item.optLong("validatedAt", 0);
+
+                if (new File(dir, entry.fileName).length() == entry.size) {
+                    entries.put(entry.audioFileId, entry);
+                    totalBytes += entry.size;
+                }
+            }
+
+            Log.d(TAG, "Audio cache loaded: " + entries.size() + " files, " + totalBytes + " bytes");
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading audio cache index", e);
+        }
+    }
+
+    private void saveIndex() {
+        try {
+            JSONArray list = new JSONArray();
+            List<Entry> ordered = new ArrayList<>(entries.values());
+            for (Entry entry : ordered) {
+                JSONObject item = new JSONObject();
+                item.put("id", entry.audioFileId);
+                item.put("file", entry.fileName);
+                item.put("etag", entry.etag);
+                item.put("sha256", entry.sha256);
+                item.put("size", entry.size);
+                item.put("validatedAt", entry.validatedAt);
+                list.put(item);
+            }
+
+            JSONObject json = new JSONObject();
+            json.put("entries", list);
+
+            File tmp = new File(dir, INDEX_FILE + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(json.toString().getBytes("UTF-8"));
+                out.getFD().sync();
+            }
+            if (!tmp.renameTo(indexFile)) {
+                Log.e(TAG, "Error replacing audio cache index");
+            }
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving audio cache index", e);
+        }
+    }
+
+    // Files written by the old uncached download path
+    private static void removeLegacyFiles(File legacyDir) {
+        File[] files = legacyDir.listFiles();
+        if (files == null) return;
+
+        for (File file : files) {
+            file.delete();
+        }
+        legacyDir.delete();
+    }
+
+    private static String readFile(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            int read;
+            while (offset < data.length && (read = in.read(data, offset, data.length - offset)) != -1) {
+                offset += read;
+            }
+            return new String(data, 0, offset, "UTF-8");
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,605 @@
+package com.ivrcallmanager.audio;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.ivrcallmanager.utils.TaskScheduler;
+
+import java.io.File;
+
+/**
+ * Fetches the campaign audio for a call through the {@link AudioCache} and
+ * plays it into the call.
+ * Owned by the dialer service so playback is not tied to any activity.
+ *
+ * The preferred path queues the audio's decoded PCM (see {@link PcmCache}) on a
+ * {@link PcmPlaylist} that plays an AudioTrack on the voice call stream;
+ * MediaPlayer is the fallback while no PCM is available. The PCM is
+ * memory-mapped and the track is kept across calls, so a call in progress does
+ * not allocate and cannot trigger GC pauses that the callee would hear as
+ * dropouts.
+ *
+ * If the download is still running when the call needs the message, playback
+ * streams from the partial file (Android 6.0+) instead of waiting for it.
+ *
+ * IVR prompts go through {@link #playPrompts}, which cuts off whatever is
+ * playing (so a key press barges in), plays the prompts back to back with no
+ * gap in between and reports when the last one has played to the end. The
+ * track keeps playing from one prompt to the next until the call's audio is
+ * stopped, and a {@link PromptListener} hears when each prompt starts and ends.
+ */
+public class AudioEngine {
+
+    private static final String TAG = "AudioEngine";
+
+    private final Context context;
+    private final AudioCache audioCache;
+    private final PcmCache pcmCache;
+    private final TaskScheduler scheduler;
+    private final Handler mainHandler;
+    private final PcmPlaylist playlist;
+
+    /** Start and end of each prompt played from PCM, on the main thread. */
+    public interface PromptListener {
+        void onPromptStarted(int audioFileId);
+        
+        void onPromptEnded(int audioFileId, long playedMs, boolean completed);
+    }
+    
+    // What a queued segment carries back with its events
+    private static final class Queued {
+        final int playback;
+        final Runnable onFinished;
+        
+        Queued(int playback, Runnable onFinished) {
+            this.playback = playback;
+            this.onFinished = onFinished;
+        }
+    }
+    
+    private MediaPlayer mediaPlayer;
+    private volatile boolean isPlayingAudio = false;
+    private volatile File audioFile;
+    private volatile File pcmFile;
+    private volatile int audioFileId;
+    private StreamingAudioSource streamingSource;
+    private boolean isPreparing = false;
+    private long playRequestedAt;
+    private AudioTrack audioTrack;
+    // Bumped whenever playback is cut off, so a finished or stopped playback
+    // does not touch the state of the one that replaced it
+    private volatile int generation = 0;
+    private Runnable onFinished;
+    // The last segment queued for injection; main thread
+    private Queued injecting;
+    private PromptListener promptListener;
+
+    public AudioEngine(Context context, AudioCache audioCache, PcmCache pcmCache, TaskScheduler scheduler) {
+        this.context = context;
+        this.audioCache = audioCache;
+        this.pcmCache = pcmCache;
+        this.scheduler = scheduler;
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.playlist = new PcmPlaylist(pcmCache, scheduler, new PcmPlaylist.Listener() {
+            @Override
+            public void onSegmentStarted(PcmPlaylist.Segment segment) {
+                onPlaybackStarted();
+                if (promptListener != null) {
+                    promptListener.onPromptStarted(segment.audioFileId);
+                }
+            }
+            
+            @Override
+            public void onSegmentEnded(PcmPlaylist.Segment segment, long playedMs, boolean completed) {
+                if (playlist.isIdle()) {
+                    isPlayingAudio = false;
+                    if (completed) {
+                        Toast.makeText(context, "✅ Audio injection completed", Toast.LENGTH_SHORT).show();
+                    }
+                }
+                if (promptListener != null) {
+                    promptListener.onPromptEnded(segment.audioFileId, playedMs, completed);
+                }
+                
+                Queued queued = (Queued) segment.tag;
+                if (queued == injecting) injecting = null;
+                if (completed && queued.playback == generation && queued.onFinished != null) {
+                    queued.onFinished.run();
+                }
+            }
+            
+            @Override
+            public void onFailed(Exception e) {
+                isPlayingAudio = false;
+                
+                // Do not reuse a track that failed
+                synchronized (AudioEngine.this) {
+                    if (audioTrack != null) {
+                        audioTrack.release();
+                        audioTrack = null;
+                    }
+                }
+                Toast.makeText(context, "❌ Audio injection failed", Toast.LENGTH_SHORT).show();
+                
+                // The queued segments were dropped; move on as if they had played
+                Queued dropped = injecting;
+                injecting = null;
+                if (dropped != null && dropped.playback == generation && dropped.onFinished != null) {
+                    dropped.onFinished.run();
+                }
+            }
+        });
+    }
+    
+    public void setPromptListener(PromptListener promptListener) {
+        this.promptListener = promptListener;
+    }
+
+    /** Whether audio can be played before its download has finished. */
+    public static boolean canStream() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    public void prepare(int audioFileId) {
+        this.audioFileId = audioFileId;
+        // Normally already fetched and decoded by the prefetcher before the call was dialed
+        audioFile = audioCache.get(audioFileId);
+        pcmFile = pcmCache.get(audioFileId);
+        if (pcmFile != null) return;
+        
+        boolean queued = scheduler.execute(TaskScheduler.Lane.BULK, () -> {
+            Log.d(TAG, "Preparing audio file ID: " + audioFileId);
+            
+            File file = audioCache.fetch(audioFileId);
+            if (file != null) {
+                audioFile = file;
+                Log.d(TAG, "Audio file ready: " + file.getAbsolutePath());
+                pcmFile = pcmCache.decode(audioFileId);
+            } else {
+                mainHandler.post(() -> {
+                    Toast.makeText(context, "Failed to download audio", Toast.LENGTH_SHORT).show();
+                });
+            }
+        });
+        if (!queued) {
+            // play() uses whatever the prefetcher has cached by then
+            Log.w(TAG, "Download lane busy, audio " + audioFileId + " not prepared");
+        }
+    }
+    
+    public void play() {
+        if (isPlayingAudio) {
+            Log.w(TAG, "Audio already playing");
+            return;
+        }
+        
+        playRequestedAt = SystemClock.elapsedRealtime();
+        
+        // Method 1: Decoded PCM straight into an AudioTrack
+        File pcm = pcmFile;
+        if (pcm != null && pcm.exists() && openPlaylist()) {
+            isPlayingAudio = true;
+            playlist.add(audioFileId, pcm, new Queued(generation, null));
+            return;
+        }
+        
+        playFile(null);
+    }
+    
+    /** {@link #playPrompts} with a single prompt. */
+    public void playPrompt(int audioFileId, Runnable onFinished) {
+        playPrompts(new int[] { audioFileId }, onFinished);
+    }
+    
+    /**
+     * Play prompts from the caches one after the other, cutting off anything
+     * still playing. Prompts with decoded PCM are queued together and play
+     * gaplessly; any other prompt goes through MediaPlayer once the ones
+     * before it have finished. A prompt that cannot be played is skipped.
+     * {@code onFinished} runs on the main thread once the last one has played
+     * to the end.
+     */
+    public void playPrompts(int[] audioFileIds, Runnable onFinished) {
+        cutOff();
+        playRequestedAt = SystemClock.elapsedRealtime();
+        playFrom(audioFileIds, 0, generation, onFinished);
+    }
+    
+    /**
+     * Play PCM that does not come from an audio file, such as rendered
+     * speech, cutting off anything still playing. {@code onFinished} runs on
+     * the main thread once it has played to the end, or straight away if it
+     * cannot be played.
+     */
+    public void playPcm(File pcm, Runnable onFinished) {
+        cutOff();
+        playRequestedAt = SystemClock.elapsedRealtime();
+        
+        int playback = generation;
+        if (openPlaylist()) {
+            isPlayingAudio = true;
+            injecting = new Queued(playback, onFinished);
+            playlist.add(0, pcm, injecting);
+            return;
+        }
+        
+        // MediaPlayer cannot play raw PCM; carry on as if it were empty
+        mainHandler.post(() -> {
+            if (generation == playback && onFinished != null) {
+                onFinished.run();
+            }
+        });
+    }
+    
+    // Main thread
+    private void playFrom(int[] audioFileIds, int index, int playback, Runnable onFinished) {
+        if (generation != playback) return;
+        
+        if (index >= audioFileIds.length) {
+            if (onFinished != null) {
+                onFinished.run();
+            }
+            return;
+        }
+        
+        // The run of prompts from here on that are already decoded
+        File[] pcms = new File[audioFileIds.length];
+        int end = index;
+        while (end < audioFileIds.length && (pcms[end] = pcmCache.get(audioFileIds[end])) != null) {
+            end++;
+        }
+        
+        if (end > index && openPlaylist()) {
+            int next = end;
+            isPlayingAudio = true;
+            for (int i = index; i < end; i++) {
+                Runnable then = i == end - 1 ? () -> playFrom(audioFileIds, next, playback, onFinished) : null;
+                injecting = new Queued(playback, then);
+                playlist.add(audioFileIds[i], pcms[i], injecting);
+            }
+            return;
+        }
+        
+        this.audioFileId = audioFileIds[index];
+        audioFile = audioCache.get(audioFileId);
+        pcmFile = null;
+        Runnable then = () -> playFrom(audioFileIds, index + 1, playback, onFinished);
+        if (!playFile(then)) {
+            // Carry on as if the prompt were empty
+            this.onFinished = null;
+            mainHandler.post(then);
+        }
+    }
+    
+    // Plays through MediaPlayer; returns false if nothing could be played
+    private boolean playFile(Runnable onFinished) {
+        try {
+            this.onFinished = onFinished;
+            
+            if (audioFile == null || !audioFile.exists()) {
+                AudioCache.Download download = canStream() ? audioCache.getDownload(audioFileId) : null;
+                if (download != null && !download.isFailed()) {
+                    playStreaming(download);
+                    return isPlayingAudio;
+                }
+                
+                Log.w(TAG, "Audio file not available for playback");
+                return false;
+            }
+            
+            Log.d(TAG, "Starting audio playback for target number: " + audioFile.getAbsolutePath());
+            
+            // Method 2: Fallback to MediaPlayer with proper routing
+            playAudioWithMediaPlayer();
+            return isPlayingAudio;
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error playing audio during call", e);
+            isPlayingAudio = false;
+            if (mediaPlayer != null) {
+                mediaPlayer.release();
+                mediaPlayer = null;
+            }
+            Toast.makeText(context, "Failed to play audio", Toast.LENGTH_SHORT).show();
+            return false;
+        }
+    }
+    
+    // Starts the track for this call's audio if it is not playing yet
+    private boolean openPlaylist() {
+        if (playlist.isOpen()) return true;
+        
+        try {
+            // Set audio mode for call
+            AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+            audioManager.setMode(AudioManager.MODE_IN_COMMUNICATION);
+            
+            AudioTrack track = obtainAudioTrack();
+            if (track == null) {
+                Log.w(TAG, "AudioTrack initialization failed, falling back to MediaPlayer");
+                return false;
+            }
+            
+            if (!playlist.open(track)) {
+                Log.w(TAG, "Audio lane busy, falling back to MediaPlayer");
+                return false;
+            }
+            return true;
+            
+        } catch (Exception e) {
+            Log.e(TAG, "AudioTrack injection failed", e);
+            return false;
+        }
+    }
+    
+    // One track for every call, so a call does not pay for creating it
+    private synchronized AudioTrack obtainAudioTrack() {
+        if (audioTrack != null && audioTrack.getState() == AudioTrack.STATE_INITIALIZED) {
+            return audioTrack;
+        }
+        
+        if (audioTrack != null) {
+            audioTrack.release();
+        }
+        
+        // Configure AudioTrack for call stream, in the format the PCM cache holds
+        int sampleRate = PcmDecoder.SAMPLE_RATE;
+        int channelConfig = AudioFormat.CHANNEL_OUT_MONO;
+        int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
+        
+        int bufferSize = Math.max(AudioTrack.getMinBufferSize(sampleRate, channelConfig, audioFormat), PcmPlaylist.CHUNK_BYTES * 2);
+        
+        audioTrack = new AudioTrack(
+            AudioManager.STREAM_VOICE_CALL,
+            sampleRate,
+            channelConfig,
+            audioFormat,
+            bufferSize,
+            AudioTrack.MODE_STREAM
+        );
+        
+        if (audioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+            audioTrack.release();
+            audioTrack = null;
+        }
+        return audioTrack;
+    }
+    
+    // Main thread
+    private void finished(int playback, String message) {
+        if (generation != playback) return;
+        
+        Toast.makeText(context, message, Toast.LENGTH_SHORT).show();
+        Runnable callback = onFinished;
+        onFinished = null;
+        if (callback != null) {
+            callback.run();
+        }
+    }
+    
+    private void playStreaming(AudioCache.Download download) throws Exception {
+        Log.d(TAG, "Streaming audio " + audioFileId + " (" + download.getAvailable() + "/" + download.getTotal() + " bytes downloaded)");
+        
+        // The PCM is decoded from the complete file, so a partial one goes through MediaPlayer
+        streamingSource = new StreamingAudioSource(audioFileId, download);
+        playAudioWithMediaPlayer();
+    }
+    
+    private void playAudioWithMediaPlayer() {
+        try {
+            // Get AudioManager for call audio routing
+            AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+            
+            // CRITICAL: Configure audio to route through call stream to target
+            audioManager.setMode(AudioManager.MODE_IN_COMMUNICATION);
+            
+            // Turn OFF speakerphone so audio goes through call, not local speaker
+            audioManager.setSpeakerphoneOn(false);
+            
+            // IMPORTANT: Request audio focus for voice communication
+            int focusResult = audioManager.requestAudioFocus(
+                null,
+                AudioManager.STREAM_VOICE_CALL,
+                AudioManager.AUDIOFOCUS_GAIN_TRANSIENT
+            );
+            
+            Log.d(TAG, "Audio focus result: " + focusResult);
+            
+            // Set volume for voice call stream (what target hears)
+            int maxVolume = audioManager.getStreamMaxVolume(AudioManager.STREAM_VOICE_CALL);
+            audioManager.setStreamVolume(AudioManager.STREAM_VOICE_CALL, maxVolume, 0);
+            
+            // Initialize MediaPlayer with voice call stream
+            mediaPlayer = new MediaPlayer();
+            if (streamingSource != null) {
+                mediaPlayer.setDataSource(streamingSource);
+            } else {
+                mediaPlayer.setDataSource(audioFile.getAbsolutePath());
+            }
+            
+            // CRITICAL: Use VOICE_CALL stream to route audio to target number
+            mediaPlayer.setAudioStreamType(AudioManager.STREAM_VOICE_CALL);
+            
+            // Set audio attributes for call audio
+            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
+                android.media.AudioAttributes audioAttributes = new android.media.AudioAttributes.Builder()
+                    .setUsage(android.media.AudioAttributes.USAGE_VOICE_COMMUNICATION)
+                    .setContentType(android.media.AudioAttributes.CONTENT_TYPE_SPEECH)
+                    .setFlags(android.media.AudioAttributes.FLAG_AUDIBILITY_ENFORCED)
+                    .build();
+                mediaPlayer.setAudioAttributes(audioAttributes);
+            }
+            
+            // Set maximum volume for MediaPlayer
+            mediaPlayer.setVolume(1.0f, 1.0f);
+            
+            // Prepare and start playback
+            if (streamingSource != null) {
+                // Preparing reads from the download, which may have to wait for bytes
+                isPreparing = true;
+                mediaPlayer.setOnPreparedListener(mp -> {
+                    isPreparing = false;
+                    mp.start();
+                    onPlaybackStarted();
+                });
+                mediaPlayer.prepareAsync();
+            } else {
+                mediaPlayer.prepare();
+                mediaPlayer.start();
+                onPlaybackStarted();
+            }
+            isPlayingAudio = true;
+            
+            // Set completion listener
+            int playback = generation;
+            mediaPlayer.setOnCompletionListener(mp -> {
+                Log.d(TAG, "Audio playback completed for target");
+                isPlayingAudio = false;
+                
+                // Release audio focus
+                audioManager.abandonAudioFocus(null);
+                
+                // Reset audio mode to normal after playback
+                audioManager.setMode(AudioManager.MODE_NORMAL);
+                
+                closeStream();
+                if (mediaPlayer != null) {
+                    mediaPlayer.release();
+                    mediaPlayer = null;
+                }
+                
+                mainHandler.post(() -> finished(playback, "✅ Message delivered to target"));
+            });
+            
+            // Set error listener
+            mediaPlayer.setOnErrorListener((mp, what, extra) -> {
+                Log.e(TAG, "MediaPlayer error during call: " + what + ", " + extra);
+                isPlayingAudio = false;
+                isPreparing = false;
+                
+                // Release audio focus on error
+                audioManager.abandonAudioFocus(null);
+                
+                // Reset audio mode on error
+                audioManager.setMode(AudioManager.MODE_NORMAL);
+                
+                closeStream();
+                if (mediaPlayer != null) {
+                    mediaPlayer.release();
+                    mediaPlayer = null;
+                }
+                
+                // Move on as if the prompt had ended, so whoever waits on it is not left hanging
+                mainHandler.post(() -> finished(playback, "❌ Audio playback failed"));
+
+                return true;
+            });
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error with MediaPlayer audio", e);
+            isPlayingAudio = false;
+            isPreparing = false;
+            closeStream();
+            if (mediaPlayer != null) {
+                mediaPlayer.release();
+                mediaPlayer = null;
+            }
+            Toast.makeText(context, "Failed to play audio with MediaPlayer", Toast.LENGTH_SHORT).show();
+        }
+    }
+    
+    /** Stop playback and free the audio track; the engine is not used again. */
+    public void release() {
+        stop();
+        
+        synchronized (this) {
+            if (audioTrack != null) {
+                audioTrack.release();
+                audioTrack = null;
+            }
+        }
+    }
+    
+    public void stop() {
+        try {
+            cutOff();
+            // The track stops here, not between prompts
+            playlist.close();
+            
+            // Get AudioManager to release audio focus
+            AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+            
+            // Release audio focus
+            audioManager.abandonAudioFocus(null);
+            
+            // Reset audio mode
+            audioManager.setMode(AudioManager.MODE_NORMAL);
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error stopping audio playback", e);
+        }
+    }
+    
+    // Silence whatever is playing or queued, keeping the track and audio mode for what comes next
+    private void cutOff() {
+        generation++;
+        onFinished = null;
+        injecting = null;
+        
+        // Unblock a player waiting on a download before releasing it
+        closeStream();
+        
+        // Stop MediaPlayer
+        if (mediaPlayer != null) {
+            try {
+                if (!isPreparing) {
+                    mediaPlayer.stop();
+                }
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "MediaPlayer already stopped");
+            }
+            isPreparing = false;
+            mediaPlayer.release();
+            mediaPlayer = null;
+            Log.d(TAG, "MediaPlayer stopped");
+        }
+        
+        // Stop AudioTrack injection
+        playlist.cancel();
+        
+        isPlayingAudio = false;
+    }
+    
+    // Main thread; only the first audio after a play request counts
+    private void onPlaybackStarted() {
+        if (playRequestedAt == 0) return;
+        
+        long elapsed = SystemClock.elapsedRealtime() - playRequestedAt;
+        playRequestedAt = 0;
+        Log.d(TAG, "Time to first audio: " + elapsed + "ms" + (streamingSource != null ? " (streaming)" : ""));
+        
+        mainHandler.post(() -> {
+            Toast.makeText(context, "🎵 Playing message to target number", Toast.LENGTH_SHORT).show();
+        });
+    }
+    
+    private void closeStream() {
+        if (streamingSource == null) return;
+        
+        try {
+            streamingSource.close();
+        } catch (Exception e) {
+            Log.e(TAG, "Error closing audio stream", e);
+        }
+        streamingSource = null;
+    }
+}
@@ -0,0 +1,270 @@
+package com.ivrcallmanager.audio;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.ivrcallmanager.network.BandwidthLimiter;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Downloads the audio for upcoming calls before they are dialed, and decodes
+ * it into the {@link PcmCache}.
+ *
+ * The queued commands are scanned for audio files that are not cached (or are
+ * due for revalidation), and those are fetched in queue order, at most
+ * {@link #MAX_CONCURRENT} at a time and within a shared bandwidth budget so
+ * prefetching does not starve reporting on slow links. Each file is fetched
+ * once no matter how many commands or callers ask for it.
+ *
+ * A call about to be dialed asks for its audio with {@link #ensureReady}; that
+ * request jumps the queue and is not rate-limited. If the caller can stream,
+ * it is called back as soon as the first {@link #MIN_STREAM_BYTES} are on
+ * disk rather than when the download finishes.
+ */
+public class AudioPrefetcher {
+
+    private static final String TAG = "AudioPrefetcher";
+
+    // How many queued commands ahead to look
+    private static final int LOOKAHEAD = 20;
+    private static final int MAX_CONCURRENT = 2;
+    private static final long PREFETCH_BYTES_PER_SECOND = 256 * 1024;
+    // Enough of the file to start playing while the rest arrives
+    private static final long MIN_STREAM_BYTES = 32 * 1024;
+    // Wait before trying again when the download lane has no room
+    private static final long LANE_FULL_RETRY_MS = 500;
+
+    public interface Callback {
+        /**
+         * Runs on the main thread; ready is false if the audio could not be
+         * fetched. When streaming was allowed, ready may mean the download is
+         * far enough along to start playing.
+         */
+        void onAudioReady(int audioFileId, boolean ready);
+    }
+
+    private final AudioCache audioCache;
+    private final PcmCache pcmCache;
+    private final Executor executor;
+    private final Handler handler;
+    private final BandwidthLimiter limiter = new BandwidthLimiter(PREFETCH_BYTES_PER_SECOND);
+
+    // Waiting to start, in priority order
+    private final LinkedHashSet<Integer> pending = new LinkedHashSet<>();
+    private final Set<Integer> inFlight = new HashSet<>();
+    private final Set<Integer> urgent = new HashSet<>();
+    private final Map<Integer, List<Callback>> callbacks = new HashMap<>();
+    private final Map<Integer, List<Callback>> streamCallbacks = new HashMap<>();
+
+    private long prefetched = 0;
+    private long failed = 0;
+
+    private final Runnable pumpRunnable = this::pump;
+
+    public AudioPrefetcher(AudioCache audioCache, PcmCache pcmCache, Executor executor) {
+        this.audioCache = audioCache;
+        this.pcmCache = pcmCache;
+        this.executor = executor;
+        this.handler = new Handler(Looper.getMainLooper());
+    }
+
+    /** Queue downloads for the audio of the next queued commands. */
+    public void scan(List<JSONObject> commands) {
+        int added = 0;
+
+        synchronized (this) {
+            int limit = Math.min(commands.size(), LOOKAHEAD);
+            for (int i = 0; i < limit; i++) {
+                JSONObject command = commands.get(i);
+                JSONObject prompt = command.optJSONObject("prompt");
+                if (prompt != null) {
+                    // Fragments are shared by the whole campaign, so most are already here
+                    for (int audioFileId : PromptAssembler.audioFileIds(prompt)) {
+                        if (queue(audioFileId)) added++;
+                    }
+                } else if (queue(command.optInt("audioFileId", 0))) {
+                    added++;
+                }
+            }
+        }
+
+        if (added > 0) {
+            Log.d(TAG, "Prefetching " + added + " audio files");
+            pump();
+        }
+    }
+
+    // Caller holds the lock
+    private boolean queue(int audioFileId) {
+        if (audioFileId <= 0 || inFlight.contains(audioFileId) || pending.contains(audioFileId)) return false;
+        if (audioCache.isFresh(audioFileId)) return false;
+
+        pending.add(audioFileId);
+        return true;
+    }
+
+    /** Whether the audio can be played right now without a download. */
+    public boolean isReady(int audioFileId) {
+        return audioCache.get(audioFileId) != null;
+    }
+
+    /**
+     * Call back once the audio is on disk (or, with {@code allowStreaming},
+     * once enough of it is), fetching it ahead of any prefetches if needed.
+     */
+    public void ensureReady(int audioFileId, boolean allowStreaming, Callback callback) {
+        if (isReady(audioFileId) || (allowStreaming && isStreamable(audioFileId))) {
+            handler.post(() -> callback.onAudioReady(audioFileId, true));
+            return;
+        }
+
+        synchronized (this) {
+            Map<Integer, List<Callback>> target = allowStreaming ? streamCallbacks : callbacks;
+            List<Callback> waiting = target.get(audioFileId);
+            if (waiting == null) {
+                waiting = new ArrayList<>();
+                target.put(audioFileId, waiting);
+            }
+            waiting.add(callback);
+            urgent.add(audioFileId);
+
+            if (!inFlight.contains(audioFileId)) {
+                // Move to the front of the line
+                pending.remove(audioFileId);
+                LinkedHashSet<Integer> reordered = new LinkedHashSet<>();
+                reordered.add(audioFileId);
+                reordered.addAll(pending);
+                pending.clear();
+                pending.addAll(reordered);
+            }
+        }
+
+        pump();
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public synchronized String describe() {
+        return "pending=" + pending.size() + " inFlight=" + inFlight.size()
+            + " prefetched=" + prefetched + " failed=" + failed;
+    }
+
+    private void pump() {
+        while (true) {
+            final int audioFileId;
+
+            synchronized (this) {
+                if (inFlight.size() >= MAX_CONCURRENT || pending.isEmpty()) return;
+
+                Iterator<Integer> it = pending.iterator();
+                audioFileId = it.next();
+                it.remove();
+                inFlight.add(audioFileId);
+            }
+
+            try {
+                executor.execute(() -> {
+                    File file = audioCache.fetch(audioFileId, bytes -> {
+                        // A call is waiting for this file; stop rate-limiting it
+                        if (!isUrgent(audioFileId)) {
+                            limiter.acquire(bytes);
+                        } else {
+                            notifyStreamable(audioFileId);
+                        }
+                    });
+                    finish(audioFileId, file != null);
+
+                    // Decode while the file is hot in the page cache, before any call needs it
+                    if (file != null) {
+                        pcmCache.decode(audioFileId);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Bulk lane full: put the file back at the head of the line and
+                // try again shortly, so whoever waits on it still hears back
+                synchronized (this) {
+                    inFlight.remove(audioFileId);
+                    List<Integer> reordered = new ArrayList<>(pending.size() + 1);
+                    reordered.add(audioFileId);
+                    reordered.addAll(pending);
+                    pending.clear();
+                    pending.addAll(reordered);
+                }
+                handler.removeCallbacks(pumpRunnable);
+                handler.postDelayed(pumpRunnable, LANE_FULL_RETRY_MS);
+                return;
+            }
+        }
+    }
+
+    private synchronized boolean isUrgent(int audioFileId) {
+        return urgent.contains(audioFileId);
+    }
+
+    private boolean isStreamable(int audioFileId) {
+        AudioCache.Download download = audioCache.getDownload(audioFileId);
+        return download != null && !download.isFailed() && download.getAvailable() >= MIN_STREAM_BYTES;
+    }
+
+    private void notifyStreamable(int audioFileId) {
+        List<Callback> waiting;
+
+        synchronized (this) {
+            if (!streamCallbacks.containsKey(audioFileId) || !isStreamable(audioFileId)) return;
+            waiting = streamCallbacks.remove(audioFileId);
+        }
+
+        Log.d(TAG, "Audio " + audioFileId + " can start streaming");
+        for (Callback callback : waiting) {
+            handler.post(() -> callback.onAudioReady(audioFileId, true));
+        }
+    }
+
+    private void finish(int audioFileId, boolean ready) {
+        List<Callback> waiting = new ArrayList<>();
+
+        synchronized (this) {
+            inFlight.remove(audioFileId);
+            urgent.remove(audioFileId);
+            List<Callback> complete = callbacks.remove(audioFileId);
+            List<Callback> streaming = streamCallbacks.remove(audioFileId);
+            if (complete != null) waiting.addAll(complete);
+            if (streaming != null) waiting.addAll(streaming);
+            if (ready) {
+                prefetched++;
+            } else {
+                failed++;
+            }
+        }
+
+        if (!ready) {
+            Log.w(TAG, "Could not fetch audio " + audioFileId);
+        }
+
+        for (Callback callback : waiting) {
+            handler.post(() -> callback.onAudioReady(audioFileId, ready));
+        }
+
+        pump();
+    }
+}
@@ -0,0 +1,263 @@
+package com.ivrcallmanager.audio;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decoded call audio, one raw PCM file per audio file and version.
+ *
+ * The campaign audio is decoded once (see {@link PcmDecoder}) and every call
+ * plays the same PCM, so no call pays for starting a decoder. Files are named
+ * after the audio file id and the SHA-256 of the source, so audio replaced on
+ * the server is decoded again instead of playing the old version. The least
+ * recently played files are deleted once the cache grows past its cap.
+ *
+ * Audio rendered on the device, such as synthesised speech, is kept in the
+ * same cache and format under a key chosen by whoever rendered it.
+ */
+public class PcmCache {
+
+    private static final String TAG = "PcmCache";
+
+    private static final long MAX_BYTES = 64L * 1024 * 1024;
+    private static final String SUFFIX = ".pcm";
+    private static final String RENDERED_PREFIX = "r-";
+    // Mappings kept for reuse; campaigns rarely rotate through more prompts
+    private static final int MAX_MAPPINGS = 8;
+
+    private final File dir;
+    private final AudioCache audioCache;
+    private final Map<Integer, Object> decodeLocks = new HashMap<>();
+    private final LinkedHashMap<String, MappedByteBuffer> mappings = new LinkedHashMap<String, MappedByteBuffer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MappedByteBuffer> eldest) {
+            return size() > MAX_MAPPINGS;
+        }
+    };
+
+    private long decoded = 0;
+    private long decodeFailures = 0;
+    private long decodeMs = 0;
+
+    public PcmCache(File filesDir, AudioCache audioCache) {
+        this.dir = new File(filesDir, "pcm_cache");
+        this.audioCache = audioCache;
+
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(TAG, "Could not create PCM cache directory");
+        }
+
+        // Decodes interrupted by a crash
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /** PCM for the cached version of this audio, or null if it has not been decoded. */
+    public File get(int audioFileId) {
+        String sha256 = audioCache.getSha256(audioFileId);
+        if (sha256 == null) return null;
+
+        File file = fileFor(audioFileId, sha256);
+        if (!file.exists()) return null;
+
+        // Recency for eviction
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * PCM for this audio, decoding the cached file first if needed. Returns
+     * null if the audio is not cached or cannot be decoded. Blocks; call it
+     * off the main thread.
+     */
+    public File decode(int audioFileId) {
+        synchronized (lockFor(audioFileId)) {
+            File pcm = get(audioFileId);
+            if (pcm != null) return pcm;
+
+            File source = audioCache.get(audioFileId);
+            String sha256 = audioCache.getSha256(audioFileId);
+            if (source == null || sha256 == null) return null;
+
+            File target = fileFor(audioFileId, sha256);
+            File tmp = new File(dir, target.getName() + ".tmp");
+            long started = System.currentTimeMillis();
+
+            try {
+                PcmDecoder.decode(source, tmp);
+                if (!tmp.renameTo(target)) {
+                    throw new IOException("Could not move decoded audio into the cache");
+                }
+
+                long elapsed = System.currentTimeMillis() - started;
+                synchronized (this) {
+                    decoded++;
+                    decodeMs += elapsed;
+                }
+                Log.d(TAG, "Decoded audio " + audioFileId + " in " + elapsed + "ms");
+
+                removeOtherVersions(audioFileId, target);
+                evict(target);
+                return target;
+            } catch (Exception e) {
+                Log.e(TAG, "Error decoding audio " + audioFileId, e);
+                tmp.delete();
+                synchronized (this) {
+                    decodeFailures++;
+                }
+                return null;
+            }
+        }
+    }
+
+    /** PCM rendered under {@code key}, or null if nothing has been stored for it. */
+    public File getRendered(String key) {
+        File file = renderedFile(key);
+        if (!file.exists()) return null;
+
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Decode a rendered audio file (any format the decoder reads, such as
+     * WAV) into the cache under {@code key}. Returns null if it cannot be
+     * decoded. Blocks; call it off the main thread.
+     */
+    public File storeRendered(String key, File source) {
+        File target = renderedFile(key);
+        File tmp = new File(dir, target.getName() + ".tmp");
+        long started = System.currentTimeMillis();
+
+        try {
+            PcmDecoder.decode(source, tmp);
+            if (!tmp.renameTo(target)) {
+                throw new IOException("Could not move rendered audio into the cache");
+            }
+
+            long elapsed = System.currentTimeMillis() - started;
+            synchronized (this) {
+                decoded++;
+                decodeMs += elapsed;
+            }
+            Log.d(TAG, "Stored rendered audio " + key + " in " + elapsed + "ms");
+
+            evict(target);
+            return target;
+        } catch (Exception e) {
+            Log.e(TAG, "Error decoding rendered audio " + key, e);
+            tmp.delete();
+            synchronized (this) {
+                decodeFailures++;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The samples of a PCM file as a read-only, memory-mapped buffer of its
+     * own (position 0, little-endian). The mapping is shared between calls,
+     * so playing the same prompt again reads straight from the page cache.
+     */
+    public ByteBuffer map(File pcm) throws IOException {
+        MappedByteBuffer mapped;
+
+        synchronized (mappings) {
+            mapped = mappings.get(pcm.getPath());
+            if (mapped == null) {
+                try (RandomAccessFile file = new RandomAccessFile(pcm, "r")) {
+                    mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                }
+                mapped.load();
+                mappings.put(pcm.getPath(), mapped);
+            }
+        }
+
+        return mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Length of the PCM in milliseconds. */
+    public static long durationMs(File pcm) {
+        return pcm.length() / PcmDecoder.BYTES_PER_SAMPLE * 1000 / PcmDecoder.SAMPLE_RATE;
+    }
+
+    public synchronized String describe() {
+        return "decoded=" + decoded + " failures=" + decodeFailures
+            + " avgDecodeMs=" + (decoded > 0 ? decodeMs / decoded : 0);
+    }
+
+    private synchronized Object lockFor(int audioFileId) {
+        Object lock = decodeLocks.get(audioFileId);
+        if (lock == null) {
+            lock = new Object();
+            decodeLocks.put(audioFileId, lock);
+        }
+        return lock;
+    }
+
+    private File fileFor(int audioFileId, String sha256) {
+        return new File(dir, audioFileId + "-" + sha256.substring(0, Math.min(16, sha256.length())) + SUFFIX);
+    }
+
+    private File renderedFile(String key) {
+        return new File(dir, RENDERED_PREFIX + key + SUFFIX);
+    }
+
+    private void removeOtherVersions(int audioFileId, File keep) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+
+        String prefix = audioFileId + "-";
+        for (File file : files) {
+            if (file.getName().startsWith(prefix) && file.getName().endsWith(SUFFIX) && !file.equals(keep)) {
+                file.delete();
+            }
+        }
+    }
+
+    private void evict(File keep) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= MAX_BYTES) return;
+
+        // Oldest played first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        for (File file : files) {
+            if (total <= MAX_BYTES) break;
+            if (file.equals(keep) || !file.getName().endsWith(SUFFIX)) continue;
+
+            total -= file.length();
+            file.delete();
+            Log.d(TAG, "Evicted " + file.getName());
+        }
+    }
+}
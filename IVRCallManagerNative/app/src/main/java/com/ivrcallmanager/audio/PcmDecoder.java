@@ -0,0 +1,206 @@
+package com.ivrcallmanager.audio;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import com.ivrcallmanager.dsp.Downmixer;
+import com.ivrcallmanager.dsp.Resampler;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Decodes an audio file (MP3, AAC, WAV, ...) into the raw PCM that is played
+ * into calls: 8 kHz, mono, 16-bit little-endian, no header.
+ *
+ * Uses the platform decoders through MediaExtractor/MediaCodec. Multi-channel
+ * audio is averaged down to mono and then band-limited and resampled with the
+ * polyphase {@link Resampler}, which keeps the 44.1/48 kHz uploads free of
+ * aliasing at the telephone rate. This runs once per audio version, when the
+ * PCM cache is filled, never during a call.
+ */
+class PcmDecoder {
+
+    private static final String TAG = "PcmDecoder";
+
+    static final int SAMPLE_RATE = 8000;
+    static final int BYTES_PER_SAMPLE = 2;
+
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+
+    private PcmDecoder() {
+    }
+
+    /**
+     * Decode {@code source} into {@code target}.
+     *
+     * @return the number of samples written
+     */
+    static long decode(File source, File target) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+            extractor.setDataSource(source.getAbsolutePath());
+
+            MediaFormat format = selectAudioTrack(extractor);
+            if (format == null) {
+                throw new IOException("No audio track in " + source.getName());
+            }
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            Converter converter = new Converter(
+                format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+
+            long written = 0;
+            boolean inputDone = false;
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+            while (true) {
+                if (!inputDone) {
+                    int inIndex = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+                    if (inIndex >= 0) {
+                        ByteBuffer input = inputBuffer(codec, inIndex);
+                        int size = extractor.readSampleData(input, 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(inIndex, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int outIndex = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+                if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    // The decoder knows the real rate/channels better than the container
+                    MediaFormat outFormat = codec.getOutputFormat();
+                    converter = new Converter(
+                        outFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                        outFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+                } else if (outIndex >= 0) {
+                    if (info.size > 0) {
+                        ByteBuffer output = outputBuffer(codec, outIndex);
+                        output.position(info.offset);
+                        output.limit(info.offset + info.size);
+                        written += converter.convert(output.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer(), out);
+                    }
+                    codec.releaseOutputBuffer(outIndex, false);
+
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        written += converter.finish(out);
+                        break;
+                    }
+                }
+            }
+
+            Log.d(TAG, "Decoded " + source.getName() + " to " + written + " samples ("
+                + (written * 1000 / SAMPLE_RATE) + "ms)");
+            return written;
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (Exception e) {
+                    Log.w(TAG, "Error stopping decoder", e);
+                }
+                codec.release();
+            }
+            extractor.release();
+        }
+    }
+
+    private static MediaFormat selectAudioTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static ByteBuffer inputBuffer(MediaCodec codec, int index) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return codec.getInputBuffer(index);
+        }
+        ByteBuffer buffer = codec.getInputBuffers()[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static ByteBuffer outputBuffer(MediaCodec codec, int index) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return codec.getOutputBuffer(index);
+        }
+        return codec.getOutputBuffers()[index];
+    }
+
+    /** Downmixes and resamples decoder output to 8 kHz mono, carrying state across buffers. */
+    private static class Converter {
+        private final int channels;
+        private final Resampler resampler;
+
+        // Reused between buffers; only grow if the decoder hands over a bigger one
+        private short[] samples = new short[0];
+        private short[] resampled = new short[0];
+        private byte[] bytes = new byte[0];
+
+        Converter(int sampleRate, int channels) {
+            this.channels = Math.max(1, channels);
+            this.resampler = new Resampler(sampleRate, SAMPLE_RATE);
+        }
+
+        long convert(ShortBuffer input, OutputStream out) throws IOException {
+            int length = input.remaining();
+            if (samples.length < length) {
+                samples = new short[length];
+            }
+            input.get(samples, 0, length);
+
+            int frames = Downmixer.downmix(samples, 0, length / channels, channels, samples, 0);
+            return write(resampler.maxOutput(frames), out, frames);
+        }
+
+        /** Write out what is left in the resampler at the end of the stream. */
+        long finish(OutputStream out) throws IOException {
+            return write(resampler.maxOutput(resampler.getTapsPerPhase()), out, -1);
+        }
+
+        private long write(int capacity, OutputStream out, int frames) throws IOException {
+            if (resampled.length < capacity) {
+                resampled = new short[capacity];
+                bytes = new byte[capacity * BYTES_PER_SAMPLE];
+            }
+
+            int count = frames >= 0
+                ? resampler.process(samples, 0, frames, resampled, 0)
+                : resampler.flush(resampled, 0);
+
+            for (int i = 0; i < count; i++) {
+                bytes[i * 2] = (byte) resampled[i];
+                bytes[i * 2 + 1] = (byte) (resampled[i] >> 8);
+            }
+            out.write(bytes, 0, count * BYTES_PER_SAMPLE);
+            return count;
+        }
+    }
+}
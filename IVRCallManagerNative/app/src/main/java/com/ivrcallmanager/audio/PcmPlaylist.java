@@ -0,0 +1,373 @@
+package com.ivrcallmanager.audio;
+
+import android.media.AudioTrack;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.ivrcallmanager.utils.TaskScheduler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Plays decoded PCM (see {@link PcmCache}) into a call as a queue of
+ * segments on one AudioTrack that keeps playing from {@link #open} to
+ * {@link #close}. Each segment is written straight behind the one before it,
+ * so prompts chained together play without a gap and without the track
+ * being stopped, flushed or set up again in between.
+ *
+ * Start and end events are reported on the main thread when the track's
+ * play head actually reaches a segment, not when it is written.
+ * {@link #skip} and {@link #cancel} pause and flush the track on the calling
+ * thread, so the cut is heard at once; the writer catches up within one
+ * chunk.
+ */
+public class PcmPlaylist {
+
+    private static final String TAG = "PcmPlaylist";
+
+    // 100 ms of 8 kHz 16-bit mono per AudioTrack write
+    static final int CHUNK_BYTES = 1600;
+    // How often an idle writer checks for new segments and finished ones
+    private static final long IDLE_POLL_MS = 20;
+    // Grace after a segment's length before it counts as played anyway
+    private static final long END_GRACE_MS = 1000;
+
+    public static final class Segment {
+        public final int audioFileId;
+        public final long durationMs;
+        final File pcm;
+        final Object tag;
+
+        // Writer thread state
+        ByteBuffer samples;
+        long startFrame;
+        long endFrame = -1;
+        long deadline;
+        boolean started;
+
+        Segment(int audioFileId, File pcm, Object tag) {
+            this.audioFileId = audioFileId;
+            this.pcm = pcm;
+            this.tag = tag;
+            this.durationMs = PcmCache.durationMs(pcm);
+        }
+    }
+
+    public interface Listener {
+        void onSegmentStarted(Segment segment);
+
+        /** {@code completed} is false if the segment was skipped, cancelled or cut off by {@link #close}. */
+        void onSegmentEnded(Segment segment, long playedMs, boolean completed);
+
+        void onFailed(Exception e);
+    }
+
+    private final PcmCache pcmCache;
+    private final TaskScheduler scheduler;
+    private final Listener listener;
+    private final Handler mainHandler;
+
+    private final Object lock = new Object();
+    // Guarded by lock
+    private final ArrayDeque<Segment> pending = new ArrayDeque<>();
+    private int active;
+
+    private volatile AudioTrack track;
+    private volatile int session;
+    private volatile boolean open;
+    private volatile int skips;
+    private volatile int cancels;
+
+    // Writer thread state
+    private final ArrayDeque<Segment> scheduled = new ArrayDeque<>();
+    // Copy buffer for AudioTrack writes before Lollipop
+    private final byte[] chunk = new byte[CHUNK_BYTES];
+    private long base;
+    private long framesWritten;
+
+    public PcmPlaylist(PcmCache pcmCache, TaskScheduler scheduler, Listener listener) {
+        this.pcmCache = pcmCache;
+        this.scheduler = scheduler;
+        this.listener = listener;
+        this.mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /** Whether nothing is queued or playing. */
+    public boolean isIdle() {
+        synchronized (lock) {
+            return pending.isEmpty() && active == 0;
+        }
+    }
+
+    /**
+     * Start playing {@code track} and writing whatever is queued to it, on the
+     * audio lane. Returns false, leaving the playlist closed, if the lane has
+     * no room for the writer.
+     */
+    public boolean open(AudioTrack track) {
+        if (open) return true;
+
+        this.track = track;
+        int current = ++session;
+        open = true;
+        if (!scheduler.execute(TaskScheduler.Lane.AUDIO, () -> run(track, current))) {
+            open = false;
+            return false;
+        }
+        return true;
+    }
+
+    /** Queue a segment behind everything already queued. {@code tag} comes back with its events. */
+    public Segment add(int audioFileId, File pcm, Object tag) {
+        Segment segment = new Segment(audioFileId, pcm, tag);
+        synchronized (lock) {
+            pending.add(segment);
+        }
+        return segment;
+    }
+
+    /** Cut off the segment playing now and go on with the next one. */
+    public void skip() {
+        skips++;
+        silence();
+    }
+
+    /** Cut off the segment playing now and drop everything queued behind it. */
+    public void cancel() {
+        synchronized (lock) {
+            pending.clear();
+        }
+        cancels++;
+        silence();
+    }
+
+    /** Cancel everything and stop the track; the track itself stays with its owner. */
+    public void close() {
+        if (!open) return;
+
+        session++;
+        cancel();
+        open = false;
+    }
+
+    private void silence() {
+        AudioTrack current = track;
+        if (current == null || !open) return;
+
+        try {
+            current.pause();
+            current.flush();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "AudioTrack already stopped");
+        }
+    }
+
+    // Runs on the audio lane for as long as the playlist is open; allocates nothing per chunk
+    private void run(AudioTrack track, int current) {
+        int skipsSeen = skips;
+        int cancelsSeen = cancels;
+        Segment writing = null;
+
+        try {
+            track.play();
+            base = head(track);
+            framesWritten = 0;
+
+            while (session == current) {
+                if (skips != skipsSeen || cancels != cancelsSeen) {
+                    boolean all = cancels != cancelsSeen;
+                    skipsSeen = skips;
+                    cancelsSeen = cancels;
+                    cut(track, all);
+                    writing = null;
+                    continue;
+                }
+
+                if (writing == null) {
+                    writing = next();
+                    if (writing == null) {
+                        report(track);
+                        Thread.sleep(IDLE_POLL_MS);
+                        continue;
+                    }
+                }
+
+                int size = Math.min(CHUNK_BYTES, writing.samples.remaining());
+                int written = write(track, writing.samples, size, current, skipsSeen, cancelsSeen);
+                if (written < 0) {
+                    throw new IOException("AudioTrack write failed: " + written);
+                }
+                framesWritten += written / PcmDecoder.BYTES_PER_SAMPLE;
+
+                if (!writing.samples.hasRemaining()) {
+                    writing.endFrame = framesWritten;
+                    writing = null;
+                }
+                report(track);
+            }
+
+        } catch (Exception e) {
+            if (session == current) {
+                Log.e(TAG, "Error during audio injection", e);
+                open = false;
+                synchronized (lock) {
+                    pending.clear();
+                }
+                mainHandler.post(() -> listener.onFailed(e));
+            }
+        } finally {
+            try {
+                track.pause();
+                track.flush();
+                track.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "AudioTrack already stopped");
+            }
+            endAll(track);
+        }
+    }
+
+    // The next queued segment, mapped and placed behind what has been written
+    private Segment next() {
+        while (true) {
+            Segment segment;
+            synchronized (lock) {
+                segment = pending.poll();
+                if (segment == null) return null;
+                active++;
+            }
+
+            try {
+                if (segment.samples == null) {
+                    segment.samples = pcmCache.map(segment.pcm);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Skipping unreadable audio " + segment.audioFileId, e);
+                synchronized (lock) {
+                    active--;
+                }
+                continue;
+            }
+
+            segment.startFrame = framesWritten;
+            segment.endFrame = -1;
+            segment.started = false;
+            // Whatever is still buffered plays first, which is well under the grace
+            segment.deadline = SystemClock.elapsedRealtime() + segment.durationMs + END_GRACE_MS;
+            scheduled.add(segment);
+            return segment;
+        }
+    }
+
+    // Post the start and end of every segment the play head has reached
+    private void report(AudioTrack track) {
+        long played = head(track) - base;
+        long now = SystemClock.elapsedRealtime();
+
+        while (!scheduled.isEmpty()) {
+            Segment segment = scheduled.peek();
+            if (!segment.started && played >= segment.startFrame) {
+                segment.started = true;
+                mainHandler.post(() -> listener.onSegmentStarted(segment));
+            }
+
+            boolean written = segment.endFrame >= 0;
+            if (!written || (played < segment.endFrame && now < segment.deadline)) return;
+
+            scheduled.poll();
+            end(segment, segment.durationMs, true);
+        }
+    }
+
+    // After a skip or cancel: silence what is buffered, end the segment that
+    // was playing, and put any segment already written behind it back in line
+    private void cut(AudioTrack track, boolean all) {
+        long played = head(track) - base;
+        track.pause();
+        track.flush();
+
+        Segment playing = scheduled.poll();
+        if (playing != null) {
+            end(playing, framesToMs(Math.max(0, played - playing.startFrame)), false);
+        }
+
+        if (all) {
+            endAll(track);
+        } else {
+            Segment later;
+            while ((later = scheduled.pollLast()) != null) {
+                later.samples.position(0);
+                synchronized (lock) {
+                    active--;
+                    pending.addFirst(later);
+                }
+            }
+        }
+
+        track.play();
+        base = head(track);
+        framesWritten = 0;
+    }
+
+    // Segments still in the track when it is flushed or stopped
+    private void endAll(AudioTrack track) {
+        long played = head(track) - base;
+        Segment segment;
+        while ((segment = scheduled.poll()) != null) {
+            end(segment, framesToMs(Math.max(0, played - segment.startFrame)), false);
+        }
+    }
+
+    private void end(Segment segment, long playedMs, boolean completed) {
+        boolean started = segment.started;
+        synchronized (lock) {
+            active--;
+        }
+        if (!started && !completed) return;
+
+        long clamped = Math.min(playedMs, segment.durationMs);
+        mainHandler.post(() -> {
+            if (!started) listener.onSegmentStarted(segment);
+            listener.onSegmentEnded(segment, clamped, completed);
+        });
+    }
+
+    /**
+     * Write the next {@code size} bytes of the mapped PCM, advancing its
+     * position. On Lollipop and later the mapped buffer goes to the track
+     * directly; older releases copy through one reused array.
+     */
+    private int write(AudioTrack track, ByteBuffer samples, int size, int current, int skipsSeen, int cancelsSeen) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return track.write(samples, size, AudioTrack.WRITE_BLOCKING);
+        }
+
+        samples.get(chunk, 0, size);
+        int offset = 0;
+        while (offset < size && session == current && skips == skipsSeen && cancels == cancelsSeen) {
+            int written = track.write(chunk, offset, size - offset);
+            if (written < 0) return written;
+            offset += written;
+        }
+        return offset;
+    }
+
+    // Head position is not reset reliably between calls on a reused track
+    private static long head(AudioTrack track) {
+        return track.getPlaybackHeadPosition() & 0xffffffffL;
+    }
+
+    private static long framesToMs(long frames) {
+        return frames * 1000 / PcmDecoder.SAMPLE_RATE;
+    }
+}
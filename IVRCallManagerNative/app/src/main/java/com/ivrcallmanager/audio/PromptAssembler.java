@@ -0,0 +1,244 @@
+package com.ivrcallmanager.audio;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Builds a personalised message out of short recorded fragments, from the
+ * {@code prompt} a campaign's call template puts in each call command:
+ * <pre>
+ * { "parts": [ { "type": "audio", "audioFileId": 12 },
+ *              { "type": "variable", "variable": "name" },
+ *              { "type": "number", "variable": "amount" },
+ *              { "type": "digits", "variable": "accountNo" },
+ *              { "type": "date", "variable": "dueDate" } ],
+ *   "fragments": { "0": 40, ..., "99": 139, "hundred": 140, "thousand": 141,
+ *                  "lakh": 142, "crore": 143, "point": 144,
+ *                  "day_1": 150, ..., "month_1": 190, ...,
+ *                  "name:ravi": 300 },
+ *   "variables": { "name": "Ravi", "amount": "125000", ... } }
+ * </pre>
+ * Numbers are read in the Indian system (crore, lakh, thousand, hundred,
+ * then 0-99 as one fragment each), digits one by one, and dates as day,
+ * month and year. A variable part plays the fragment recorded for its
+ * value, and is left out if there is none.
+ *
+ * The result is the list of audio files to play back to back; their PCM is
+ * played in place by {@link PcmPlaylist}, so nothing is copied or
+ * re-encoded per contact. Sequences for values that recur across contacts
+ * (the same amount, date or name) are kept, so they are resolved only once.
+ */
+public class PromptAssembler {
+
+    private static final String TAG = "PromptAssembler";
+
+    private static final int CACHED_SEQUENCES = 256;
+
+    // Fragment keys by part type and value; the template maps them to audio files on each use
+    private final LruCache<String, String[]> sequences = new LruCache<>(CACHED_SEQUENCES);
+
+    /**
+     * The audio files to play for this prompt, in order. Throws if a part
+     * needs a fragment the template does not have, or a value cannot be read.
+     */
+    public int[] assemble(JSONObject prompt) throws JSONException {
+        JSONArray parts = prompt.getJSONArray("parts");
+        JSONObject fragments = prompt.optJSONObject("fragments");
+        JSONObject variables = prompt.optJSONObject("variables");
+        if (fragments == null) fragments = new JSONObject();
+        if (variables == null) variables = new JSONObject();
+
+        List<int[]> pieces = new ArrayList<>();
+        int total = 0;
+        for (int i = 0; i < parts.length(); i++) {
+            int[] piece = resolve(parts.getJSONObject(i), fragments, variables);
+            pieces.add(piece);
+            total += piece.length;
+        }
+
+        int[] sequence = new int[total];
+        int offset = 0;
+        for (int[] piece : pieces) {
+            System.arraycopy(piece, 0, sequence, offset, piece.length);
+            offset += piece.length;
+        }
+        return sequence;
+    }
+
+    /** Every audio file the prompt could use, for prefetching before its call comes up. */
+    public static Set<Integer> audioFileIds(JSONObject prompt) {
+        Set<Integer> ids = new LinkedHashSet<>();
+
+        JSONArray parts = prompt.optJSONArray("parts");
+        if (parts != null) {
+            for (int i = 0; i < parts.length(); i++) {
+                JSONObject part = parts.optJSONObject(i);
+                int audioFileId = part != null ? part.optInt("audioFileId", 0) : 0;
+                if (audioFileId > 0) ids.add(audioFileId);
+            }
+        }
+
+        JSONObject fragments = prompt.optJSONObject("fragments");
+        if (fragments != null) {
+            Iterator<String> keys = fragments.keys();
+            while (keys.hasNext()) {
+                int audioFileId = fragments.optInt(keys.next(), 0);
+                if (audioFileId > 0) ids.add(audioFileId);
+            }
+        }
+        return ids;
+    }
+
+    private int[] resolve(JSONObject part, JSONObject fragments, JSONObject variables) throws JSONException {
+        String type = part.optString("type", "audio");
+        if ("audio".equals(type)) {
+            return new int[] { part.getInt("audioFileId") };
+        }
+
+        String name = part.getString("variable");
+        String value = variables.optString(name, "").trim();
+        if (value.isEmpty()) {
+            throw new JSONException("No value for prompt variable " + name);
+        }
+
+        String[] words = sequences.get(type + "|" + name + "|" + value);
+        if (words == null) {
+            words = spell(type, name, value);
+            sequences.put(type + "|" + name + "|" + value, words);
+        }
+
+        int[] piece = new int[words.length];
+        for (int i = 0; i < piece.length; i++) {
+            int audioFileId = fragments.optInt(words[i], 0);
+            if (audioFileId <= 0) {
+                if ("variable".equals(type)) {
+                    Log.w(TAG, "No fragment recorded for " + words[i] + "; leaving it out");
+                    return new int[0];
+                }
+                throw new JSONException("No fragment for " + words[i] + " in " + type + " " + value);
+            }
+            piece[i] = audioFileId;
+        }
+        return piece;
+    }
+
+    private static String[] spell(String type, String name, String value) throws JSONException {
+        List<String> words = new ArrayList<>();
+        switch (type) {
+            case "number":
+                number(value, words);
+                break;
+            case "digits":
+                digits(value, words);
+                break;
+            case "date":
+                date(value, words);
+                break;
+            case "variable":
+                words.add(name + ":" + value.toLowerCase(Locale.ROOT));
+                break;
+            default:
+                throw new JSONException("Unknown prompt part " + type);
+        }
+        return words.toArray(new String[0]);
+    }
+
+    // 1,25,000.75 -> 1 lakh 25 thousand point 7 5
+    private static void number(String value, List<String> words) throws JSONException {
+        String plain = value.replace(",", "");
+        int dot = plain.indexOf('.');
+        String whole = dot >= 0 ? plain.substring(0, dot) : plain;
+        String fraction = dot >= 0 ? plain.substring(dot + 1) : "";
+
+        long n;
+        try {
+            n = Long.parseLong(whole.isEmpty() ? "0" : whole);
+        } catch (NumberFormatException e) {
+            throw new JSONException("Not a number: " + value);
+        }
+        if (n < 0) {
+            throw new JSONException("Negative numbers are not supported: " + value);
+        }
+
+        if (n == 0) {
+            words.add("0");
+        } else {
+            wholeNumber(n, words);
+        }
+
+        // Trailing zeros are not read out
+        fraction = fraction.replaceAll("0+$", "");
+        if (!fraction.isEmpty()) {
+            words.add("point");
+            digits(fraction, words);
+        }
+    }
+
+    private static void wholeNumber(long n, List<String> words) {
+        if (n >= 10000000) {
+            // Crores can themselves run into lakhs and thousands
+            wholeNumber(n / 10000000, words);
+            words.add("crore");
+            n %= 10000000;
+        }
+        if (n >= 100000) {
+            words.add(String.valueOf(n / 100000));
+            words.add("lakh");
+            n %= 100000;
+        }
+        if (n >= 1000) {
+            words.add(String.valueOf(n / 1000));
+            words.add("thousand");
+            n %= 1000;
+        }
+        if (n >= 100) {
+            words.add(String.valueOf(n / 100));
+            words.add("hundred");
+            n %= 100;
+        }
+        if (n > 0) {
+            words.add(String.valueOf(n));
+        }
+    }
+
+    private static void digits(String value, List<String> words) throws JSONException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                words.add(String.valueOf(c));
+            } else if (c != ' ' && c != '-') {
+                throw new JSONException("Not a digit string: " + value);
+            }
+        }
+    }
+
+    // yyyy-MM-dd, optionally followed by a time
+    private static void date(String value, List<String> words) throws JSONException {
+        int year, month, day;
+        try {
+            year = Integer.parseInt(value.substring(0, 4));
+            month = Integer.parseInt(value.substring(5, 7));
+            day = Integer.parseInt(value.substring(8, 10));
+        } catch (RuntimeException e) {
+            throw new JSONException("Not a yyyy-MM-dd date: " + value);
+        }
+        if (month < 1 || month > 12 || day < 1 || day > 31) {
+            throw new JSONException("Not a valid date: " + value);
+        }
+
+        words.add("day_" + day);
+        words.add("month_" + month);
+        wholeNumber(year, words);
+    }
+}
@@ -0,0 +1,126 @@
+package com.ivrcallmanager.audio;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Feeds a player from an audio file that is still downloading.
+ *
+ * Reads are served from a small read-ahead window over the part file. When
+ * the player catches up with the download, the read blocks until more bytes
+ * arrive, so playback pauses instead of ending early; only a download that
+ * fails, or stalls for longer than {@link #STALL_TIMEOUT_MS}, ends it with an
+ * error.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+class StreamingAudioSource extends MediaDataSource {
+
+    private static final String TAG = "StreamingAudioSource";
+
+    private static final int READ_AHEAD_BYTES = 64 * 1024;
+    private static final long STALL_TIMEOUT_MS = 15000;
+    // Wake up this often while stalled to notice close()
+    private static final long STALL_POLL_MS = 250;
+
+    private final int audioFileId;
+    private final AudioCache.Download download;
+    private final RandomAccessFile file;
+
+    private final byte[] window = new byte[READ_AHEAD_BYTES];
+    private long windowStart = 0;
+    private int windowLength = 0;
+
+    private volatile boolean closed = false;
+    private int stalls = 0;
+    private long stalledMs = 0;
+
+    StreamingAudioSource(int audioFileId, AudioCache.Download download) throws IOException {
+        this.audioFileId = audioFileId;
+        this.download = download;
+        // Stays valid when the finished part is renamed into the cache
+        this.file = new RandomAccessFile(download.getFile(), "r");
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (size == 0) return 0;
+
+        if (position < windowStart || position >= windowStart + windowLength) {
+            fill(position);
+            if (windowLength == 0) return -1;
+        }
+
+        int length = (int) Math.min(size, windowStart + windowLength - position);
+        System.arraycopy(window, (int) (position - windowStart), buffer, offset, length);
+        return length;
+    }
+
+    @Override
+    public long getSize() {
+        return download.getTotal();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        synchronized (this) {
+            file.close();
+        }
+
+        if (stalls > 0) {
+            Log.d(TAG, "Audio " + audioFileId + " stalled " + stalls + " times (" + stalledMs + "ms)");
+        }
+    }
+
+    private void fill(long position) throws IOException {
+        windowLength = 0;
+        long available = download.getAvailable();
+
+        if (available <= position && !download.isComplete()) {
+            available = awaitBytes(position);
+        }
+
+        if (available <= position) {
+            // Past the end of a finished download
+            return;
+        }
+
+        int length = (int) Math.min(window.length, available - position);
+        file.seek(position);
+        file.readFully(window, 0, length);
+        windowStart = position;
+        windowLength = length;
+    }
+
+    private long awaitBytes(long position) throws IOException {
+        long started = SystemClock.elapsedRealtime();
+        stalls++;
+        Log.w(TAG, "Playback of audio " + audioFileId + " caught up with the download at " + position);
+
+        try {
+            long available = download.getAvailable();
+            while (available <= position && !download.isComplete()) {
+                if (closed) throw new IOException("Stream closed");
+                if (download.isFailed()) throw new IOException("Download failed");
+                if (SystemClock.elapsedRealtime() - started > STALL_TIMEOUT_MS) {
+                    throw new IOException("Download stalled");
+                }
+                available = download.awaitAvailable(position, STALL_POLL_MS);
+            }
+            return available;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for audio");
+        } finally {
+            stalledMs += SystemClock.elapsedRealtime() - started;
+        }
+    }
+}
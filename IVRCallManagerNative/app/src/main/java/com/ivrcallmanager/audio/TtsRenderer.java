@@ -0,0 +1,172 @@
+package com.ivrcallmanager.audio;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
+import android.util.Log;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Speaks prompt text with the device's text-to-speech engine into the
+ * {@link PcmCache}, so a prompt without a recording plays like any other.
+ *
+ * Speech is rendered to a WAV file and decoded to the cache's 8 kHz PCM,
+ * keyed by a hash of the text, language and engine; a text is only ever
+ * rendered once per voice. Rendering blocks for as long as the engine
+ * takes, so it is done when a flow is loaded, never once a call is up.
+ */
+public class TtsRenderer {
+
+    private static final String TAG = "TtsRenderer";
+
+    private static final long INIT_TIMEOUT_MS = 10000;
+    private static final long RENDER_TIMEOUT_MS = 30000;
+
+    private final PcmCache pcmCache;
+    private final File workDir;
+    private final TextToSpeech tts;
+    private final CountDownLatch initialized = new CountDownLatch(1);
+    private volatile boolean available = false;
+
+    // One utterance at a time, guarded by this
+    private CountDownLatch utteranceDone;
+    private volatile boolean utteranceFailed;
+
+    public TtsRenderer(Context context, PcmCache pcmCache) {
+        this.pcmCache = pcmCache;
+        this.workDir = new File(context.getCacheDir(), "tts");
+
+        if (!workDir.exists() && !workDir.mkdirs()) {
+            Log.e(TAG, "Could not create " + workDir);
+        }
+
+        tts = new TextToSpeech(context, status -> {
+            available = status == TextToSpeech.SUCCESS;
+            if (!available) {
+                Log.e(TAG, "Text-to-speech unavailable: " + status);
+            }
+            initialized.countDown();
+        });
+        tts.setOnUtteranceProgressListener(new UtteranceProgressListener() {
+            @Override
+            public void onStart(String utteranceId) {
+            }
+
+            @Override
+            public void onDone(String utteranceId) {
+                finishUtterance(false);
+            }
+
+            @Override
+            public void onError(String utteranceId) {
+                finishUtterance(true);
+            }
+        });
+    }
+
+    /**
+     * Speech for this text, rendered first if needed. Returns null if the
+     * engine is unavailable, lacks the language, or fails. Blocks; call it
+     * off the main thread.
+     */
+    public synchronized File render(String text, String language) {
+        String key = key(text, language);
+        File pcm = pcmCache.getRendered(key);
+        if (pcm != null) return pcm;
+
+        try {
+            if (!initialized.await(INIT_TIMEOUT_MS, TimeUnit.MILLISECONDS) || !available) {
+                Log.e(TAG, "Text-to-speech not ready; cannot render prompt");
+                return null;
+            }
+
+            int result = tts.setLanguage(locale(language));
+            if (result == TextToSpeech.LANG_MISSING_DATA || result == TextToSpeech.LANG_NOT_SUPPORTED) {
+                Log.e(TAG, "Text-to-speech has no voice for " + language);
+                return null;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                    && text.length() > TextToSpeech.getMaxSpeechInputLength()) {
+                Log.e(TAG, "Prompt text too long to render (" + text.length() + " chars)");
+                return null;
+            }
+
+            File wav = new File(workDir, key + ".wav");
+            long started = System.currentTimeMillis();
+            utteranceDone = new CountDownLatch(1);
+            utteranceFailed = false;
+
+            if (synthesize(text, wav, key) != TextToSpeech.SUCCESS) {
+                Log.e(TAG, "Text-to-speech refused prompt " + key);
+                return null;
+            }
+            if (!utteranceDone.await(RENDER_TIMEOUT_MS, TimeUnit.MILLISECONDS) || utteranceFailed || !wav.exists()) {
+                Log.e(TAG, "Text-to-speech failed to render prompt " + key);
+                wav.delete();
+                return null;
+            }
+
+            pcm = pcmCache.storeRendered(key, wav);
+            wav.delete();
+            Log.d(TAG, "Rendered " + text.length() + " chars of " + language + " speech in "
+                + (System.currentTimeMillis() - started) + "ms");
+            return pcm;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    public void shutdown() {
+        tts.shutdown();
+    }
+
+    @SuppressWarnings("deprecation")
+    private int synthesize(String text, File wav, String utteranceId) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return tts.synthesizeToFile(text, new Bundle(), wav, utteranceId);
+        }
+
+        HashMap<String, String> params = new HashMap<>();
+        params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, utteranceId);
+        return tts.synthesizeToFile(text, params, wav.getAbsolutePath());
+    }
+
+    private void finishUtterance(boolean failed) {
+        CountDownLatch done = utteranceDone;
+        utteranceFailed = failed;
+        if (done != null) {
+            done.countDown();
+        }
+    }
+
+    // Same text in another language or from another engine is different audio
+    private String key(String text, String language) {
+        String voice = tts.getDefaultEngine() + "/" + locale(language);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((voice + "\n" + text).getBytes("UTF-8"));
+            return AudioCache.toHex(digest.digest()).substring(0, 32);
+        } catch (Exception e) {
+            // SHA-256 and UTF-8 are always there
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Language tags like "en", "hi-IN" or "en_IN"
+    private static Locale locale(String language) {
+        if (language == null || language.isEmpty()) return Locale.getDefault();
+
+        String[] parts = language.split("[-_]");
+        return parts.length > 1 ? new Locale(parts[0], parts[1]) : new Locale(parts[0]);
+    }
+}
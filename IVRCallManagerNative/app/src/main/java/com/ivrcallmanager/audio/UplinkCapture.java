@@ -0,0 +1,189 @@
+package com.ivrcallmanager.audio;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Reads the audio of the call in progress as 8 kHz mono PCM and hands it, in
+ * 20 ms frames, to every registered detector.
+ *
+ * Prefers the far end alone (VOICE_DOWNLINK), then the call mix, then the
+ * communication microphone; the first two need privileges most installs do
+ * not have. On some devices the call audio comes through as silence, which
+ * the detectors have to allow for.
+ */
+public class UplinkCapture {
+
+    private static final String TAG = "UplinkCapture";
+
+    public static final int SAMPLE_RATE = 8000;
+    public static final int FRAME_SAMPLES = 160;
+    public static final int FRAME_MS = FRAME_SAMPLES * 1000 / SAMPLE_RATE;
+
+    private static final int[] SOURCES = {
+        MediaRecorder.AudioSource.VOICE_DOWNLINK,
+        MediaRecorder.AudioSource.VOICE_CALL,
+        MediaRecorder.AudioSource.VOICE_COMMUNICATION
+    };
+
+    public interface FrameListener {
+        /** Runs on the capture thread; the frame array is reused once this returns. */
+        void onFrame(short[] frame, int length);
+    }
+
+    private final Context context;
+    private final Executor executor;
+
+    // Copied on write so the capture loop can iterate without locking or allocating
+    private volatile FrameListener[] listeners = new FrameListener[0];
+    // Bumped by start() and stop(); a capture loop runs only while its session is current
+    private volatile int session = 0;
+    private volatile boolean running = false;
+    private volatile int source = -1;
+
+    private final short[] frame = new short[FRAME_SAMPLES];
+
+    public UplinkCapture(Context context, Executor executor) {
+        this.context = context;
+        this.executor = executor;
+    }
+
+    public synchronized void addListener(FrameListener listener) {
+        for (FrameListener existing : listeners) {
+            if (existing == listener) return;
+        }
+
+        FrameListener[] updated = new FrameListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, updated, 0, listeners.length);
+        updated[listeners.length] = listener;
+        listeners = updated;
+    }
+
+    public synchronized void removeListener(FrameListener listener) {
+        int index = -1;
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) return;
+
+        FrameListener[] updated = new FrameListener[listeners.length - 1];
+        System.arraycopy(listeners, 0, updated, 0, index);
+        System.arraycopy(listeners, index + 1, updated, index, listeners.length - index - 1);
+        listeners = updated;
+    }
+
+    /** Start capturing. Returns false if the app may not record audio or the capture lane is busy. */
+    public synchronized boolean start() {
+        if (running) return true;
+
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.RECORD_AUDIO)
+            != PackageManager.PERMISSION_GRANTED) {
+            Log.w(TAG, "RECORD_AUDIO not granted, call audio detectors are disabled");
+            return false;
+        }
+
+        running = true;
+        int current = ++session;
+        try {
+            executor.execute(() -> capture(current));
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Capture lane busy, call audio detectors are disabled");
+            running = false;
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized void stop() {
+        running = false;
+        session++;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /** The MediaRecorder.AudioSource in use, or -1 while not capturing. */
+    public int getSource() {
+        return source;
+    }
+
+    private void capture(int current) {
+        AudioRecord record = open();
+        if (record == null) {
+            Log.w(TAG, "No audio source available for call capture");
+            synchronized (this) {
+                if (session == current) running = false;
+            }
+            return;
+        }
+
+        try {
+            record.startRecording();
+
+            while (session == current) {
+                int length = 0;
+                while (length < frame.length) {
+                    int read = record.read(frame, length, frame.length - length);
+                    if (read <= 0) {
+                        throw new IllegalStateException("AudioRecord read failed: " + read);
+                    }
+                    length += read;
+                }
+
+                for (FrameListener listener : listeners) {
+                    listener.onFrame(frame, length);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error capturing call audio", e);
+        } finally {
+            try {
+                record.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "AudioRecord was not recording");
+            }
+            record.release();
+            source = -1;
+            synchronized (this) {
+                if (session == current) running = false;
+            }
+        }
+    }
+
+    @SuppressWarnings("MissingPermission")
+    private AudioRecord open() {
+        int minBuffer = AudioRecord.getMinBufferSize(SAMPLE_RATE,
+            AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        int bufferSize = Math.max(minBuffer, FRAME_SAMPLES * 2 * 10);
+
+        for (int candidate : SOURCES) {
+            try {
+                AudioRecord record = new AudioRecord(candidate, SAMPLE_RATE,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+                if (record.getState() == AudioRecord.STATE_INITIALIZED) {
+                    source = candidate;
+                    Log.d(TAG, "Capturing call audio from source " + candidate);
+                    return record;
+                }
+                record.release();
+            } catch (Exception e) {
+                Log.d(TAG, "Audio source " + candidate + " unavailable: " + e.getMessage());
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,160 @@
+package com.ivrcallmanager.call;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.ivrcallmanager.audio.UplinkCapture;
+import com.ivrcallmanager.dsp.EnergyVad;
+
+/**
+ * Decides when an outgoing call has been answered, so the message starts when
+ * someone is listening rather than after a fixed delay.
+ *
+ * Android only reports off-hook for outgoing calls, which happens at dial time,
+ * so the decision comes from the call audio:
+ * <ul>
+ *   <li>speech: sound whose level varies like a voice does, as opposed to the
+ *       steady level of a ringback tone;</li>
+ *   <li>silent pickup: the ringback has been heard, then silence for longer
+ *       than any ringback pause;</li>
+ *   <li>fallback: nothing has been heard at all by the fallback delay, which
+ *       means the call audio cannot be captured on this device.</li>
+ * </ul>
+ */
+public class AnswerDetector implements UplinkCapture.FrameListener {
+
+    private static final String TAG = "AnswerDetector";
+
+    // 300 ms of sound is needed to judge whether it is speech
+    private static final int SPEECH_WINDOW_FRAMES = 15;
+    /** Speech already heard when the answer is reported as "speech". */
+    public static final int SPEECH_WINDOW_MS = SPEECH_WINDOW_FRAMES * UplinkCapture.FRAME_MS;
+    // Level spread above which sound is speech rather than a tone
+    private static final float SPEECH_MIN_STDDEV_DB = 4f;
+    // Longer than the pause of any common ringback cadence
+    private static final long SILENT_PICKUP_MS = 5000;
+
+    public interface Listener {
+        /** Runs on the main thread. {@code signal} is "speech", "silence" or "fallback". */
+        void onAnswered(String signal);
+    }
+
+    private final UplinkCapture capture;
+    private final Handler handler;
+
+    private volatile Listener listener;
+    private long begunAt;
+
+    // Capture thread state, guarded by this
+    private final EnergyVad vad = new EnergyVad();
+    private final float[] levels = new float[SPEECH_WINDOW_FRAMES];
+    private int levelCount;
+    private long frames;
+    private long lastSoundFrame;
+    private boolean heardSound;
+    private boolean decided;
+
+    private final Runnable fallback = this::onFallback;
+
+    public AnswerDetector(UplinkCapture capture) {
+        this.capture = capture;
+        this.handler = new Handler(Looper.getMainLooper());
+    }
+
+    /** Start watching a call that just went off-hook. */
+    public void begin(long fallbackMs, Listener listener) {
+        cancel();
+
+        synchronized (this) {
+            vad.reset();
+            levelCount = 0;
+            frames = 0;
+            lastSoundFrame = 0;
+            heardSound = false;
+            decided = false;
+        }
+
+        this.listener = listener;
+        begunAt = SystemClock.elapsedRealtime();
+        capture.addListener(this);
+        handler.postDelayed(fallback, fallbackMs);
+    }
+
+    public void cancel() {
+        listener = null;
+        handler.removeCallbacks(fallback);
+        capture.removeListener(this);
+    }
+
+    @Override
+    public synchronized void onFrame(short[] frame, int length) {
+        if (listener == null || decided) return;
+        frames++;
+
+        if (vad.process(frame, 0, length)) {
+            heardSound = true;
+            lastSoundFrame = frames;
+
+            // Hangover frames have the level of the gap after a sound; counting them
+            // would make a cadenced ringback look as uneven as speech
+            if (vad.isAboveFloor()) {
+                levels[levelCount % SPEECH_WINDOW_FRAMES] = vad.getEnergyDb();
+                levelCount++;
+                if (levelCount >= SPEECH_WINDOW_FRAMES && spreadDb() >= SPEECH_MIN_STDDEV_DB) {
+                    decide("speech");
+                }
+            }
+        } else {
+            levelCount = 0;
+            if (heardSound && (frames - lastSoundFrame) * UplinkCapture.FRAME_MS >= SILENT_PICKUP_MS) {
+                decide("silence");
+            }
+        }
+    }
+
+    private void onFallback() {
+        boolean heard;
+        synchronized (this) {
+            heard = heardSound;
+            if (!heard) decided = true;
+        }
+
+        // The capture is working, so wait for it to hear the answer
+        if (!heard) {
+            answered(listener, "fallback");
+        }
+    }
+
+    private void decide(String signal) {
+        decided = true;
+        Listener target = listener;
+        handler.post(() -> answered(target, signal));
+    }
+
+    private void answered(Listener target, String signal) {
+        // Ignore a decision about a call that has since been cancelled or replaced
+        Listener current = listener;
+        if (current == null || current != target) return;
+
+        cancel();
+        Log.d(TAG, "Answer detected (" + signal + ") " + (SystemClock.elapsedRealtime() - begunAt) + "ms after off-hook");
+        current.onAnswered(signal);
+    }
+
+    // Standard deviation of the levels in the window
+    private float spreadDb() {
+        float sum = 0;
+        for (float level : levels) {
+            sum += level;
+        }
+        float mean = sum / levels.length;
+
+        float variance = 0;
+        for (float level : levels) {
+            variance += (level - mean) * (level - mean);
+        }
+        return (float) Math.sqrt(variance / levels.length);
+    }
+}
@@ -0,0 +1,83 @@
+package com.ivrcallmanager.call;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.ivrcallmanager.audio.UplinkCapture;
+import com.ivrcallmanager.dsp.CallProgressClassifier;
+import com.ivrcallmanager.dsp.CallProgressProfile;
+
+/**
+ * Listens to a call that has not been answered yet for the network's
+ * call-progress tones, so a busy or unreachable number can be failed within
+ * seconds instead of when the line finally drops.
+ */
+public class CallProgressMonitor implements UplinkCapture.FrameListener {
+
+    private static final String TAG = "CallProgressMonitor";
+
+    public interface Listener {
+        /** Runs on the main thread. Busy, congestion and SIT are the last result of a call. */
+        void onTone(CallProgressClassifier.Result result);
+    }
+
+    private final UplinkCapture capture;
+    private final Handler handler;
+
+    private volatile Listener listener;
+    private long begunAt;
+
+    // Capture thread state, guarded by this
+    private CallProgressClassifier classifier;
+    private CallProgressProfile profile;
+
+    public CallProgressMonitor(UplinkCapture capture) {
+        this.capture = capture;
+        this.handler = new Handler(Looper.getMainLooper());
+    }
+
+    /** Start listening with the tones of {@code profile}'s region. */
+    public void begin(CallProgressProfile profile, Listener listener) {
+        cancel();
+
+        synchronized (this) {
+            if (classifier == null || this.profile != profile) {
+                this.profile = profile;
+                classifier = new CallProgressClassifier(profile, UplinkCapture.SAMPLE_RATE, this::onDetected);
+            } else {
+                classifier.reset();
+            }
+        }
+
+        this.listener = listener;
+        begunAt = SystemClock.elapsedRealtime();
+        capture.addListener(this);
+    }
+
+    public void cancel() {
+        listener = null;
+        capture.removeListener(this);
+    }
+
+    @Override
+    public synchronized void onFrame(short[] frame, int length) {
+        if (listener == null) return;
+        classifier.process(frame, 0, length);
+    }
+
+    // Capture thread
+    private void onDetected(CallProgressClassifier.Result result) {
+        Listener target = listener;
+        if (target == null) return;
+
+        Log.d(TAG, result + " tone (" + profile.region + ") "
+            + (SystemClock.elapsedRealtime() - begunAt) + "ms after off-hook");
+        handler.post(() -> {
+            if (listener == target) {
+                target.onTone(result);
+            }
+        });
+    }
+}
@@ -0,0 +1,224 @@
+package com.ivrcallmanager.call;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+
+/**
+ * Owns the device's single call slot and feeds it from the {@link CommandQueue}.
+ *
+ * Only one call is dialed at a time. After each call the slot stays closed for
+ * a short gap so the radio can settle before the next dial. The gap adapts:
+ * when calls fail to connect it doubles, up to a limit, and each call that
+ * connects halves it again down to the configured minimum.
+ *
+ * All methods must be called on the main thread.
+ */
+public class CallScheduler {
+
+    private static final String TAG = "CallScheduler";
+
+    private static final long MAX_GAP_MS = 30000;
+    // Re-check interval while someone else's call holds the line
+    private static final long LINE_BUSY_RETRY_MS = 3000;
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    public interface Dialer {
+        /** False while the line is in use by a call this scheduler did not place. */
+        boolean isLineFree();
+
+        /**
+         * Start the command. Return true if it used the call slot, in which
+         * case {@link #onCallEnded(boolean)} must follow (possibly before this
+         * method returns), after {@link #onCallPlaced()} if the call was
+         * dialed; false if it was not a call.
+         */
+        boolean dial(JSONObject command);
+    }
+
+    /** Point-in-time scheduler metrics. */
+    public static class Metrics {
+        public final int queueDepth;
+        public final boolean slotBusy;
+        public final double utilisation;
+        public final double callsPerHour;
+        public final long currentGapMs;
+        public final long callsPlaced;
+        public final long failedStarts;
+
+        Metrics(int queueDepth, boolean slotBusy, double utilisation, double callsPerHour,
+                long currentGapMs, long callsPlaced, long failedStarts) {
+            this.queueDepth = queueDepth;
+            this.slotBusy = slotBusy;
+            this.utilisation = utilisation;
+            this.callsPerHour = callsPerHour;
+            this.currentGapMs = currentGapMs;
+            this.callsPlaced = callsPlaced;
+            this.failedStarts = failedStarts;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(java.util.Locale.US,
+                "queue=%d slot=%s utilisation=%.0f%% calls/h=%.1f gap=%dms placed=%d failed=%d",
+                queueDepth, slotBusy ? "busy" : "free", utilisation * 100, callsPerHour,
+                currentGapMs, callsPlaced, failedStarts);
+        }
+    }
+
+    private final CommandQueue queue;
+    private final Dialer dialer;
+    private final Handler handler;
+
+    private long minGapMs;
+    private long gapMs;
+
+    private boolean running = false;
+    private boolean slotBusy = false;
+    private boolean dispatchScheduled = false;
+    private long slotSince;
+    private long runningSince;
+    private long busyMs;
+    private long callsPlaced;
+    private long failedStarts;
+
+    // Dial times of calls in the last hour, for calls/hour
+    private final ArrayDeque<Long> recentCalls = new ArrayDeque<>();
+
+    private final Runnable dispatchRunnable = this::dispatch;
+
+    public CallScheduler(CommandQueue queue, Dialer dialer, long minGapMs) {
+        this.queue = queue;
+        this.dialer = dialer;
+        this.handler = new Handler(Looper.getMainLooper());
+        this.minGapMs = minGapMs;
+        this.gapMs = minGapMs;
+    }
+
+    public void start() {
+        if (running) return;
+
+        running = true;
+        runningSince = SystemClock.elapsedRealtime();
+        busyMs = 0;
+        recentCalls.clear();
+        scheduleDispatch(0);
+    }
+
+    /** Stop dialing new calls. A call in progress still reports its end. */
+    public void stop() {
+        running = false;
+        dispatchScheduled = false;
+        handler.removeCallbacks(dispatchRunnable);
+    }
+
+    /** New commands were added to the queue. */
+    public void onCommandsQueued() {
+        // A pending dispatch (e.g. waiting out the gap) will pick them up
+        if (running && !slotBusy && !dispatchScheduled) {
+            scheduleDispatch(0);
+        }
+    }
+
+    /** The call holding the slot has been dialed, so its command need not survive a restart. */
+    public void onCallPlaced() {
+        queue.complete();
+        if (!slotBusy) return;
+
+        // Counted here rather than on dispatch, so a slot spent preparing a call that never dials is not one
+        callsPlaced++;
+        recentCalls.addLast(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * The call holding the slot is over and its outcome has been reported.
+     *
+     * @param connected whether the call was answered; busy, unreachable and
+     *                  unanswered calls back the gap off
+     */
+    public void onCallEnded(boolean connected) {
+        queue.complete();
+        if (!slotBusy) return;
+
+        slotBusy = false;
+        busyMs += SystemClock.elapsedRealtime() - slotSince;
+
+        if (connected) {
+            gapMs = Math.max(minGapMs, gapMs / 2);
+        } else {
+            failedStarts++;
+            gapMs = Math.min(MAX_GAP_MS, Math.max(gapMs * 2, minGapMs));
+            Log.w(TAG, "Call did not connect, next gap " + gapMs + "ms");
+        }
+
+        if (running) {
+            handler.removeCallbacks(dispatchRunnable);
+            scheduleDispatch(gapMs);
+        }
+    }
+
+    public void setMinGapMs(long minGapMs) {
+        this.minGapMs = minGapMs;
+        this.gapMs = Math.max(gapMs, minGapMs);
+    }
+
+    public boolean isSlotBusy() {
+        return slotBusy;
+    }
+
+    public Metrics getMetrics() {
+        long now = SystemClock.elapsedRealtime();
+        long busy = busyMs + (slotBusy ? now - slotSince : 0);
+        long elapsed = running ? now - runningSince : 0;
+
+        pruneRecentCalls(now);
+        long window = Math.min(Math.max(elapsed, 1), HOUR_MS);
+
+        return new Metrics(
+            queue.size(),
+            slotBusy,
+            elapsed > 0 ? Math.min(1.0, (double) busy / elapsed) : 0,
+            recentCalls.size() * (double) HOUR_MS / window,
+            gapMs,
+            callsPlaced,
+            failedStarts);
+    }
+
+    private void scheduleDispatch(long delayMs) {
+        dispatchScheduled = true;
+        handler.postDelayed(dispatchRunnable, delayMs);
+    }
+
+    private void dispatch() {
+        dispatchScheduled = false;
+        if (!running || slotBusy) return;
+
+        if (!dialer.isLineFree()) {
+            scheduleDispatch(LINE_BUSY_RETRY_MS);
+            return;
+        }
+
+        JSONObject command;
+        while ((command = queue.poll()) != null) {
+            slotBusy = true;
+            slotSince = SystemClock.elapsedRealtime();
+
+            if (dialer.dial(command)) return;
+
+            // Not a call; the slot was never used
+            slotBusy = false;
+            queue.complete();
+        }
+    }
+
+    private void pruneRecentCalls(long now) {
+        while (!recentCalls.isEmpty() && now - recentCalls.peekFirst() > HOUR_MS) {
+            recentCalls.removeFirst();
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.ivrcallmanager.call;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.CallLog;
+import android.telephony.PhoneStateListener;
+import android.telephony.TelephonyCallback;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Follows the phone's call state for the outgoing call the dialer just placed.
+ *
+ * An outgoing call shows up as OFFHOOK while it is dialing or connected and
+ * goes back to IDLE when it ends, which is reported straight away so the next
+ * call can be dialed. Whether the call was answered and how long it lasted is
+ * then read from the system call log, since the call state alone does not
+ * tell an answered call from one that just rang out.
+ */
+public class CallStateMonitor {
+
+    private static final String TAG = "CallStateMonitor";
+
+    // The call must take the line within this long after it is placed
+    private static final long START_TIMEOUT_MS = 15000;
+    // Safety net in case the IDLE transition is never delivered
+    private static final long MAX_CALL_MS = 15 * 60 * 1000;
+
+    // The call log entry is written shortly after the line goes idle
+    private static final int CALL_LOG_ATTEMPTS = 5;
+    private static final long CALL_LOG_RETRY_MS = 400;
+
+    // Numbers are compared on their trailing digits to ignore country prefixes
+    private static final int NUMBER_MATCH_DIGITS = 7;
+
+    public interface Listener {
+        /** The call took the line (dialing, ringing or connected). */
+        void onCallStarted();
+
+        /** The line is idle again; the next call may be placed. */
+        void onLineIdle(long lineTimeMs);
+
+        /** Outcome of the call once the call log has been read. */
+        void onOutcome(Outcome outcome);
+
+        /** The call never took the line, or never released it after {@code lineTimeMs} on it. */
+        void onTimeout(boolean started, long lineTimeMs);
+    }
+
+    /** What the system recorded for a finished call. */
+    public static class Outcome {
+        // null when the call log could not be read
+        public final Boolean answered;
+        public final int durationSec;
+        public final int lineTimeSec;
+
+        Outcome(Boolean answered, int durationSec, int lineTimeSec) {
+            this.answered = answered;
+            this.durationSec = durationSec;
+            this.lineTimeSec = lineTimeSec;
+        }
+    }
+
+    private final Context context;
+    private final TelephonyManager telephonyManager;
+    private final Executor executor;
+    private final Handler handler;
+
+    private Listener listener;
+    private String phoneNumber;
+    private long placedAt;
+    private long offhookAt;
+    private boolean offhook = false;
+
+    private PhoneStateListener phoneStateListener;
+    private Object telephonyCallback;
+
+    private final Runnable startTimeoutRunnable = () -> timeout(false);
+    private final Runnable maxDurationRunnable = () -> timeout(true);
+
+    public CallStateMonitor(Context context, Executor executor) {
+        this.context = context;
+        this.telephonyManager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+        this.executor = executor;
+        this.handler = new Handler(Looper.getMainLooper());
+    }
+
+    /** Start following the call that is about to be placed to this number. */
+    public void begin(String phoneNumber, Listener listener) {
+        cancel();
+
+        this.phoneNumber = phoneNumber;
+        this.listener = listener;
+        this.placedAt = System.currentTimeMillis();
+        this.offhook = false;
+
+        register();
+        handler.postDelayed(startTimeoutRunnable, START_TIMEOUT_MS);
+    }
+
+    /** Stop following the current call without reporting anything. */
+    public void cancel() {
+        handler.removeCallbacks(startTimeoutRunnable);
+        handler.removeCallbacks(maxDurationRunnable);
+        unregister();
+        listener = null;
+    }
+
+    private void onCallStateChanged(int state) {
+        if (listener == null) return;
+
+        if (state == TelephonyManager.CALL_STATE_OFFHOOK && !offhook) {
+            offhook = true;
+            offhookAt = System.currentTimeMillis();
+            handler.removeCallbacks(startTimeoutRunnable);
+            handler.postDelayed(maxDurationRunnable, MAX_CALL_MS);
+            Log.d(TAG, "Call to " + phoneNumber + " is off hook");
+            listener.onCallStarted();
+
+        } else if (state == TelephonyManager.CALL_STATE_IDLE && offhook) {
+            // Registering delivers the current (idle) state, so only an idle
+            // after off-hook ends the call
+            Listener finished = listener;
+            long lineTimeMs = System.currentTimeMillis() - offhookAt;
+            String number = phoneNumber;
+            long since = placedAt;
+
+            cancel();
+            Log.d(TAG, "Call to " + number + " ended after " + lineTimeMs + "ms on the line");
+
+            finished.onLineIdle(lineTimeMs);
+            resolveOutcome(finished, number, since, (int) (lineTimeMs / 1000), 1);
+        }
+    }
+
+    private void timeout(boolean started) {
+        Listener timedOut = listener;
+        long lineTimeMs = started ? System.currentTimeMillis() - offhookAt : 0;
+        cancel();
+
+        if (timedOut != null) {
+            Log.w(TAG, started ? "Call exceeded maximum duration" : "Call never took the line");
+            timedOut.onTimeout(started, lineTimeMs);
+        }
+    }
+
+    private void resolveOutcome(Listener target, String number, long since, int lineTimeSec, int attempt) {
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.READ_CALL_LOG)
+            != PackageManager.PERMISSION_GRANTED) {
+            target.onOutcome(new Outcome(null, lineTimeSec, lineTimeSec));
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                Integer duration = readCallLogDuration(number, since);
+
+                handler.post(() -> {
+                    if (duration == null && attempt < CALL_LOG_ATTEMPTS) {
+                        handler.postDelayed(() -> resolveOutcome(target, number, since, lineTimeSec, attempt + 1),
+                            CALL_LOG_RETRY_MS);
+                    } else if (duration == null) {
+                        Log.w(TAG, "No call log entry for " + number);
+                        target.onOutcome(new Outcome(null, lineTimeSec, lineTimeSec));
+                    } else {
+                        target.onOutcome(new Outcome(duration > 0, duration, lineTimeSec));
+                    }
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            // Settle on the line time rather than leave the call unreported
+            Log.w(TAG, "Control lane full, reporting " + number + " without the call log");
+            target.onOutcome(new Outcome(null, lineTimeSec, lineTimeSec));
+        }
+    }
+
+    // Duration in seconds of the latest outgoing call to the number, or null if not logged yet
+    private Integer readCallLogDuration(String number, long since) {
+        String[] projection = { CallLog.Calls.NUMBER, CallLog.Calls.DURATION };
+        String selection = CallLog.Calls.TYPE + " = ? AND " + CallLog.Calls.DATE + " >= ?";
+        String[] args = { String.valueOf(CallLog.Calls.OUTGOING_TYPE), String.valueOf(since - 2000) };
+
+        try (Cursor cursor = context.getContentResolver().query(CallLog.Calls.CONTENT_URI,
+                projection, selection, args, CallLog.Calls.DATE + " DESC")) {
+            if (cursor == null) return null;
+
+            String wanted = trailingDigits(number);
+            while (cursor.moveToNext()) {
+                if (wanted.equals(trailingDigits(cursor.getString(0)))) {
+                    return cursor.getInt(1);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading call log", e);
+        }
+        return null;
+    }
+
+    private static String trailingDigits(String number) {
+        if (number == null) return "";
+        String digits = number.replaceAll("[^0-9]", "");
+        return digits.length() > NUMBER_MATCH_DIGITS ? digits.substring(digits.length() - NUMBER_MATCH_DIGITS) : digits;
+    }
+
+    @SuppressWarnings({"deprecation", "MissingPermission"})
+    private void register() {
+        if (telephonyManager == null) return;
+
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                CallStateCallback callback = new CallStateCallback();
+                telephonyManager.registerTelephonyCallback(context.getMainExecutor(), callback);
+                telephonyCallback = callback;
+            } else {
+                phoneStateListener = new PhoneStateListener() {
+                    @Override
+                    public void onCallStateChanged(int state, String incomingNumber) {
+                        CallStateMonitor.this.onCallStateChanged(state);
+                    }
+                };
+                telephonyManager.listen(phoneStateListener, PhoneStateListener.LISTEN_CALL_STATE);
+            }
+        } catch (SecurityException e) {
+            Log.e(TAG, "READ_PHONE_STATE not granted, call state unavailable", e);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void unregister() {
+        if (telephonyManager == null) return;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && telephonyCallback != null) {
+            telephonyManager.unregisterTelephonyCallback((TelephonyCallback) telephonyCallback);
+            telephonyCallback = null;
+        }
+        if (phoneStateListener != null) {
+            telephonyManager.listen(phoneStateListener, PhoneStateListener.LISTEN_NONE);
+            phoneStateListener = null;
+        }
+    }
+
+    private class CallStateCallback extends TelephonyCallback implements TelephonyCallback.CallStateListener {
+        @Override
+        public void onCallStateChanged(int state) {
+            CallStateMonitor.this.onCallStateChanged(state);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.ivrcallmanager.call;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-device queue of call commands fetched from the backend. Commands are
+ * deduplicated by callId (or commandId when there is no callId) and written to
+ * disk before the backend is told it may forget them, so a command is never
+ * lost between the server queue and this one.
+ *
+ * A command taken for dispatch stays on disk as in flight until
+ * {@link #complete()}: until its call has been placed, or a terminal status
+ * for it has been journaled. If the process dies before that, it is put back
+ * at the head of the queue on the next start.
+ */
+public class CommandQueue {
+
+    private static final String TAG = "CommandQueue";
+    private static final String FILE_NAME = "command_queue.json";
+
+    // Keys of recently dispatched commands, so a redelivery after a lost ack
+    // is not dialed twice
+    private static final int MAX_DISPATCHED_KEYS = 500;
+
+    private final File file;
+    private final LinkedHashMap<String, JSONObject> queue = new LinkedHashMap<>();
+    private final LinkedHashSet<String> dispatched = new LinkedHashSet<>();
+    private JSONObject inFlight;
+
+    public CommandQueue(File filesDir) {
+        this.file = new File(filesDir, FILE_NAME);
+        load();
+    }
+
+    /**
+     * Queue every command that is not already queued or dispatched and persist
+     * the queue. Returns the commandIds that are now safe to acknowledge.
+     */
+    public synchronized List<String> offerAll(JSONArray commands) {
+        List<String> ackIds = new ArrayList<>();
+        boolean changed = false;
+
+        for (int i = 0; i < commands.length(); i++) {
+            JSONObject command = commands.optJSONObject(i);
+            if (command == null) continue;
+
+            String key = keyOf(command);
+            if (key == null) continue;
+
+            if (!queue.containsKey(key) && !dispatched.contains(key)) {
+                queue.put(key, command);
+                changed = true;
+            }
+
+            String commandId = command.optString("commandId", key);
+            ackIds.add(commandId);
+        }
+
+        if (changed && !save()) {
+            // Nothing is durable, so nothing may be acknowledged
+            return new ArrayList<>();
+        }
+
+        return ackIds;
+    }
+
+    /**
+     * Take the next command for dispatch, or null when the queue is empty.
+     * It is kept as in flight until {@link #complete()}.
+     */
+    public synchronized JSONObject poll() {
+        Iterator<Map.Entry<String, JSONObject>> it = queue.entrySet().iterator();
+        if (!it.hasNext()) return null;
+
+        Map.Entry<String, JSONObject> head = it.next();
+        it.remove();
+        markDispatched(head.getKey());
+        inFlight = head.getValue();
+        save();
+
+        return inFlight;
+    }
+
+    /** The command in flight has been dialed or has a terminal status journaled; forget it. */
+    public synchronized void complete() {
+        if (inFlight == null) return;
+
+        inFlight = null;
+        save();
+    }
+
+    /** Snapshot of queued commands in dispatch order. */
+    public synchronized List<JSONObject> snapshot() {
+        return new ArrayList<>(queue.values());
+    }
+
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    public synchronized void clear() {
+        queue.clear();
+        save();
+    }
+
+    private void markDispatched(String key) {
+        dispatched.add(key);
+        if (dispatched.size() > MAX_DISPATCHED_KEYS) {
+            Iterator<String> it = dispatched.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static String keyOf(JSONObject command) {
+        String callId = command.optString("callId", "");
+        if (!callId.isEmpty()) return callId;
+
+        String commandId = command.optString("commandId", "");
+        return commandId.isEmpty() ? null : commandId;
+    }
+
+    private void load() {
+        if (!file.exists()) return;
+
+        try {
+            FileInputStream in = new FileInputStream(file);
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            int read;
+            while (offset < data.length && (read = in.read(data, offset, data.length - offset)) != -1) {
+                offset += read;
+            }
+            in.close();
+
+            JSONObject json = new JSONObject(new String(data, 0, offset, "UTF-8"));
+
+            JSONArray queued = json.optJSONArray("queue");
+            if (queued != null) {
+                for (int i = 0; i < queued.length(); i++) {
+                    JSONObject command = queued.getJSONObject(i);
+                    String key = keyOf(command);
+                    if (key != null) queue.put(key, command);
+                }
+            }
+
+            JSONArray keys = json.optJSONArray("dispatched");
+            if (keys != null) {
+                for (int i = 0; i < keys.length(); i++) {
+                    dispatched.add(keys.getString(i));
+                }
+            }
+
+            // Taken for dispatch but never dialed or settled: it goes first again
+            JSONObject interrupted = json.optJSONObject("inFlight");
+            String interruptedKey = interrupted != null ? keyOf(interrupted) : null;
+            if (interruptedKey != null && !queue.containsKey(interruptedKey)) {
+                LinkedHashMap<String, JSONObject> restored = new LinkedHashMap<>();
+                restored.put(interruptedKey, interrupted);
+                restored.putAll(queue);
+                queue.clear();
+                queue.putAll(restored);
+                Log.w(TAG, "Requeued command " + interruptedKey + " interrupted before dialing");
+            }
+
+            Log.d(TAG, "Restored " + queue.size() + " queued commands");
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading command queue", e);
+        }
+    }
+
+    private boolean save() {
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try {
+            JSONArray queued = new JSONArray();
+            for (JSONObject command : queue.values()) {
+                queued.put(command);
+            }
+
+            JSONObject json = new JSONObject();
+            json.put("queue", queued);
+            json.put("dispatched", new JSONArray(dispatched));
+            if (inFlight != null) json.put("inFlight", inFlight);
+
+            FileOutputStream out = new FileOutputStream(tmp);
+            out.write(json.toString().getBytes("UTF-8"));
+            out.getFD().sync();
+            out.close();
+
+            if (!tmp.renameTo(file)) {
+                Log.e(TAG, "Error replacing command queue file");
+                return false;
+            }
+            return true;
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving command queue", e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.ivrcallmanager.call;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.ivrcallmanager.audio.UplinkCapture;
+import com.ivrcallmanager.dsp.DtmfDetector;
+
+/**
+ * Listens for keys the callee presses during a call, by decoding DTMF tones
+ * in the captured call audio.
+ */
+public class DtmfMonitor implements UplinkCapture.FrameListener {
+
+    private static final String TAG = "DtmfMonitor";
+
+    public interface Listener {
+        /** Runs on the main thread. */
+        void onDigit(char digit);
+    }
+
+    private final UplinkCapture capture;
+    private final Handler handler;
+    private final DtmfDetector detector;
+
+    private volatile Listener listener;
+
+    public DtmfMonitor(UplinkCapture capture) {
+        this.capture = capture;
+        this.handler = new Handler(Looper.getMainLooper());
+        this.detector = new DtmfDetector(UplinkCapture.SAMPLE_RATE, this::onDetected);
+    }
+
+    public void begin(Listener listener) {
+        cancel();
+
+        synchronized (this) {
+            detector.reset();
+        }
+        this.listener = listener;
+        capture.addListener(this);
+    }
+
+    public void cancel() {
+        listener = null;
+        capture.removeListener(this);
+    }
+
+    @Override
+    public synchronized void onFrame(short[] frame, int length) {
+        if (listener == null) return;
+        detector.process(frame, 0, length);
+    }
+
+    // Capture thread
+    private void onDetected(char digit, int durationMs) {
+        Listener target = listener;
+        if (target == null) return;
+
+        Log.d(TAG, "DTMF " + digit + " (" + durationMs + "ms)");
+        handler.post(() -> {
+            if (listener == target) {
+                target.onDigit(digit);
+            }
+        });
+    }
+}
@@ -0,0 +1,210 @@
+package com.ivrcallmanager.call;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.ivrcallmanager.audio.UplinkCapture;
+import com.ivrcallmanager.dsp.BeepDetector;
+import com.ivrcallmanager.dsp.EnergyVad;
+
+/**
+ * Tells a person from an answering machine in the first seconds after a call
+ * is answered, from the cadence of what the far end says:
+ * <ul>
+ *   <li>a person says a word or two ("Hello?") and then waits;</li>
+ *   <li>a machine plays a long greeting, many words without a real pause, or
+ *       stays silent for a long time before starting.</li>
+ * </ul>
+ * Once a machine is detected it can also wait for the greeting to finish,
+ * which is the beep or, for machines without one, a long silence.
+ */
+public class MachineDetector implements UplinkCapture.FrameListener {
+
+    private static final String TAG = "MachineDetector";
+
+    // Silence before any word: a person has usually spoken by now
+    private static final int INITIAL_SILENCE_MS = 2500;
+    // Speech in total, and in one stretch, beyond which it is a greeting
+    private static final int GREETING_MS = 1500;
+    private static final int MAX_WORD_MS = 5000;
+    // Shorter sounds are clicks and breaths, not words
+    private static final int MIN_WORD_MS = 100;
+    private static final int MAX_WORDS = 2;
+    // A person waiting for an answer after their hello
+    private static final int AFTER_GREETING_SILENCE_MS = 800;
+    // Undecided by now: treat as a person rather than lose them
+    private static final int MAX_ANALYSIS_MS = 5000;
+
+    // Silence that ends a greeting that has no beep
+    private static final int GREETING_END_SILENCE_MS = 2500;
+
+    public enum Result {
+        HUMAN,
+        MACHINE,
+        UNSURE
+    }
+
+    public interface Listener {
+        /** Runs on the main thread. {@code reason} says what decided it, for the call notes. */
+        void onResult(Result result, String reason);
+    }
+
+    public interface GreetingListener {
+        /** Runs on the main thread. {@code signal} is "beep", "silence" or "timeout". */
+        void onGreetingEnded(String signal);
+    }
+
+    private final UplinkCapture capture;
+    private final Handler handler;
+
+    private volatile Listener listener;
+    private volatile GreetingListener greetingListener;
+    private long begunAt;
+
+    // Capture thread state, guarded by this
+    private final EnergyVad vad = new EnergyVad();
+    private final BeepDetector beepDetector = new BeepDetector(UplinkCapture.SAMPLE_RATE, UplinkCapture.FRAME_SAMPLES);
+    private int elapsedMs;
+    private int silenceMs;
+    private int wordMs;
+    private int voicedMs;
+    private int words;
+    private boolean inWord;
+    private boolean decided;
+
+    private final Runnable greetingTimeout = () -> greetingEnded(greetingListener, "timeout");
+
+    public MachineDetector(UplinkCapture capture) {
+        this.capture = capture;
+        this.handler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Start listening to a call that was just answered. {@code speechSoFarMs}
+     * is how much of the first word was already heard while detecting the answer.
+     */
+    public void begin(int speechSoFarMs, Listener listener) {
+        cancel();
+
+        synchronized (this) {
+            vad.reset();
+            elapsedMs = speechSoFarMs;
+            silenceMs = 0;
+            wordMs = speechSoFarMs;
+            voicedMs = speechSoFarMs;
+            words = speechSoFarMs >= MIN_WORD_MS ? 1 : 0;
+            inWord = speechSoFarMs > 0;
+            decided = false;
+        }
+
+        this.listener = listener;
+        begunAt = SystemClock.elapsedRealtime();
+        capture.addListener(this);
+    }
+
+    /** After a machine was detected, report when its greeting is over. */
+    public void awaitGreetingEnd(long timeoutMs, GreetingListener listener) {
+        synchronized (this) {
+            beepDetector.reset();
+            silenceMs = 0;
+            decided = false;
+        }
+
+        this.listener = null;
+        this.greetingListener = listener;
+        capture.addListener(this);
+        handler.postDelayed(greetingTimeout, timeoutMs);
+    }
+
+    public void cancel() {
+        listener = null;
+        greetingListener = null;
+        handler.removeCallbacks(greetingTimeout);
+        capture.removeListener(this);
+    }
+
+    @Override
+    public synchronized void onFrame(short[] frame, int length) {
+        if (decided) return;
+
+        if (listener != null) {
+            classify(frame, length);
+        } else if (greetingListener != null) {
+            listenForGreetingEnd(frame, length);
+        }
+    }
+
+    private void classify(short[] frame, int length) {
+        elapsedMs += UplinkCapture.FRAME_MS;
+
+        if (vad.process(frame, 0, length)) {
+            if (!inWord) {
+                inWord = true;
+                wordMs = 0;
+            }
+            wordMs += UplinkCapture.FRAME_MS;
+            voicedMs += UplinkCapture.FRAME_MS;
+            silenceMs = 0;
+
+            if (wordMs == MIN_WORD_MS && ++words > MAX_WORDS) {
+                decide(Result.MACHINE, words + " words without a pause");
+            } else if (wordMs >= MAX_WORD_MS) {
+                decide(Result.MACHINE, "continuous sound " + wordMs + "ms");
+            } else if (voicedMs >= GREETING_MS) {
+                decide(Result.MACHINE, "greeting longer than " + GREETING_MS + "ms");
+            }
+        } else {
+            inWord = false;
+            silenceMs += UplinkCapture.FRAME_MS;
+
+            if (words == 0 && silenceMs >= INITIAL_SILENCE_MS) {
+                decide(Result.MACHINE, "silence " + silenceMs + "ms before greeting");
+            } else if (words > 0 && silenceMs >= AFTER_GREETING_SILENCE_MS) {
+                decide(Result.HUMAN, words + " word(s) " + voicedMs + "ms, then silence");
+            }
+        }
+
+        if (!decided && elapsedMs >= MAX_ANALYSIS_MS) {
+            decide(Result.UNSURE, "no decision in " + MAX_ANALYSIS_MS + "ms");
+        }
+    }
+
+    private void listenForGreetingEnd(short[] frame, int length) {
+        if (beepDetector.process(frame, 0, length)) {
+            decided = true;
+            GreetingListener target = greetingListener;
+            handler.post(() -> greetingEnded(target, "beep"));
+            return;
+        }
+
+        silenceMs = vad.process(frame, 0, length) ? 0 : silenceMs + UplinkCapture.FRAME_MS;
+        if (silenceMs >= GREETING_END_SILENCE_MS) {
+            decided = true;
+            GreetingListener target = greetingListener;
+            handler.post(() -> greetingEnded(target, "silence"));
+        }
+    }
+
+    private void decide(Result result, String reason) {
+        decided = true;
+        Listener target = listener;
+        handler.post(() -> {
+            // Ignore a decision about a call that has since been cancelled or replaced
+            if (listener == null || listener != target) return;
+
+            cancel();
+            Log.d(TAG, result + " (" + reason + ") " + (SystemClock.elapsedRealtime() - begunAt) + "ms after answer");
+            target.onResult(result, reason);
+        });
+    }
+
+    private void greetingEnded(GreetingListener target, String signal) {
+        if (target == null || greetingListener != target) return;
+
+        cancel();
+        Log.d(TAG, "Greeting ended (" + signal + ") " + (SystemClock.elapsedRealtime() - begunAt) + "ms after answer");
+        target.onGreetingEnded(signal);
+    }
+}
@@ -0,0 +1,98 @@
+package com.ivrcallmanager.dsp;
+
+/**
+ * Finds the beep an answering machine plays before it starts recording: a
+ * single steady tone of unknown pitch somewhere between 350 and 2500 Hz.
+ *
+ * Each frame is scanned with a bank of Goertzel filters one frame-resolution
+ * apart. A frame is tonal when the strongest filter and its stronger
+ * neighbour carry most of the frame's energy; a beep is a run of tonal
+ * frames at the same pitch lasting {@link #MIN_BEEP_MS} or more. It is
+ * reported when it stops, since that is when recording starts.
+ *
+ * Does not allocate after construction. Not thread-safe.
+ */
+public final class BeepDetector {
+
+    public static final int MIN_BEEP_MS = 160;
+    // Longer than any beep; a tone this long is something else
+    private static final int MAX_BEEP_MS = 3000;
+
+    private static final double LOWEST_HZ = 350;
+    private static final double HIGHEST_HZ = 2500;
+
+    // Mean power of a frame, relative to full scale: about -45 dBFS
+    private static final double MIN_FRAME_POWER = 32768.0 * 32768.0 * 3.2e-5;
+    private static final double MIN_TONE_SHARE = 0.7;
+
+    private final int sampleRate;
+    private final double stepHz;
+    private final double[] coefficients;
+    private final double[] power;
+
+    private int toneBin = -1;
+    private int toneMs = 0;
+
+    /** {@code frameSamples} sets the filter spacing: one filter per frequency bin. */
+    public BeepDetector(int sampleRate, int frameSamples) {
+        this.sampleRate = sampleRate;
+        this.stepHz = (double) sampleRate / frameSamples;
+
+        int bins = (int) ((HIGHEST_HZ - LOWEST_HZ) / stepHz) + 1;
+        coefficients = new double[bins];
+        power = new double[bins];
+        for (int i = 0; i < bins; i++) {
+            coefficients[i] = Goertzel.coefficient(LOWEST_HZ + i * stepHz, sampleRate);
+        }
+    }
+
+    /** Feed one frame. Returns true on the frame where a beep ended. */
+    public boolean process(short[] frame, int offset, int length) {
+        int frameMs = length * 1000 / sampleRate;
+        int bin = toneBin(frame, offset, length);
+
+        // Allow the pitch to wander into the next bin
+        if (bin >= 0 && toneBin >= 0 && Math.abs(bin - toneBin) <= 1) {
+            toneMs += frameMs;
+            return false;
+        }
+
+        boolean beep = toneBin >= 0 && toneMs >= MIN_BEEP_MS && toneMs <= MAX_BEEP_MS;
+        toneBin = bin;
+        toneMs = bin >= 0 ? frameMs : 0;
+        return beep;
+    }
+
+    /** Pitch of the current tone in Hz, or 0 if there is none. */
+    public double getToneHz() {
+        return toneBin >= 0 ? LOWEST_HZ + toneBin * stepHz : 0;
+    }
+
+    public void reset() {
+        toneBin = -1;
+        toneMs = 0;
+    }
+
+    // Filter index of the frame's tone, or -1 if the frame is not a clean tone
+    private int toneBin(short[] frame, int offset, int length) {
+        double energy = 0;
+        for (int i = offset; i < offset + length; i++) {
+            energy += (double) frame[i] * frame[i];
+        }
+        if (energy / length < MIN_FRAME_POWER) return -1;
+
+        int peak = 0;
+        for (int i = 0; i < coefficients.length; i++) {
+            power[i] = Goertzel.power(frame, offset, length, coefficients[i]);
+            if (power[i] > power[peak]) peak = i;
+        }
+
+        // A tone between two filters splits its power across both
+        double neighbour = 0;
+        if (peak > 0) neighbour = power[peak - 1];
+        if (peak < power.length - 1) neighbour = Math.max(neighbour, power[peak + 1]);
+
+        double share = (power[peak] + neighbour) / (energy * length / 2);
+        return share >= MIN_TONE_SHARE ? peak : -1;
+    }
+}
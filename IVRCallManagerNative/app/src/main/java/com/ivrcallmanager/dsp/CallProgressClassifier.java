@@ -0,0 +1,248 @@
+package com.ivrcallmanager.dsp;
+
+/**
+ * Recognises call-progress tones in the audio of an outgoing call before it is
+ * answered: ringback, busy, congestion and special information tones (SIT,
+ * the three rising tones before an operator intercept message).
+ *
+ * Each frame is checked for each tone's frequencies with Goertzel filters. A
+ * tone counts as present when those frequencies carry most of the frame's
+ * energy, so speech and noise never do. The on/off runs of every tone are
+ * then matched against the region's cadences: busy and congestion need an
+ * on, off, on sequence (about 1.5 s of busy tone), ringback an off, on pair
+ * and SIT its three segments.
+ *
+ * Ringback is reported once, for information. Busy, congestion and SIT are
+ * final; after one of them the classifier stays silent until reset.
+ *
+ * Does not allocate after construction. Not thread-safe.
+ */
+public final class CallProgressClassifier {
+
+    public enum Result {
+        RINGBACK,
+        BUSY,
+        CONGESTION,
+        SIT
+    }
+
+    public interface Listener {
+        void onTone(Result result);
+    }
+
+    // Mean power of a frame, relative to full scale: about -45 dBFS
+    private static final double MIN_FRAME_POWER = 32768.0 * 32768.0 * 3.2e-5;
+    private static final double MIN_TONE_SHARE = 0.6;
+    // Allowed error on a cadence segment: a quarter, but at least two frames
+    private static final double CADENCE_TOLERANCE = 0.25;
+    private static final int MIN_TOLERANCE_MS = 50;
+
+    // SIT segments are 274 or 380 ms long
+    private static final double[][] SIT_BANDS = { { 913.8, 985.2 }, { 1370.6, 1428.5 }, { 1776.7 } };
+    private static final int SIT_MIN_MS = 200;
+    private static final int SIT_MAX_MS = 450;
+
+    private final int sampleRate;
+    private final Listener listener;
+
+    private final CadenceTracker ringback;
+    private final CadenceTracker busy;
+    private final CadenceTracker congestion;
+
+    private final double[][] sitCoefficients = new double[SIT_BANDS.length][];
+    private final int[] sitBands = new int[4];
+    private final int[] sitLengths = new int[4];
+    private int sitRuns = 0;
+    private int sitBand = 0;
+    private int sitLength = 0;
+
+    private boolean ringbackReported = false;
+    private boolean done = false;
+
+    public CallProgressClassifier(CallProgressProfile profile, int sampleRate, Listener listener) {
+        this.sampleRate = sampleRate;
+        this.listener = listener;
+
+        this.ringback = new CadenceTracker(profile.ringback, 2);
+        this.busy = new CadenceTracker(profile.busy, 3);
+        this.congestion = new CadenceTracker(profile.congestion, 3);
+
+        for (int i = 0; i < SIT_BANDS.length; i++) {
+            sitCoefficients[i] = coefficients(SIT_BANDS[i]);
+        }
+    }
+
+    /** Classify one frame; results are reported from inside this call. */
+    public void process(short[] frame, int offset, int length) {
+        if (done) return;
+
+        int frameMs = length * 1000 / sampleRate;
+        double energy = 0;
+        for (int i = offset; i < offset + length; i++) {
+            energy += (double) frame[i] * frame[i];
+        }
+        boolean audible = energy / length >= MIN_FRAME_POWER;
+
+        // Busy and congestion first: in many regions they share ringback's frequency
+        if (congestion.update(frame, offset, length, energy, audible, frameMs)) {
+            finish(Result.CONGESTION);
+            return;
+        }
+        if (busy.update(frame, offset, length, energy, audible, frameMs)) {
+            finish(Result.BUSY);
+            return;
+        }
+        if (ringback.update(frame, offset, length, energy, audible, frameMs) && !ringbackReported) {
+            ringbackReported = true;
+            listener.onTone(Result.RINGBACK);
+        }
+
+        if (updateSit(frame, offset, length, energy, audible, frameMs)) {
+            finish(Result.SIT);
+        }
+    }
+
+    public void reset() {
+        ringback.reset();
+        busy.reset();
+        congestion.reset();
+        sitRuns = 0;
+        sitBand = 0;
+        sitLength = 0;
+        ringbackReported = false;
+        done = false;
+    }
+
+    private void finish(Result result) {
+        done = true;
+        listener.onTone(result);
+    }
+
+    private boolean updateSit(short[] frame, int offset, int length, double energy, boolean audible, int frameMs) {
+        int band = 0;
+        if (audible) {
+            for (int i = 0; i < sitCoefficients.length; i++) {
+                if (Goertzel.share(frame, offset, length, energy, sitCoefficients[i]) >= MIN_TONE_SHARE) {
+                    band = i + 1;
+                    break;
+                }
+            }
+        }
+
+        if (band == sitBand) {
+            sitLength += frameMs;
+        } else {
+            // A frame or two of nothing where one segment meets the next is not a gap
+            if (sitBand != 0 || sitLength > 2 * frameMs) {
+                pushSitRun(sitBand, sitLength);
+            }
+            sitBand = band;
+            sitLength = frameMs;
+        }
+
+        // Decide as soon as the third segment is long enough
+        return sitBand == 3 && sitLength >= SIT_MIN_MS && sitRuns >= 2
+            && sitBands[(sitRuns - 1) % 4] == 2 && inSitRange(sitLengths[(sitRuns - 1) % 4])
+            && sitBands[(sitRuns - 2) % 4] == 1 && inSitRange(sitLengths[(sitRuns - 2) % 4]);
+    }
+
+    private void pushSitRun(int band, int lengthMs) {
+        if (sitRuns > 0 && sitBands[(sitRuns - 1) % 4] == band) {
+            // Same band resumed after a short dropout
+            sitLengths[(sitRuns - 1) % 4] += lengthMs;
+            return;
+        }
+        sitBands[sitRuns % 4] = band;
+        sitLengths[sitRuns % 4] = lengthMs;
+        sitRuns++;
+    }
+
+    private static boolean inSitRange(int lengthMs) {
+        return lengthMs >= SIT_MIN_MS && lengthMs <= SIT_MAX_MS;
+    }
+
+    private double[] coefficients(double[] frequencies) {
+        double[] coefficients = new double[frequencies.length];
+        for (int i = 0; i < frequencies.length; i++) {
+            coefficients[i] = Goertzel.coefficient(frequencies[i], sampleRate);
+        }
+        return coefficients;
+    }
+
+    /** On/off runs of one tone, matched against its cadence. */
+    private final class CadenceTracker {
+        private final double[] coefficients;
+        private final int[] cadence;
+        private final int needed;
+
+        // Lengths of the completed runs, as a ring buffer
+        private final int[] runs = new int[8];
+        private int runCount = 0;
+        private boolean on = false;
+        private int runMs = 0;
+        private boolean primed = false;
+        // The run in progress when listening began has no known start
+        private boolean started = false;
+
+        CadenceTracker(CallProgressProfile.Tone tone, int needed) {
+            this.coefficients = coefficients(tone.frequencies);
+            this.cadence = tone.cadence;
+            this.needed = needed;
+        }
+
+        /** Returns true when an on run just ended and the latest runs match the cadence. */
+        boolean update(short[] frame, int offset, int length, double energy, boolean audible, int frameMs) {
+            boolean present = audible
+                && Goertzel.share(frame, offset, length, energy, coefficients) >= MIN_TONE_SHARE;
+
+            if (!primed) {
+                primed = true;
+                on = present;
+                runMs = frameMs;
+                return false;
+            }
+            if (present == on) {
+                runMs += frameMs;
+                return false;
+            }
+
+            if (started) {
+                runs[runCount % runs.length] = runMs;
+                runCount++;
+            }
+            started = true;
+            on = present;
+            runMs = frameMs;
+
+            // Runs alternate, so the one just completed was on if this one is off
+            return !present && matches();
+        }
+
+        void reset() {
+            runCount = 0;
+            on = false;
+            runMs = 0;
+            primed = false;
+            started = false;
+        }
+
+        // Whether the last `needed` runs, ending with an on run, fit the cadence anywhere
+        private boolean matches() {
+            if (runCount < needed) return false;
+
+            // Even cadence positions are on; the oldest run is on when `needed` is odd
+            int first = needed % 2 == 1 ? 0 : 1;
+            for (int start = first; start < cadence.length; start += 2) {
+                boolean ok = true;
+                for (int k = 0; k < needed && ok; k++) {
+                    int run = runs[(runCount - needed + k) % runs.length];
+                    int expected = cadence[(start + k) % cadence.length];
+                    int tolerance = Math.max(MIN_TOLERANCE_MS, (int) (expected * CADENCE_TOLERANCE));
+                    ok = Math.abs(run - expected) <= tolerance;
+                }
+                if (ok) return true;
+            }
+            return false;
+        }
+    }
+}
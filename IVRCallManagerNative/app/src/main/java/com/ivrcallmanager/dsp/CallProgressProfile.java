@@ -0,0 +1,75 @@
+package com.ivrcallmanager.dsp;
+
+import java.util.Locale;
+
+/**
+ * The call-progress tones of one telephone network region: the frequencies
+ * and on/off cadence of ringback, busy and congestion (reorder) tones.
+ * Special information tones are the same everywhere and are not part of it.
+ *
+ * Cadences are in milliseconds, alternating on and off and starting with on.
+ */
+public final class CallProgressProfile {
+
+    public static final class Tone {
+        public final double[] frequencies;
+        public final int[] cadence;
+
+        public Tone(double[] frequencies, int[] cadence) {
+            this.frequencies = frequencies;
+            this.cadence = cadence;
+        }
+    }
+
+    public final String region;
+    public final Tone ringback;
+    public final Tone busy;
+    public final Tone congestion;
+
+    public CallProgressProfile(String region, Tone ringback, Tone busy, Tone congestion) {
+        this.region = region;
+        this.ringback = ringback;
+        this.busy = busy;
+        this.congestion = congestion;
+    }
+
+    // ITU-T E.180 / national plans
+    public static final CallProgressProfile INDIA = new CallProgressProfile("IN",
+        new Tone(new double[] { 400 }, new int[] { 400, 200, 400, 2000 }),
+        new Tone(new double[] { 400 }, new int[] { 750, 750 }),
+        new Tone(new double[] { 400 }, new int[] { 250, 250 }));
+
+    public static final CallProgressProfile NORTH_AMERICA = new CallProgressProfile("US",
+        new Tone(new double[] { 440, 480 }, new int[] { 2000, 4000 }),
+        new Tone(new double[] { 480, 620 }, new int[] { 500, 500 }),
+        new Tone(new double[] { 480, 620 }, new int[] { 250, 250 }));
+
+    public static final CallProgressProfile UNITED_KINGDOM = new CallProgressProfile("GB",
+        new Tone(new double[] { 400, 450 }, new int[] { 400, 200, 400, 2000 }),
+        new Tone(new double[] { 400 }, new int[] { 375, 375 }),
+        new Tone(new double[] { 400 }, new int[] { 400, 350, 225, 525 }));
+
+    // CEPT recommendation, used across most of Europe and many other networks
+    public static final CallProgressProfile EUROPE = new CallProgressProfile("EU",
+        new Tone(new double[] { 425 }, new int[] { 1000, 4000 }),
+        new Tone(new double[] { 425 }, new int[] { 500, 500 }),
+        new Tone(new double[] { 425 }, new int[] { 250, 250 }));
+
+    /** Profile for an ISO 3166 country code; CEPT tones if the region is not known. */
+    public static CallProgressProfile forRegion(String countryCode) {
+        if (countryCode == null) return EUROPE;
+
+        switch (countryCode.toUpperCase(Locale.US)) {
+            case "IN":
+                return INDIA;
+            case "US":
+            case "CA":
+                return NORTH_AMERICA;
+            case "GB":
+            case "UK":
+                return UNITED_KINGDOM;
+            default:
+                return EUROPE;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.ivrcallmanager.dsp;
+
+/**
+ * Folds interleaved multi-channel 16-bit PCM down to mono by averaging the
+ * channels of each frame.
+ */
+public final class Downmixer {
+
+    private Downmixer() {
+    }
+
+    /**
+     * Downmix {@code frames} frames of {@code channels} interleaved samples.
+     * {@code input} and {@code output} may be the same array with the same
+     * offset, since each output sample is written after its frame is read.
+     *
+     * @return the number of mono samples written, i.e. {@code frames}
+     */
+    public static int downmix(short[] input, int offset, int frames, int channels, short[] output, int outputOffset) {
+        if (channels == 1) {
+            System.arraycopy(input, offset, output, outputOffset, frames);
+            return frames;
+        }
+
+        for (int frame = 0; frame < frames; frame++) {
+            int base = offset + frame * channels;
+            int sum = 0;
+            for (int c = 0; c < channels; c++) {
+                sum += input[base + c];
+            }
+            output[outputOffset + frame] = (short) (sum / channels);
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,161 @@
+package com.ivrcallmanager.dsp;
+
+/**
+ * In-band DTMF decoder for 16-bit mono PCM.
+ *
+ * Every {@link #HOP_SAMPLES} samples the last {@link #BLOCK_SAMPLES} (25.6 ms
+ * at 8 kHz) are run through a Goertzel filter per DTMF frequency; the half
+ * overlap lets the standard 40 ms minimum key press span two blocks.
+ * A block holds a digit when one row and one column tone stand out clearly
+ * from the rest of their group, the pair is loud enough, carries most of the
+ * block's energy (so speech and noise do not qualify) and the level difference
+ * between the two stays within the allowed twist.
+ *
+ * A digit must be present in {@link #MIN_ON_BLOCKS} consecutive blocks and
+ * is reported once, when it stops (key-up), so a held key is one digit.
+ *
+ * Does not allocate after construction. Not thread-safe.
+ */
+public final class DtmfDetector {
+
+    public interface Listener {
+        /** A key was released; {@code durationMs} is roughly how long it was held. */
+        void onDigit(char digit, int durationMs);
+    }
+
+    public static final int BLOCK_SAMPLES = 205;
+    public static final int HOP_SAMPLES = 102;
+
+    private static final double[] ROWS = { 697, 770, 852, 941 };
+    private static final double[] COLUMNS = { 1209, 1336, 1477, 1633 };
+    private static final char[][] DIGITS = {
+        { '1', '2', '3', 'A' },
+        { '4', '5', '6', 'B' },
+        { '7', '8', '9', 'C' },
+        { '*', '0', '#', 'D' }
+    };
+
+    // Mean power of the block, relative to full scale: about -36 dBFS
+    private static final double MIN_BLOCK_POWER = 32768.0 * 32768.0 * 2.5e-4;
+    // Share of the block energy the two tones must carry
+    private static final double MIN_TONE_SHARE = 0.6;
+    // Each tone must beat the others in its group by 8 dB
+    private static final double MIN_PEAK_RATIO = 6.3;
+    // Column weaker than row by up to 8 dB, stronger by up to 4 dB
+    private static final double MAX_NORMAL_TWIST = 6.3;
+    private static final double MAX_REVERSE_TWIST = 2.5;
+
+    private static final int MIN_ON_BLOCKS = 2;
+
+    private final Listener listener;
+    private final int sampleRate;
+
+    private final double[] rowCoefficients = new double[4];
+    private final double[] columnCoefficients = new double[4];
+    private final double[] rowPower = new double[4];
+    private final double[] columnPower = new double[4];
+
+    // Ring buffer of the latest samples
+    private final short[] block = new short[BLOCK_SAMPLES];
+    // The ring unrolled oldest sample first, for the filters
+    private final short[] window = new short[BLOCK_SAMPLES];
+    private int blockPosition = 0;
+    private int filled = 0;
+    private int sinceLastBlock = 0;
+
+    private char current = 0;
+    private int currentBlocks = 0;
+
+    public DtmfDetector(int sampleRate, Listener listener) {
+        this.sampleRate = sampleRate;
+        this.listener = listener;
+
+        for (int i = 0; i < 4; i++) {
+            rowCoefficients[i] = Goertzel.coefficient(ROWS[i], sampleRate);
+            columnCoefficients[i] = Goertzel.coefficient(COLUMNS[i], sampleRate);
+        }
+    }
+
+    /** Feed samples; digits are reported from inside this call. */
+    public void process(short[] samples, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            block[blockPosition] = samples[i];
+            blockPosition = (blockPosition + 1) % BLOCK_SAMPLES;
+            if (filled < BLOCK_SAMPLES) filled++;
+
+            if (++sinceLastBlock >= HOP_SAMPLES && filled == BLOCK_SAMPLES) {
+                onBlock(detect());
+                sinceLastBlock = 0;
+            }
+        }
+    }
+
+    public void reset() {
+        blockPosition = 0;
+        filled = 0;
+        sinceLastBlock = 0;
+        current = 0;
+        currentBlocks = 0;
+    }
+
+    private void onBlock(char digit) {
+        if (digit == current) {
+            if (digit != 0) currentBlocks++;
+            return;
+        }
+
+        // The previous key was released (or replaced without a gap)
+        if (current != 0 && currentBlocks >= MIN_ON_BLOCKS) {
+            listener.onDigit(current, (BLOCK_SAMPLES + (currentBlocks - 1) * HOP_SAMPLES) * 1000 / sampleRate);
+        }
+
+        current = digit;
+        currentBlocks = digit != 0 ? 1 : 0;
+    }
+
+    // The digit in the current block, or 0
+    private char detect() {
+        double energy = 0;
+        for (int i = 0; i < BLOCK_SAMPLES; i++) {
+            energy += (double) block[i] * block[i];
+        }
+        if (energy / BLOCK_SAMPLES < MIN_BLOCK_POWER) return 0;
+
+        int tail = BLOCK_SAMPLES - blockPosition;
+        System.arraycopy(block, blockPosition, window, 0, tail);
+        System.arraycopy(block, 0, window, tail, blockPosition);
+
+        for (int i = 0; i < 4; i++) {
+            rowPower[i] = Goertzel.power(window, 0, BLOCK_SAMPLES, rowCoefficients[i]);
+            columnPower[i] = Goertzel.power(window, 0, BLOCK_SAMPLES, columnCoefficients[i]);
+        }
+
+        int row = strongest(rowPower);
+        int column = strongest(columnPower);
+        if (row < 0 || column < 0) return 0;
+
+        double rowLevel = rowPower[row];
+        double columnLevel = columnPower[column];
+
+        if (rowLevel > columnLevel * MAX_NORMAL_TWIST) return 0;
+        if (columnLevel > rowLevel * MAX_REVERSE_TWIST) return 0;
+
+        // A tone of amplitude a gives Goertzel power (a * N / 2)^2 and block energy a^2 * N / 2
+        double share = (rowLevel + columnLevel) / (energy * BLOCK_SAMPLES / 2);
+        if (share < MIN_TONE_SHARE) return 0;
+
+        return DIGITS[row][column];
+    }
+
+    // Index of the peak, or -1 if it does not stand out from the rest of the group
+    private static int strongest(double[] power) {
+        int peak = 0;
+        for (int i = 1; i < power.length; i++) {
+            if (power[i] > power[peak]) peak = i;
+        }
+        for (int i = 0; i < power.length; i++) {
+            if (i != peak && power[peak] < power[i] * MIN_PEAK_RATIO) return -1;
+        }
+        return peak;
+    }
+}
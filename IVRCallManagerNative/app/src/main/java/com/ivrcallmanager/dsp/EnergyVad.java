@@ -0,0 +1,84 @@
+package com.ivrcallmanager.dsp;
+
+/**
+ * Frame-energy voice activity detector for 16-bit PCM.
+ *
+ * Tracks the noise floor (it drops straight to any quieter frame and creeps
+ * back up slowly) and calls a frame active when it is clearly above both the
+ * floor and an absolute minimum. A short hangover bridges the gaps between
+ * syllables.
+ *
+ * Does not allocate. Not thread-safe.
+ */
+public final class EnergyVad {
+
+    // Level of an all-zero frame
+    public static final float SILENCE_DB = -120f;
+
+    private static final float MARGIN_DB = 9f;
+    private static final float MIN_ACTIVE_DB = -55f;
+    // About 1 dB/s with 20 ms frames
+    private static final float FLOOR_RISE_DB = 0.02f;
+    private static final int HANGOVER_FRAMES = 5;
+
+    private float floorDb = Float.NaN;
+    private float energyDb = SILENCE_DB;
+    private int hangover = 0;
+    private boolean aboveFloor = false;
+
+    /** Classify one frame. Returns true while voice (or other sound) is present. */
+    public boolean process(short[] frame, int offset, int length) {
+        energyDb = energyDb(frame, offset, length);
+
+        if (Float.isNaN(floorDb) || energyDb < floorDb) {
+            floorDb = energyDb;
+        } else {
+            floorDb = Math.min(energyDb, floorDb + FLOOR_RISE_DB);
+        }
+
+        boolean active = energyDb > MIN_ACTIVE_DB && energyDb > floorDb + MARGIN_DB;
+        aboveFloor = active;
+        if (active) {
+            hangover = HANGOVER_FRAMES;
+        } else if (hangover > 0) {
+            hangover--;
+            return true;
+        }
+        return active;
+    }
+
+    /** Level of the last frame, in dB relative to full scale. */
+    public float getEnergyDb() {
+        return energyDb;
+    }
+
+    public float getNoiseFloorDb() {
+        return floorDb;
+    }
+
+    /** Whether the last frame was itself active, rather than only within the hangover. */
+    public boolean isAboveFloor() {
+        return aboveFloor;
+    }
+
+    public void reset() {
+        floorDb = Float.NaN;
+        energyDb = SILENCE_DB;
+        hangover = 0;
+        aboveFloor = false;
+    }
+
+    /** Mean power of the samples in dBFS. */
+    public static float energyDb(short[] frame, int offset, int length) {
+        if (length <= 0) return SILENCE_DB;
+
+        double sum = 0;
+        for (int i = offset; i < offset + length; i++) {
+            sum += (double) frame[i] * frame[i];
+        }
+        double meanSquare = sum / length;
+        if (meanSquare <= 0) return SILENCE_DB;
+
+        return (float) (10 * Math.log10(meanSquare / (32768.0 * 32768.0)));
+    }
+}
@@ -0,0 +1,45 @@
+package com.ivrcallmanager.dsp;
+
+/**
+ * Single-frequency power by the Goertzel algorithm, for when only a handful of
+ * frequencies matter and a full FFT would be wasted work.
+ */
+public final class Goertzel {
+
+    private Goertzel() {
+    }
+
+    /** Filter coefficient for {@code frequency} at {@code sampleRate}. */
+    public static double coefficient(double frequency, int sampleRate) {
+        return 2 * Math.cos(2 * Math.PI * frequency / sampleRate);
+    }
+
+    /**
+     * Power of the samples at the coefficient's frequency. A sine of amplitude
+     * a over n samples gives about (a * n / 2)^2.
+     */
+    public static double power(short[] samples, int offset, int length, double coefficient) {
+        double s1 = 0;
+        double s2 = 0;
+        for (int i = offset; i < offset + length; i++) {
+            double s0 = samples[i] + coefficient * s1 - s2;
+            s2 = s1;
+            s1 = s0;
+        }
+        return s1 * s1 + s2 * s2 - coefficient * s1 * s2;
+    }
+
+    /**
+     * Share of the samples' energy found at the given frequencies: about 1 for
+     * a clean tone made of exactly those frequencies, near 0 for anything else.
+     */
+    public static double share(short[] samples, int offset, int length, double energy, double[] coefficients) {
+        if (energy <= 0) return 0;
+
+        double power = 0;
+        for (double coefficient : coefficients) {
+            power += power(samples, offset, length, coefficient);
+        }
+        return power / (energy * length / 2);
+    }
+}
@@ -0,0 +1,172 @@
+package com.ivrcallmanager.dsp;
+
+/**
+ * Polyphase sample-rate converter for 16-bit mono PCM.
+ *
+ * The rate ratio is reduced to L/M (e.g. 44100 to 8000 is 80/441). Conceptually
+ * the input is upsampled by L, low-pass filtered below the lower of the two
+ * Nyquist frequencies and decimated by M; the polyphase form only evaluates
+ * the filter taps that land on real input samples and only for the outputs
+ * that are kept, so the cost is about {@code getTapsPerPhase()} multiply-adds
+ * per output sample.
+ *
+ * The filter is a Blackman-windowed sinc. All tables are built in the
+ * constructor; {@link #process} and {@link #flush} do not allocate, and state
+ * carries over between calls, so input can be fed in arbitrary blocks.
+ *
+ * Not thread-safe.
+ */
+public final class Resampler {
+
+    // Zero crossings of the sinc on each side of the centre tap
+    private static final int ZERO_CROSSINGS = 8;
+    // Cutoff as a fraction of the output Nyquist frequency, leaving room for the transition band
+    private static final double CUTOFF = 0.9;
+
+    private final int inputRate;
+    private final int outputRate;
+    private final int up;
+    private final int down;
+    private final int taps;
+
+    // coefficients[phase][k] applies to the k-th most recent input sample
+    private final float[][] coefficients;
+
+    // Delay line, stored twice so the newest taps samples are always contiguous
+    private final float[] history;
+    private int head = 0;
+    private int phase = 0;
+
+    public Resampler(int inputRate, int outputRate) {
+        if (inputRate <= 0 || outputRate <= 0) {
+            throw new IllegalArgumentException("Sample rates must be positive");
+        }
+
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+
+        int gcd = gcd(inputRate, outputRate);
+        this.up = outputRate / gcd;
+        this.down = inputRate / gcd;
+
+        // Distance between zero crossings, in upsampled samples
+        double spacing = (double) up * Math.max(1.0, (double) down / up) / CUTOFF;
+        int length = (int) Math.ceil(2 * ZERO_CROSSINGS * spacing) | 1;
+        this.taps = (length + up - 1) / up;
+
+        this.coefficients = design(length, spacing);
+        this.history = new float[taps * 2];
+    }
+
+    public int getInputRate() {
+        return inputRate;
+    }
+
+    public int getOutputRate() {
+        return outputRate;
+    }
+
+    public int getTapsPerPhase() {
+        return taps;
+    }
+
+    /** Upper bound on the samples {@link #process} produces from {@code inputLength} samples. */
+    public int maxOutput(int inputLength) {
+        return (int) (((long) inputLength * up + phase) / down) + 1;
+    }
+
+    /**
+     * Resample {@code length} samples from {@code input}.
+     *
+     * @return the number of samples written to {@code output}, which must have
+     *         room for {@link #maxOutput}{@code (length)}
+     */
+    public int process(short[] input, int offset, int length, short[] output, int outputOffset) {
+        if (up == down) {
+            System.arraycopy(input, offset, output, outputOffset, length);
+            return length;
+        }
+
+        int written = 0;
+        for (int i = 0; i < length; i++) {
+            written += push(input[offset + i], output, outputOffset + written);
+        }
+        return written;
+    }
+
+    /**
+     * Push out the samples still inside the filter at the end of the input.
+     *
+     * @return the number of samples written to {@code output}, which must have
+     *         room for {@link #maxOutput}{@code (getTapsPerPhase())}
+     */
+    public int flush(short[] output, int outputOffset) {
+        if (up == down) return 0;
+
+        int written = 0;
+        // The filter delay is half its length
+        for (int i = 0; i < taps / 2 + 1; i++) {
+            written += push((short) 0, output, outputOffset + written);
+        }
+        return written;
+    }
+
+    public void reset() {
+        java.util.Arrays.fill(history, 0f);
+        head = 0;
+        phase = 0;
+    }
+
+    private int push(short sample, short[] output, int outputOffset) {
+        head = head == 0 ? taps - 1 : head - 1;
+        history[head] = sample;
+        history[head + taps] = sample;
+
+        int written = 0;
+        while (phase < up) {
+            float[] c = coefficients[phase];
+            float acc = 0f;
+            for (int k = 0; k < taps; k++) {
+                acc += c[k] * history[head + k];
+            }
+            output[outputOffset + written++] = clip(acc);
+            phase += down;
+        }
+        phase -= up;
+        return written;
+    }
+
+    private float[][] design(int length, double spacing) {
+        float[][] table = new float[up][taps];
+        double centre = (length - 1) / 2.0;
+
+        for (int i = 0; i < length; i++) {
+            double x = (i - centre) / spacing;
+            double sinc = x == 0 ? 1.0 : Math.sin(Math.PI * x) / (Math.PI * x);
+            double window = 0.42
+                - 0.5 * Math.cos(2 * Math.PI * i / (length - 1))
+                + 0.08 * Math.cos(4 * Math.PI * i / (length - 1));
+
+            // Gain of up restores the level lost to the zeros inserted by upsampling
+            double h = sinc * window * up / spacing;
+            table[i % up][i / up] = (float) h;
+        }
+        return table;
+    }
+
+    private static short clip(float value) {
+        int rounded = Math.round(value);
+        if (rounded > Short.MAX_VALUE) return Short.MAX_VALUE;
+        if (rounded < Short.MIN_VALUE) return Short.MIN_VALUE;
+        return (short) rounded;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
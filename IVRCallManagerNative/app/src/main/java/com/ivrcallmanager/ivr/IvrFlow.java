@@ -0,0 +1,264 @@
+package com.ivrcallmanager.ivr;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An IVR flow as the backend serves it from {@code GET /ivr-flows/:id},
+ * compiled into a transition table. Nodes are numbered from 0 and every
+ * property of a node lives in a plain array at that index; the action for
+ * each DTMF key is an entry in {@link #next(int, char)}'s table, with goto
+ * targets already resolved to node indices. Following a key press is two
+ * array reads, so a deep menu costs no more per key than a single prompt.
+ * A node without a recording can have its {@code promptText} spoken instead.
+ * Immutable once parsed.
+ */
+public final class IvrFlow {
+
+    // Transitions below zero; zero and up are node indices
+    public static final int NO_ACTION = -1;
+    public static final int END = -2;
+    public static final int TRANSFER = -3;
+    public static final int MISSING = -4;
+
+    // 0-9, * and #
+    private static final int KEY_COUNT = 12;
+
+    public final int id;
+    public final String name;
+    public final int start;
+    // Language for prompts spoken from text
+    public final String language;
+
+    private final String[] keys;
+    private final int[] audioFileIds;
+    // Text to speak where a node has no recording, else null
+    private final String[] promptTexts;
+    private final int[] retryAudioFileIds;
+    private final long[] timeoutsMs;
+    private final int[] retryCounts;
+    private final boolean[] expectsInput;
+    // KEY_COUNT entries per node
+    private final int[] transitions;
+    // Transfer numbers, same layout, only set where the transition is TRANSFER
+    private final String[] transferTargets;
+
+    private IvrFlow(int id, String name, int start, String language, String[] keys, int[] audioFileIds,
+                    String[] promptTexts, int[] retryAudioFileIds, long[] timeoutsMs, int[] retryCounts,
+                    boolean[] expectsInput, int[] transitions, String[] transferTargets) {
+        this.id = id;
+        this.name = name;
+        this.start = start;
+        this.language = language;
+        this.keys = keys;
+        this.audioFileIds = audioFileIds;
+        this.promptTexts = promptTexts;
+        this.retryAudioFileIds = retryAudioFileIds;
+        this.timeoutsMs = timeoutsMs;
+        this.retryCounts = retryCounts;
+        this.expectsInput = expectsInput;
+        this.transitions = transitions;
+        this.transferTargets = transferTargets;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    public String key(int node) {
+        return keys[node];
+    }
+
+    public int audioFileId(int node) {
+        return audioFileIds[node];
+    }
+
+    public String promptText(int node) {
+        return promptTexts[node];
+    }
+
+    public int retryAudioFileId(int node) {
+        return retryAudioFileIds[node];
+    }
+
+    public long timeoutMs(int node) {
+        return timeoutsMs[node];
+    }
+
+    public int retryCount(int node) {
+        return retryCounts[node];
+    }
+
+    /** Whether the node waits for a key after its prompt. */
+    public boolean expectsInput(int node) {
+        return expectsInput[node];
+    }
+
+    /**
+     * Where {@code digit} leads from {@code node}: a node index, or
+     * {@link #NO_ACTION}, {@link #END}, {@link #TRANSFER} or {@link #MISSING}
+     * (a goto to a node the flow does not have).
+     */
+    public int next(int node, char digit) {
+        int slot = slot(digit);
+        return slot < 0 ? NO_ACTION : transitions[node * KEY_COUNT + slot];
+    }
+
+    /** The number a {@link #TRANSFER} transition asks for, or null. */
+    public String transferTarget(int node, char digit) {
+        int slot = slot(digit);
+        return slot < 0 ? null : transferTargets[node * KEY_COUNT + slot];
+    }
+
+    /** Every audio file the flow can play, so they can all be prepared before dialing. */
+    public Set<Integer> audioFileIds() {
+        Set<Integer> ids = new LinkedHashSet<>();
+        for (int i = 0; i < keys.length; i++) {
+            if (audioFileIds[i] > 0) ids.add(audioFileIds[i]);
+            if (retryAudioFileIds[i] > 0) ids.add(retryAudioFileIds[i]);
+        }
+        return ids;
+    }
+
+    /** Every prompt the flow speaks from text, so they can all be rendered before dialing. */
+    public Set<String> promptTexts() {
+        Set<String> texts = new LinkedHashSet<>();
+        for (String text : promptTexts) {
+            if (text != null) texts.add(text);
+        }
+        return texts;
+    }
+
+    private static int slot(char digit) {
+        if (digit >= '0' && digit <= '9') return digit - '0';
+        if (digit == '*') return 10;
+        if (digit == '#') return 11;
+        return -1;
+    }
+
+    /**
+     * Parse and compile the flow object. The entry node is
+     * {@code flowConfig.startNode} if set, otherwise the first node without a
+     * parent, otherwise the first node. A key's action is {@code goto},
+     * {@code transfer}, {@code end}, {@code repeat} (the node itself) or
+     * {@code back} (the node's parent, or the node itself at the top); any other
+     * type fails the parse rather than quietly ending the call.
+     */
+    public static IvrFlow parse(JSONObject json) throws JSONException {
+        int id = json.getInt("id");
+        int defaultRetries = json.optInt("maxRetries", 3);
+        int defaultTimeout = json.optInt("timeout", 10);
+
+        JSONArray nodeArray = json.optJSONArray("nodes");
+        if (nodeArray == null || nodeArray.length() == 0) {
+            throw new JSONException("IVR flow " + id + " has no nodes");
+        }
+
+        int count = nodeArray.length();
+        String[] keys = new String[count];
+        String[] types = new String[count];
+        int[] audioFileIds = new int[count];
+        String[] promptTexts = new String[count];
+        int[] retryAudioFileIds = new int[count];
+        long[] timeoutsMs = new long[count];
+        int[] retryCounts = new int[count];
+        Map<String, Integer> indices = new HashMap<>();
+        // Node ids as the backend numbers them, which parentNodeId refers to
+        Map<Integer, Integer> byId = new HashMap<>();
+        Integer[] parentIds = new Integer[count];
+        int root = -1;
+
+        // First pass numbers the nodes, so goto targets can be resolved in the second
+        for (int i = 0; i < count; i++) {
+            JSONObject item = nodeArray.getJSONObject(i);
+            keys[i] = item.getString("nodeKey");
+            types[i] = item.optString("nodeType", "menu");
+            audioFileIds[i] = item.optInt("audioFileId", 0);
+            // A recording wins over the text
+            String text = item.isNull("promptText") ? "" : item.optString("promptText").trim();
+            promptTexts[i] = audioFileIds[i] <= 0 && !text.isEmpty() ? text : null;
+            retryAudioFileIds[i] = item.optInt("retryAudioFileId", 0);
+            timeoutsMs[i] = item.optInt("timeout", defaultTimeout) * 1000L;
+            retryCounts[i] = item.optInt("retryCount", defaultRetries);
+
+            if (indices.containsKey(keys[i])) {
+                throw new JSONException("IVR flow " + id + " has node " + keys[i] + " twice");
+            }
+            indices.put(keys[i], i);
+            if (item.has("id")) byId.put(item.getInt("id"), i);
+
+            if (item.isNull("parentNodeId")) {
+                if (root < 0) root = i;
+            } else {
+                parentIds[i] = item.getInt("parentNodeId");
+            }
+        }
+
+        int[] transitions = new int[count * KEY_COUNT];
+        String[] transferTargets = new String[count * KEY_COUNT];
+        boolean[] expectsInput = new boolean[count];
+        Arrays.fill(transitions, NO_ACTION);
+
+        for (int i = 0; i < count; i++) {
+            Integer parent = parentIds[i] != null ? byId.get(parentIds[i]) : Integer.valueOf(i);
+            JSONObject actions = nodeArray.getJSONObject(i).optJSONObject("actions");
+            boolean any = compileActions(id, keys[i], actions, indices, i, parent != null ? parent : MISSING,
+                transitions, transferTargets);
+            expectsInput[i] = any && !"end".equals(types[i]);
+        }
+
+        JSONObject config = json.optJSONObject("flowConfig");
+        String startKey = config != null ? config.optString("startNode", null) : null;
+        Integer start = startKey != null ? indices.get(startKey) : null;
+        if (start == null) start = root >= 0 ? root : 0;
+
+        String language = json.isNull("defaultLanguage") ? "en" : json.optString("defaultLanguage", "en");
+        return new IvrFlow(id, json.optString("name"), start, language, keys, audioFileIds, promptTexts,
+            retryAudioFileIds, timeoutsMs, retryCounts, expectsInput, transitions, transferTargets);
+    }
+
+    // Fills one node's row of the table; returns whether it has any action
+    private static boolean compileActions(int flowId, String nodeKey, JSONObject json, Map<String, Integer> indices,
+                                          int node, int parent, int[] transitions, String[] transferTargets)
+            throws JSONException {
+        if (json == null) return false;
+
+        int row = node * KEY_COUNT;
+        boolean any = false;
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            JSONObject action = json.optJSONObject(key);
+            int slot = key.length() == 1 ? slot(key.charAt(0)) : -1;
+            if (slot < 0 || action == null) continue;
+
+            String type = action.optString("type");
+            if ("goto".equals(type)) {
+                Integer target = indices.get(action.getString("target"));
+                transitions[row + slot] = target != null ? target : MISSING;
+            } else if ("transfer".equals(type)) {
+                transitions[row + slot] = TRANSFER;
+                transferTargets[row + slot] = action.optString("number", null);
+            } else if ("repeat".equals(type)) {
+                transitions[row + slot] = node;
+            } else if ("back".equals(type)) {
+                transitions[row + slot] = parent;
+            } else if ("end".equals(type)) {
+                transitions[row + slot] = END;
+            } else {
+                throw new JSONException("IVR flow " + flowId + " node " + nodeKey + " has unknown action \""
+                    + type + "\" on key " + key);
+            }
+            any = true;
+        }
+        return any;
+    }
+}
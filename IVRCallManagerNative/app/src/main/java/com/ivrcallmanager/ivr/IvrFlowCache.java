@@ -0,0 +1,176 @@
+package com.ivrcallmanager.ivr;
+
+import android.util.Log;
+
+import com.ivrcallmanager.network.ApiClient;
+import com.ivrcallmanager.utils.PreferenceManager;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import okhttp3.Response;
+
+/**
+ * IVR flows cached on the device, so a call can walk its menus without
+ * asking the backend anything.
+ *
+ * Each flow is kept in memory and on disk as the backend returned it, along
+ * with its ETag. It is revalidated with If-None-Match once it is older than
+ * {@link #REVALIDATE_AFTER_MS}; when the backend cannot be reached the cached
+ * copy is used however old it is.
+ */
+public class IvrFlowCache {
+
+    private static final String TAG = "IvrFlowCache";
+
+    private static final String DIR_NAME = "ivr_flows";
+    private static final long REVALIDATE_AFTER_MS = 5 * 60 * 1000;
+
+    private static final class Entry {
+        final IvrFlow flow;
+        final String etag;
+        long validatedAt;
+
+        Entry(IvrFlow flow, String etag, long validatedAt) {
+            this.flow = flow;
+            this.etag = etag;
+            this.validatedAt = validatedAt;
+        }
+    }
+
+    private final File dir;
+    private final ApiClient apiClient;
+    private final PreferenceManager prefManager;
+    private final Map<Integer, Entry> entries = Collections.synchronizedMap(new HashMap<>());
+
+    public IvrFlowCache(File filesDir, ApiClient apiClient, PreferenceManager prefManager) {
+        this.dir = new File(filesDir, DIR_NAME);
+        this.apiClient = apiClient;
+        this.prefManager = prefManager;
+
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(TAG, "Could not create " + dir);
+        }
+    }
+
+    /** The cached flow without touching the network, or null. */
+    public IvrFlow get(int flowId) {
+        Entry entry = entry(flowId);
+        return entry != null ? entry.flow : null;
+    }
+
+    /**
+     * The flow, fetched or revalidated if needed. Blocks on the network, so
+     * call it from a worker thread. Returns null if it is neither cached nor
+     * fetchable.
+     */
+    public IvrFlow load(int flowId) {
+        Entry entry = entry(flowId);
+        if (entry != null && System.currentTimeMillis() - entry.validatedAt < REVALIDATE_AFTER_MS) {
+            return entry.flow;
+        }
+
+        try {
+            Entry fresh = fetch(flowId, entry);
+            if (fresh != null) return fresh.flow;
+        } catch (Exception e) {
+            Log.e(TAG, "Error fetching IVR flow " + flowId, e);
+        }
+
+        if (entry != null) {
+            Log.w(TAG, "Using cached IVR flow " + flowId + " without revalidation");
+            return entry.flow;
+        }
+        return null;
+    }
+
+    private Entry fetch(int flowId, Entry cached) throws Exception {
+        Map<String, String> headers = new HashMap<>();
+        if (cached != null && cached.etag != null) {
+            headers.put("If-None-Match", cached.etag);
+        }
+
+        try (Response response = apiClient.stream(ApiClient.Endpoint.COMMANDS,
+                "/ivr-flows/" + flowId, prefManager.getAuthToken(), headers)) {
+
+            if (response.code() == 304 && cached != null) {
+                cached.validatedAt = System.currentTimeMillis();
+                Log.d(TAG, "IVR flow " + flowId + " not modified");
+                return cached;
+            }
+
+            if (response.code() != 200 || response.body() == null) {
+                Log.e(TAG, "Failed to fetch IVR flow " + flowId + ". Response code: " + response.code());
+                return null;
+            }
+
+            JSONObject data = new JSONObject(response.body().string()).getJSONObject("data");
+            Entry entry = new Entry(IvrFlow.parse(data), response.header("ETag"), System.currentTimeMillis());
+            entries.put(flowId, entry);
+            save(flowId, data, entry.etag);
+
+            Log.d(TAG, "IVR flow " + flowId + " cached (" + entry.flow.size() + " nodes)");
+            return entry;
+        }
+    }
+
+    // From memory, or from disk after a restart
+    private Entry entry(int flowId) {
+        Entry entry = entries.get(flowId);
+        if (entry != null) return entry;
+
+        File file = new File(dir, flowId + ".json");
+        if (!file.exists()) return null;
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+
+            JSONObject json = new JSONObject(new String(bytes, 0, read, "UTF-8"));
+            // Revalidate on first use after a restart
+            entry = new Entry(IvrFlow.parse(json.getJSONObject("flow")), json.optString("etag", null), 0);
+            entries.put(flowId, entry);
+            return entry;
+
+        } catch (Exception e) {
+            Log.e(TAG, "Dropping unreadable cached IVR flow " + flowId, e);
+            file.delete();
+            return null;
+        }
+    }
+
+    // Written to a temp file and renamed, so a crash never leaves half a flow
+    private void save(int flowId, JSONObject flow, String etag) {
+        File file = new File(dir, flowId + ".json");
+        File tmp = new File(dir, flowId + ".json.tmp");
+
+        try {
+            JSONObject json = new JSONObject();
+            json.put("flow", flow);
+            if (etag != null) json.put("etag", etag);
+
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(json.toString().getBytes("UTF-8"));
+                out.getFD().sync();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving IVR flow " + flowId, e);
+            tmp.delete();
+        }
+    }
+}
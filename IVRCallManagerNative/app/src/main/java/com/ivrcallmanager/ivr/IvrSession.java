@@ -0,0 +1,225 @@
+package com.ivrcallmanager.ivr;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.ivrcallmanager.audio.AudioEngine;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Walks one call through an {@link IvrFlow} on the device: plays each node's
+ * prompt, waits for a key, and follows the key's action. A key pressed while
+ * a prompt is playing cuts it off. No input within the node's timeout, or a
+ * key the node has no action for, replays the prompt (after the retry prompt,
+ * if the node has one) until the node's retries run out.
+ *
+ * Every step is recorded, with how long its prompts played and whether the
+ * key that led to it barged in, and {@link #getPath()} returns the whole path
+ * for reporting once the call is over. Not thread-safe; use from the main thread.
+ */
+public class IvrSession {
+
+    private static final String TAG = "IvrSession";
+
+    public interface Listener {
+        /** The flow reached an end; {@code reason} says how, for the call notes. */
+        void onFlowEnded(String reason);
+    }
+
+    private final String callId;
+    private final IvrFlow flow;
+    private final AudioEngine audioEngine;
+    // Speech rendered before dialing for the flow's text prompts, by text
+    private final Map<String, File> spoken;
+    private final Listener listener;
+    private final Handler handler;
+    private final JSONArray path = new JSONArray();
+    private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+
+    private int current = -1;
+    private int retries;
+    private boolean prompting;
+    private JSONObject promptStep;
+    private boolean ended = false;
+
+    private final Runnable inputTimeout = () -> retry("timeout", (char) 0);
+
+    public IvrSession(String callId, IvrFlow flow, AudioEngine audioEngine, Map<String, File> spoken,
+                      Listener listener) {
+        this.callId = callId;
+        this.flow = flow;
+        this.audioEngine = audioEngine;
+        this.spoken = spoken;
+        this.listener = listener;
+        this.handler = new Handler(Looper.getMainLooper());
+        timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    public String getCallId() {
+        return callId;
+    }
+
+    public int getFlowId() {
+        return flow.id;
+    }
+
+    public void start() {
+        Log.d(TAG, "Call " + callId + " entering IVR flow " + flow.id + " (" + flow.name + ")");
+        enter(flow.start, (char) 0);
+    }
+
+    public void onDigit(char digit) {
+        if (ended || current < 0 || !flow.expectsInput(current)) return;
+
+        handler.removeCallbacks(inputTimeout);
+        int next = flow.next(current, digit);
+        if (next >= 0) {
+            enter(next, digit);
+            return;
+        }
+
+        switch (next) {
+            case IvrFlow.NO_ACTION:
+                retry("invalid", digit);
+                break;
+            case IvrFlow.MISSING:
+                record(current, digit, "missing_node");
+                end("Key " + digit + " at " + flow.key(current) + " leads to a node not in the flow");
+                break;
+            case IvrFlow.TRANSFER:
+                // The device cannot bridge a second call, so the flow ends here
+                record(current, digit, "transfer");
+                end("Transfer to " + flow.transferTarget(current, digit) + " requested");
+                break;
+            default:
+                record(current, digit, "end");
+                end("Caller ended the flow at " + flow.key(current));
+                break;
+        }
+    }
+
+    /** Stop without reporting an end, e.g. because the call is over. */
+    public void cancel() {
+        if (ended) return;
+
+        ended = true;
+        handler.removeCallbacks(inputTimeout);
+        audioEngine.stop();
+    }
+
+    /** A prompt started playing; its time is counted on the step recorded last. */
+    public void onPromptStarted() {
+        promptStep = path.optJSONObject(path.length() - 1);
+    }
+
+    public void onPromptEnded(long playedMs) {
+        if (promptStep == null) return;
+
+        try {
+            promptStep.put("promptMs", promptStep.optLong("promptMs") + playedMs);
+        } catch (Exception e) {
+            Log.e(TAG, "Error recording IVR prompt", e);
+        }
+    }
+
+    /** Nodes visited and keys pressed, oldest first. */
+    public JSONArray getPath() {
+        return path;
+    }
+
+    // digit is 0 when the node was entered without a key
+    private void enter(int node, char digit) {
+        long started = System.nanoTime();
+        current = node;
+        retries = 0;
+        record(node, digit, null);
+
+        playPrompt(node);
+        Log.d(TAG, "IVR " + callId + " -> " + flow.key(node) + (digit != 0 ? " on " + digit : "")
+            + " in " + (System.nanoTime() - started) / 1000 + "us");
+    }
+
+    private void playPrompt(int node) {
+        prompting = true;
+        int audioFileId = flow.audioFileId(node);
+        File speech = flow.promptText(node) != null ? spoken.get(flow.promptText(node)) : null;
+        if (audioFileId > 0) {
+            audioEngine.playPrompt(audioFileId, () -> onPromptFinished(node));
+        } else if (speech != null) {
+            audioEngine.playPcm(speech, () -> onPromptFinished(node));
+        } else {
+            onPromptFinished(node);
+        }
+    }
+
+    private void onPromptFinished(int node) {
+        if (ended || node != current) return;
+
+        prompting = false;
+        if (!flow.expectsInput(node)) {
+            end("Flow ended at " + flow.key(node));
+            return;
+        }
+        handler.postDelayed(inputTimeout, flow.timeoutMs(node));
+    }
+
+    private void retry(String event, char digit) {
+        if (ended) return;
+
+        int node = current;
+        record(node, digit, event);
+        if (++retries > flow.retryCount(node)) {
+            end("No valid input at " + flow.key(node) + " after " + flow.retryCount(node) + " retries");
+            return;
+        }
+
+        prompting = true;
+        int retryAudioFileId = flow.retryAudioFileId(node);
+        int audioFileId = flow.audioFileId(node);
+        if (retryAudioFileId > 0 && audioFileId > 0) {
+            // Back to back, with no gap between the two
+            audioEngine.playPrompts(new int[] { retryAudioFileId, audioFileId }, () -> onPromptFinished(node));
+        } else if (retryAudioFileId > 0) {
+            // Then the node's spoken prompt, if it has one
+            audioEngine.playPrompt(retryAudioFileId, () -> {
+                if (!ended && node == current) playPrompt(node);
+            });
+        } else {
+            playPrompt(node);
+        }
+    }
+
+    private void end(String reason) {
+        if (ended) return;
+
+        ended = true;
+        handler.removeCallbacks(inputTimeout);
+        Log.d(TAG, "IVR " + callId + " ended: " + reason);
+        listener.onFlowEnded(reason);
+    }
+
+    private void record(int node, char digit, String event) {
+        try {
+            JSONObject step = new JSONObject();
+            step.put("nodeKey", flow.key(node));
+            step.put("dtmfPressed", digit != 0 ? String.valueOf(digit) : JSONObject.NULL);
+            if (event != null) step.put("event", event);
+            // The key cut off the prompt
+            if (digit != 0 && prompting) step.put("bargeIn", true);
+            step.put("timestamp", timestampFormat.format(new Date()));
+            path.put(step);
+        } catch (Exception e) {
+            Log.e(TAG, "Error recording IVR step", e);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.ivrcallmanager.network;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.ConnectionPool;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Single HTTP client shared by every request the app makes to the backend.
+ *
+ * All endpoints share one connection pool, one TLS session cache and one DNS
+ * cache, so a status report right after a command fetch reuses the warm
+ * connection instead of paying a new handshake. Response bodies are gzip
+ * decoded transparently; larger JSON request bodies are gzip encoded.
+ */
+public class ApiClient {
+
+    private static final String TAG = "ApiClient";
+
+    public static final String SERVER_URL = "https://ivr.wxon.in";
+    public static final String API_URL = SERVER_URL + "/api";
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    // Below this size gzip framing costs more than it saves
+    private static final int GZIP_MIN_BYTES = 1024;
+
+    private static final long DNS_TTL_MS = 5 * 60 * 1000;
+    private static final int TLS_SESSION_CACHE_SIZE = 16;
+    private static final int TLS_SESSION_TIMEOUT_S = 24 * 60 * 60;
+
+    /** Timeouts per kind of request, in milliseconds. */
+    public enum Endpoint {
+        AUTH(30000, 30000),
+        REGISTER(30000, 30000),
+        COMMANDS(10000, 10000),
+        REPORT(10000, 15000),
+        DOWNLOAD(10000, 30000),
+        // socket.io does its own ping/pong, so reads must never time out
+        SOCKET(15000, 0);
+
+        final int connectTimeoutMs;
+        final int readTimeoutMs;
+
+        Endpoint(int connectTimeoutMs, int readTimeoutMs) {
+            this.connectTimeoutMs = connectTimeoutMs;
+            this.readTimeoutMs = readTimeoutMs;
+        }
+    }
+
+    /** Fully read response of a JSON request. */
+    public static class ApiResponse {
+        public final int code;
+        public final String body;
+
+        ApiResponse(int code, String body) {
+            this.code = code;
+            this.body = body;
+        }
+
+        public boolean isSuccessful() {
+            return code >= 200 && code < 300;
+        }
+
+        public JSONObject json() throws Exception {
+            return new JSONObject(body);
+        }
+    }
+
+    private static volatile ApiClient instance;
+
+    private final OkHttpClient baseClient;
+    private final CachingDns dns;
+    private final Map<Endpoint, OkHttpClient> clients = new EnumMap<>(Endpoint.class);
+
+    public static ApiClient getInstance() {
+        if (instance == null) {
+            synchronized (ApiClient.class) {
+                if (instance == null) {
+                    instance = new ApiClient();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private ApiClient() {
+        dns = new CachingDns(DNS_TTL_MS);
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+            .connectionPool(new ConnectionPool(5, 5, TimeUnit.MINUTES))
+            .dns(dns)
+            .retryOnConnectionFailure(true);
+
+        try {
+            // One SSLContext for the whole app so its session cache lets
+            // every new connection resume the previous TLS session
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init((KeyStore) null);
+            X509TrustManager trustManager = (X509TrustManager) tmf.getTrustManagers()[0];
+
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, new TrustManager[] { trustManager }, null);
+            sslContext.getClientSessionContext().setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+            sslContext.getClientSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT_S);
+
+            builder.sslSocketFactory(sslContext.getSocketFactory(), trustManager);
+        } catch (Exception e) {
+            Log.e(TAG, "Error setting up shared TLS context, using platform default", e);
+        }
+
+        baseClient = builder.build();
+
+        // Derived clients share the pool, dispatcher and TLS context
+        for (Endpoint endpoint : Endpoint.values()) {
+            clients.put(endpoint, baseClient.newBuilder()
+                .connectTimeout(endpoint.connectTimeoutMs, TimeUnit.MILLISECONDS)
+                .readTimeout(endpoint.readTimeoutMs, TimeUnit.MILLISECONDS)
+                .writeTimeout(endpoint.readTimeoutMs, TimeUnit.MILLISECONDS)
+                .build());
+        }
+    }
+
+    public OkHttpClient client(Endpoint endpoint) {
+        return clients.get(endpoint);
+    }
+
+    public CachingDns getDns() {
+        return dns;
+    }
+
+    public ApiResponse get(Endpoint endpoint, String path, String token) throws IOException {
+        return execute(endpoint, newRequest(path, token).get().build());
+    }
+
+    public ApiResponse post(Endpoint endpoint, String path, String token, JSONObject body) throws IOException {
+        return execute(endpoint, withJsonBody(newRequest(path, token), "POST", body).build());
+    }
+
+    public ApiResponse put(Endpoint endpoint, String path, String token, JSONObject body) throws IOException {
+        return execute(endpoint, withJsonBody(newRequest(path, token), "PUT", body).build());
+    }
+
+    /**
+     * Start a streaming GET. The caller must close the returned response so
+     * its connection goes back to the pool.
+     */
+    public Response stream(Endpoint endpoint, String path, String token, Map<String, String> headers) throws IOException {
+        Request.Builder builder = newRequest(path, token).get();
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                builder.header(header.getKey(), header.getValue());
+            }
+        }
+        return client(endpoint).newCall(builder.build()).execute();
+    }
+
+    private Request.Builder newRequest(String path, String token) {
+        Request.Builder builder = new Request.Builder()
+            .url(API_URL + path)
+            .header("Accept", "application/json");
+
+        if (token != null && !token.isEmpty()) {
+            builder.header("Authorization", "Bearer " + token);
+        }
+        return builder;
+    }
+
+    private ApiResponse execute(Endpoint endpoint, Request request) throws IOException {
+        // Closing the response drains it and returns the connection to the pool
+        try (Response response = client(endpoint).newCall(request).execute()) {
+            String body = response.body() != null ? response.body().string() : "";
+            return new ApiResponse(response.code(), body);
+        }
+    }
+
+    private static Request.Builder withJsonBody(Request.Builder builder, String method, JSONObject json) throws IOException {
+        byte[] raw = json.toString().getBytes("UTF-8");
+        if (raw.length < GZIP_MIN_BYTES) {
+            return builder.method(method, RequestBody.create(JSON, raw));
+        }
+
+        // The backend's JSON body parser inflates gzip request bodies
+        return builder
+            .header("Content-Encoding", "gzip")
+            .method(method, RequestBody.create(JSON, gzip(raw)));
+    }
+
+    private static byte[] gzip(byte[] raw) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(raw.length / 4 + 64);
+        GZIPOutputStream gzipStream = new GZIPOutputStream(bytes);
+        gzipStream.write(raw);
+        gzipStream.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,34 @@
+package com.ivrcallmanager.network;
+
+/**
+ * Token-bucket limit on the combined throughput of background transfers.
+ * Every transfer sharing one limiter draws from the same budget, so several
+ * concurrent prefetches together never use more than the configured rate.
+ */
+public class BandwidthLimiter {
+
+    private final long bytesPerSecond;
+
+    // Time (nanos) at which the bytes handed out so far have been "paid for"
+    private long nextFreeAt = 0;
+
+    public BandwidthLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /** Block until the budget allows another {@code bytes} to be transferred. */
+    public void acquire(int bytes) throws InterruptedException {
+        long waitNanos;
+
+        synchronized (this) {
+            long now = System.nanoTime();
+            // Unused budget does not accumulate beyond the current instant
+            nextFreeAt = Math.max(nextFreeAt, now) + bytes * 1000000000L / bytesPerSecond;
+            waitNanos = nextFreeAt - now;
+        }
+
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.ivrcallmanager.network;
+
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import okhttp3.Dns;
+
+/**
+ * DNS resolver that keeps lookups for a few minutes. The app only ever talks to
+ * one host, so re-resolving it before every request just costs radio time.
+ * A stale entry is served when a fresh lookup fails, which keeps requests going
+ * through short resolver outages on mobile networks.
+ */
+public class CachingDns implements Dns {
+
+    private static final String TAG = "CachingDns";
+
+    private static class Entry {
+        final List<InetAddress> addresses;
+        final long resolvedAt;
+
+        Entry(List<InetAddress> addresses, long resolvedAt) {
+            this.addresses = addresses;
+            this.resolvedAt = resolvedAt;
+        }
+    }
+
+    private final long ttlMs;
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<>();
+
+    public CachingDns(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        Entry entry = cache.get(hostname);
+        long now = System.currentTimeMillis();
+
+        if (entry != null && now - entry.resolvedAt < ttlMs) {
+            return entry.addresses;
+        }
+
+        try {
+            List<InetAddress> addresses = Dns.SYSTEM.lookup(hostname);
+            cache.put(hostname, new Entry(addresses, now));
+            return addresses;
+        } catch (UnknownHostException e) {
+            if (entry != null) {
+                Log.w(TAG, "DNS lookup failed for " + hostname + ", using cached addresses");
+                return entry.addresses;
+            }
+            throw e;
+        }
+    }
+
+    /** Forget cached addresses, e.g. after a network change. */
+    public void clear() {
+        cache.clear();
+    }
+}
@@ -0,0 +1,156 @@
+package com.ivrcallmanager.network;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.ivrcallmanager.utils.PreferenceManager;
+
+import org.json.JSONObject;
+
+import io.socket.client.IO;
+import io.socket.client.Socket;
+import io.socket.engineio.client.transports.WebSocket;
+import okhttp3.OkHttpClient;
+
+/**
+ * Persistent socket.io connection to the backend that tells the device as soon
+ * as call commands are queued for it. The channel only carries a wake-up
+ * signal; commands themselves are still fetched over HTTP so the poll fallback
+ * and the push path share one delivery route.
+ */
+public class CommandChannel {
+
+    private static final String TAG = "CommandChannel";
+    private static final long HEARTBEAT_INTERVAL_MS = 60000;
+
+    public interface Listener {
+        /** Backend has queued new commands for this device. */
+        void onCommandsPending();
+
+        /** Push channel became usable (true) or dropped (false). */
+        void onChannelStateChanged(boolean connected);
+    }
+
+    private final PreferenceManager prefManager;
+    private final Listener listener;
+    private final Handler mainHandler;
+
+    private Socket socket;
+    private volatile boolean authenticated = false;
+
+    private final Runnable heartbeatRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (socket != null && authenticated) {
+                try {
+                    JSONObject json = new JSONObject();
+                    json.put("deviceId", prefManager.getDeviceId());
+                    socket.emit("heartbeat", json);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error sending heartbeat", e);
+                }
+                mainHandler.postDelayed(this, HEARTBEAT_INTERVAL_MS);
+            }
+        }
+    };
+
+    public CommandChannel(PreferenceManager prefManager, Listener listener) {
+        this.prefManager = prefManager;
+        this.listener = listener;
+        this.mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    public void connect() {
+        if (socket != null) return;
+
+        try {
+            IO.Options options = new IO.Options();
+            options.transports = new String[] { WebSocket.NAME };
+            options.reconnection = true;
+            options.reconnectionDelay = 1000;
+            options.reconnectionDelayMax = 30000;
+
+            // Share the app-wide connection pool, TLS session cache and DNS cache
+            OkHttpClient client = ApiClient.getInstance().client(ApiClient.Endpoint.SOCKET);
+            options.callFactory = client;
+            options.webSocketFactory = client;
+
+            socket = IO.socket(ApiClient.SERVER_URL, options);
+
+            socket.on(Socket.EVENT_CONNECT, args -> authenticate());
+
+            socket.on("authenticated", args -> {
+                JSONObject result = args.length > 0 && args[0] instanceof JSONObject ? (JSONObject) args[0] : null;
+                boolean success = result != null && result.optBoolean("success", false);
+
+                mainHandler.post(() -> {
+                    if (success) {
+                        Log.d(TAG, "Push channel authenticated");
+                        authenticated = true;
+                        mainHandler.removeCallbacks(heartbeatRunnable);
+                        mainHandler.postDelayed(heartbeatRunnable, HEARTBEAT_INTERVAL_MS);
+                        listener.onChannelStateChanged(true);
+                    } else {
+                        Log.w(TAG, "Push channel authentication rejected: " + result);
+                    }
+                });
+            });
+
+            socket.on("commands:pending", args -> mainHandler.post(listener::onCommandsPending));
+
+            socket.on(Socket.EVENT_DISCONNECT, args -> mainHandler.post(() -> {
+                Log.w(TAG, "Push channel disconnected" + (args.length > 0 ? ": " + args[0] : ""));
+                markDown();
+            }));
+
+            socket.on(Socket.EVENT_CONNECT_ERROR, args -> mainHandler.post(() -> {
+                Log.w(TAG, "Push channel connect error" + (args.length > 0 ? ": " + args[0] : ""));
+                markDown();
+            }));
+
+            socket.connect();
+            Log.d(TAG, "Connecting push channel...");
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error creating push channel", e);
+            socket = null;
+        }
+    }
+
+    public void disconnect() {
+        mainHandler.removeCallbacks(heartbeatRunnable);
+        authenticated = false;
+
+        if (socket != null) {
+            socket.off();
+            socket.disconnect();
+            socket = null;
+        }
+    }
+
+    public boolean isConnected() {
+        return socket != null && socket.connected() && authenticated;
+    }
+
+    private void authenticate() {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("userType", "device");
+            json.put("userId", prefManager.getUserId());
+            json.put("deviceId", prefManager.getDeviceId());
+            json.put("token", prefManager.getAuthToken());
+            socket.emit("authenticate", json);
+        } catch (Exception e) {
+            Log.e(TAG, "Error authenticating push channel", e);
+        }
+    }
+
+    private void markDown() {
+        mainHandler.removeCallbacks(heartbeatRunnable);
+        if (authenticated) {
+            authenticated = false;
+            listener.onChannelStateChanged(false);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.ivrcallmanager.network;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Append-only on-disk log of call lifecycle events that have not yet been
+ * accepted by the backend.
+ *
+ * Every event is written as one JSON line before it is sent, so reports
+ * survive network loss and process death. Acknowledgements are appended as
+ * separate lines, and the file is rewritten with only the outstanding events
+ * once enough of it has been acknowledged. Appends only cost a write() call;
+ * {@link #sync()} is called once per outgoing batch rather than per event.
+ *
+ * Each event gets an {@code eventId} built from the device id and a sequence
+ * number that keeps increasing across compactions, so the backend can ignore
+ * events it has already applied when a batch is replayed.
+ */
+public class EventJournal {
+
+    private static final String TAG = "EventJournal";
+    private static final String FILE_NAME = "events.log";
+
+    // Rewrite the file once this many acknowledged records have piled up
+    private static final int COMPACT_AFTER_ACKS = 256;
+
+    /** Journal entry that still needs to reach the backend. */
+    public static class Record {
+        public final long seq;
+        public final JSONObject event;
+
+        Record(long seq, JSONObject event) {
+            this.seq = seq;
+            this.event = event;
+        }
+    }
+
+    private final File file;
+    private final String idPrefix;
+    private final TreeMap<Long, JSONObject> outstanding = new TreeMap<>();
+
+    private FileOutputStream out;
+    private long nextSeq = 1;
+    private int ackedSinceCompaction = 0;
+    private boolean dirty = false;
+
+    public EventJournal(File filesDir, String deviceId) {
+        File dir = new File(filesDir, "journal");
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        this.file = new File(dir, FILE_NAME);
+        this.idPrefix = deviceId;
+
+        load();
+        openForAppend();
+    }
+
+    /**
+     * Assign a sequence number and eventId to the event and append it.
+     * Returns the sequence number, or -1 if the event could not be written.
+     */
+    public synchronized long append(JSONObject event) {
+        long seq = nextSeq++;
+
+        try {
+            event.put("eventId", idPrefix + "-" + seq);
+
+            JSONObject line = new JSONObject();
+            line.put("seq", seq);
+            line.put("event", event);
+            write(line);
+
+            outstanding.put(seq, event);
+            return seq;
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error appending event " + seq, e);
+            return -1;
+        }
+    }
+
+    /** Flush appended records to stable storage. */
+    public synchronized void sync() {
+        if (!dirty || out == null) return;
+
+        try {
+            out.getFD().sync();
+            dirty = false;
+        } catch (IOException e) {
+            Log.e(TAG, "Error syncing journal", e);
+        }
+    }
+
+    /** Mark events as accepted by the backend. */
+    public synchronized void acknowledge(Collection<Long> seqs) {
+        if (seqs.isEmpty()) return;
+
+        try {
+            JSONObject line = new JSONObject();
+            line.put("ack", new JSONArray(seqs));
+            write(line);
+        } catch (Exception e) {
+            Log.e(TAG, "Error writing acknowledgement", e);
+        }
+
+        for (Long seq : seqs) {
+            if (outstanding.remove(seq) != null) {
+                ackedSinceCompaction++;
+            }
+        }
+
+        if (ackedSinceCompaction >= COMPACT_AFTER_ACKS || (outstanding.isEmpty() && ackedSinceCompaction > 0)) {
+            compact();
+        }
+    }
+
+    /** Events not yet acknowledged, oldest first. */
+    public synchronized List<Record> outstanding() {
+        List<Record> records = new ArrayList<>(outstanding.size());
+        for (Map.Entry<Long, JSONObject> entry : outstanding.entrySet()) {
+            records.add(new Record(entry.getKey(), entry.getValue()));
+        }
+        return records;
+    }
+
+    public synchronized int size() {
+        return outstanding.size();
+    }
+
+    private void write(JSONObject line) throws IOException {
+        if (out == null) {
+            throw new IOException("Journal not open");
+        }
+        out.write((line.toString() + "\n").getBytes("UTF-8"));
+        dirty = true;
+    }
+
+    private void load() {
+        if (!file.exists()) return;
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String text;
+            while ((text = reader.readLine()) != null) {
+                if (text.isEmpty()) continue;
+
+                JSONObject line;
+                try {
+                    line = new JSONObject(text);
+                } catch (Exception e) {
+                    // A torn final line after a crash; everything before it is intact
+                    Log.w(TAG, "Skipping unreadable journal line");
+                    continue;
+                }
+
+                if (line.has("base")) {
+                    nextSeq = Math.max(nextSeq, line.getLong("base"));
+                } else if (line.has("seq")) {
+                    long seq = line.getLong("seq");
+                    outstanding.put(seq, line.getJSONObject("event"));
+                    nextSeq = Math.max(nextSeq, seq + 1);
+                } else if (line.has("ack")) {
+                    JSONArray acked = line.getJSONArray("ack");
+                    for (int i = 0; i < acked.length(); i++) {
+                        if (outstanding.remove(acked.getLong(i)) != null) {
+                            ackedSinceCompaction++;
+                        }
+                    }
+                }
+            }
+            reader.close();
+
+            Log.d(TAG, "Journal loaded: " + outstanding.size() + " outstanding events");
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading journal", e);
+        }
+    }
+
+    private void openForAppend() {
+        try {
+            out = new FileOutputStream(file, true);
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening journal", e);
+            out = null;
+        }
+    }
+
+    // Rewrite the journal with only the outstanding events
+    private void compact() {
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try {
+            FileOutputStream compacted = new FileOutputStream(tmp);
+
+            JSONObject header = new JSONObject();
+            header.put("base", nextSeq);
+            compacted.write((header.toString() + "\n").getBytes("UTF-8"));
+
+            for (Map.Entry<Long, JSONObject> entry : outstanding.entrySet()) {
+                JSONObject line = new JSONObject();
+                line.put("seq", entry.getKey());
+                line.put("event", entry.getValue());
+                compacted.write((line.toString() + "\n").getBytes("UTF-8"));
+            }
+
+            compacted.getFD().sync();
+            compacted.close();
+
+            if (out != null) {
+                out.close();
+            }
+
+            if (!tmp.renameTo(file)) {
+                Log.e(TAG, "Error replacing journal during compaction");
+            }
+
+            ackedSinceCompaction = 0;
+            dirty = false;
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error compacting journal", e);
+        } finally {
+            openForAppend();
+        }
+    }
+}
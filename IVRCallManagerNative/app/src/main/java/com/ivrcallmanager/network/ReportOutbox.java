@@ -0,0 +1,405 @@
+package com.ivrcallmanager.network;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.ivrcallmanager.utils.PreferenceManager;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Collects call status and DTMF reports from every in-flight call and sends
+ * them to the backend as one batch request instead of one PUT per event.
+ * The IVR path of a call is one event of its own, posted to the call's
+ * ivr-navigation endpoint after the batch.
+ *
+ * A batch goes out when the flush window closes, when enough events are
+ * waiting, or straight away when a call reaches a terminal status. Several
+ * status events for the same call inside one batch are merged into one.
+ *
+ * Every event is written to the {@link EventJournal} before it is queued and
+ * only dropped from it once the backend has applied it, so events
+ * left over from a lost connection or a killed process are replayed in order
+ * on the next start or reconnect.
+ */
+public class ReportOutbox {
+
+    private static final String TAG = "ReportOutbox";
+
+    private static final long FLUSH_WINDOW_MS = 2000;
+    private static final int FLUSH_THRESHOLD = 20;
+    private static final int MAX_BATCH_SIZE = 200;
+    private static final long MAX_RETRY_DELAY_MS = 60000;
+
+    // Queued event plus the journal records it stands for (more than one
+    // once status events have been merged). A merged event is a copy, so the
+    // journal keeps each record as it was written.
+    private static class Entry {
+        JSONObject event;
+        boolean merged;
+        final List<Long> seqs = new ArrayList<>(1);
+
+        Entry(JSONObject event, long seq) {
+            this.event = event;
+            if (seq >= 0) seqs.add(seq);
+        }
+    }
+
+    private final ApiClient apiClient;
+    private final PreferenceManager prefManager;
+    private final EventJournal journal;
+    private final Executor executor;
+    private final Handler handler;
+
+    private final List<Entry> pending = new ArrayList<>();
+    private boolean flushScheduled = false;
+    private boolean flushing = false;
+    private long retryDelayMs = FLUSH_WINDOW_MS;
+
+    private final Runnable flushRunnable = this::flush;
+
+    public ReportOutbox(ApiClient apiClient, PreferenceManager prefManager, EventJournal journal, Executor executor) {
+        this.apiClient = apiClient;
+        this.prefManager = prefManager;
+        this.journal = journal;
+        this.executor = executor;
+        this.handler = new Handler(Looper.getMainLooper());
+
+        // Events from a previous run that never reached the backend, merged
+        // the same way as when they were first queued
+        for (EventJournal.Record record : journal.outstanding()) {
+            if (!coalesceQuietly(record.event, record.seq)) {
+                pending.add(new Entry(record.event, record.seq));
+            }
+        }
+        if (!pending.isEmpty()) {
+            Log.d(TAG, "Replaying " + pending.size() + " journaled events");
+        }
+    }
+
+    public void reportStatus(String callId, String status, Boolean answered, String notes) {
+        reportStatus(callId, status, answered, notes, null);
+    }
+
+    /** Status report carrying the measured call duration in seconds. */
+    public void reportStatus(String callId, String status, Boolean answered, String notes, Integer durationSec) {
+        if (callId == null) return;
+
+        try {
+            JSONObject event = newEvent("status", callId);
+            event.put("status", status);
+            if (answered != null) event.put("answered", answered);
+            if (notes != null) event.put("notes", notes);
+            if (durationSec != null) event.put("duration", durationSec);
+
+            add(event, isTerminal(status));
+        } catch (Exception e) {
+            Log.e(TAG, "Error queueing call status", e);
+        }
+    }
+
+    /**
+     * The callee picked up. Sent straight away, and the answer time travels
+     * as answeredAt, so it survives being merged with a later status.
+     */
+    public void reportAnswered(String callId, String notes) {
+        if (callId == null) return;
+
+        try {
+            JSONObject event = newEvent("status", callId);
+            event.put("status", "answered");
+            event.put("answered", true);
+            event.put("answeredAt", event.getString("timestamp"));
+            if (notes != null) event.put("notes", notes);
+
+            add(event, true);
+        } catch (Exception e) {
+            Log.e(TAG, "Error queueing call answer", e);
+        }
+    }
+
+    public void reportDtmf(String callId, String dtmfResponse) {
+        if (callId == null) return;
+
+        try {
+            JSONObject event = newEvent("dtmf", callId);
+            event.put("dtmfResponse", dtmfResponse);
+
+            add(event, false);
+        } catch (Exception e) {
+            Log.e(TAG, "Error queueing DTMF response", e);
+        }
+    }
+
+    /** The nodes and keys of a call's walk through an IVR flow, sent once the call is over. */
+    public void reportIvrPath(String callId, int flowId, JSONArray path) {
+        if (callId == null || path.length() == 0) return;
+
+        try {
+            JSONObject event = newEvent("ivr_navigation", callId);
+            event.put("flowId", flowId);
+            event.put("path", path);
+
+            add(event, true);
+        } catch (Exception e) {
+            Log.e(TAG, "Error queueing IVR path", e);
+        }
+    }
+
+    /** Send whatever is pending now, e.g. on reconnect or before going offline. */
+    public void flushNow() {
+        handler.removeCallbacks(flushRunnable);
+        flush();
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    private JSONObject newEvent(String type, String callId) throws Exception {
+        JSONObject event = new JSONObject();
+        event.put("type", type);
+        event.put("callId", callId);
+        event.put("deviceId", prefManager.getDeviceId());
+        event.put("timestamp", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US).format(new Date()));
+        return event;
+    }
+
+    private synchronized void add(JSONObject event, boolean urgent) throws Exception {
+        long seq = journal.append(event);
+
+        if (!coalesce(event, seq)) {
+            pending.add(new Entry(event, seq));
+        }
+
+        if (urgent || pending.size() >= FLUSH_THRESHOLD) {
+            handler.removeCallbacks(flushRunnable);
+            flushScheduled = false;
+            handler.post(flushRunnable);
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            handler.postDelayed(flushRunnable, FLUSH_WINDOW_MS);
+        }
+    }
+
+    private boolean coalesceQuietly(JSONObject event, long seq) {
+        try {
+            return coalesce(event, seq);
+        } catch (Exception e) {
+            Log.e(TAG, "Error merging journaled event", e);
+            return false;
+        }
+    }
+
+    // Merge a status event into a queued status event for the same call
+    private boolean coalesce(JSONObject event, long seq) throws Exception {
+        if (!"status".equals(event.optString("type"))) return false;
+
+        String callId = event.optString("callId");
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            Entry entry = pending.get(i);
+            JSONObject queued = entry.event;
+            if (!callId.equals(queued.optString("callId"))) continue;
+
+            // Keep DTMF ordering relative to later status changes
+            if (!"status".equals(queued.optString("type"))) return false;
+
+            if (!entry.merged) {
+                queued = new JSONObject(queued.toString());
+                entry.event = queued;
+                entry.merged = true;
+            }
+
+            queued.put("status", event.getString("status"));
+            queued.put("timestamp", event.getString("timestamp"));
+            if (event.has("answered")) queued.put("answered", event.getBoolean("answered"));
+            if (event.has("notes")) queued.put("notes", event.getString("notes"));
+            if (event.has("duration")) queued.put("duration", event.getInt("duration"));
+            if (event.has("answeredAt")) queued.put("answeredAt", event.getString("answeredAt"));
+            // The merged event is new content, so it needs a new idempotency key.
+            // It also names the events it replaces, so the backend recognises
+            // them if they are ever replayed unmerged.
+            if (event.has("eventId")) {
+                if (queued.has("eventId")) {
+                    JSONArray replaced = queued.optJSONArray("eventIds");
+                    if (replaced == null) {
+                        replaced = new JSONArray();
+                        queued.put("eventIds", replaced);
+                    }
+                    replaced.put(queued.getString("eventId"));
+                }
+                queued.put("eventId", event.getString("eventId"));
+            }
+            if (seq >= 0) entry.seqs.add(seq);
+            return true;
+        }
+        return false;
+    }
+
+    private void flush() {
+        final List<Entry> batch;
+
+        synchronized (this) {
+            flushScheduled = false;
+            if (flushing || pending.isEmpty()) return;
+
+            int size = Math.min(pending.size(), MAX_BATCH_SIZE);
+            batch = new ArrayList<>(pending.subList(0, size));
+            pending.subList(0, size).clear();
+            flushing = true;
+        }
+
+        try {
+            executor.execute(() -> {
+                List<Entry> unsent = send(batch);
+
+                synchronized (this) {
+                    flushing = false;
+
+                    List<Long> seqs = new ArrayList<>();
+                    for (Entry entry : batch) {
+                        if (!unsent.contains(entry)) seqs.addAll(entry.seqs);
+                    }
+                    journal.acknowledge(seqs);
+
+                    if (unsent.isEmpty()) {
+                        retryDelayMs = FLUSH_WINDOW_MS;
+                        if (!pending.isEmpty()) {
+                            handler.post(flushRunnable);
+                        }
+                    } else {
+                        retryLater(unsent);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Control lane full: nothing was sent, so take the whole batch back
+            synchronized (this) {
+                flushing = false;
+                retryLater(batch);
+            }
+        }
+    }
+
+    // Put what was not applied back in front of anything newer and back off
+    private void retryLater(List<Entry> unsent) {
+        pending.addAll(0, unsent);
+        retryDelayMs = Math.min(retryDelayMs * 2, MAX_RETRY_DELAY_MS);
+        flushScheduled = true;
+        handler.removeCallbacks(flushRunnable);
+        handler.postDelayed(flushRunnable, retryDelayMs);
+    }
+
+    // Returns the entries the backend did not apply, all of them if the request itself failed
+    private List<Entry> send(List<Entry> batch) {
+        List<Entry> unsent = new ArrayList<>();
+        try {
+            JSONArray events = new JSONArray();
+            List<Entry> sent = new ArrayList<>();
+            List<Entry> navigations = new ArrayList<>();
+            for (Entry entry : batch) {
+                if ("ivr_navigation".equals(entry.event.optString("type"))) {
+                    navigations.add(entry);
+                } else {
+                    events.put(entry.event);
+                    sent.add(entry);
+                }
+            }
+
+            // One fsync covers every event appended since the last batch
+            journal.sync();
+
+            if (events.length() > 0) {
+                JSONObject json = new JSONObject();
+                json.put("events", events);
+
+                ApiClient.ApiResponse response = apiClient.post(ApiClient.Endpoint.REPORT,
+                    "/call-logs/batch", prefManager.getAuthToken(), json);
+                Log.d(TAG, "Report batch response: " + response.code + " (" + events.length() + " events)");
+
+                if (!isAccepted(response.code)) {
+                    return batch;
+                }
+                if (response.isSuccessful()) {
+                    collectRejected(response, sent, unsent);
+                }
+            }
+
+            // The status batch goes first so the call log exists; the event id makes a resend harmless
+            for (Entry entry : navigations) {
+                JSONObject navigation = entry.event;
+                ApiClient.ApiResponse response = apiClient.post(ApiClient.Endpoint.REPORT,
+                    "/call-logs/" + navigation.getString("callId") + "/ivr-navigation",
+                    prefManager.getAuthToken(), navigation);
+                Log.d(TAG, "IVR path response: " + response.code + " (" + navigation.getJSONArray("path").length() + " steps)");
+
+                if (!isAccepted(response.code)) {
+                    unsent.add(entry);
+                }
+            }
+            return unsent;
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error sending report batch", e);
+            return batch;
+        }
+    }
+
+    /**
+     * Pick out the events the batch route reports as not applied, from its
+     * per-event results (in request order). Events it will never accept are
+     * dropped with a log line rather than retried forever.
+     */
+    private static void collectRejected(ApiClient.ApiResponse response, List<Entry> sent, List<Entry> unsent) {
+        JSONArray results;
+        try {
+            JSONObject data = response.json().optJSONObject("data");
+            results = data != null ? data.optJSONArray("results") : null;
+        } catch (Exception e) {
+            Log.w(TAG, "Unreadable report batch response; resending it");
+            unsent.addAll(sent);
+            return;
+        }
+        if (results == null) return;
+
+        for (int i = 0; i < sent.size(); i++) {
+            Entry entry = sent.get(i);
+            JSONObject result = results.optJSONObject(i);
+            String eventId = entry.event.optString("eventId", null);
+            if (result == null || (eventId != null && !eventId.equals(result.optString("eventId", eventId)))) {
+                // Results that do not line up with the request prove nothing
+                unsent.add(entry);
+            } else if (!result.optBoolean("success")) {
+                if (result.optBoolean("retryable", true)) {
+                    unsent.add(entry);
+                } else {
+                    Log.w(TAG, "Backend rejected " + entry.event.optString("type") + " event for call "
+                        + entry.event.optString("callId") + ": " + result.optString("message"));
+                }
+            }
+        }
+    }
+
+    // Keep events while logged out; other 4xx will not get better by retrying
+    private static boolean isAccepted(int code) {
+        if (code == 401 || code == 403) {
+            return false;
+        }
+        return code < 500;
+    }
+
+    private static boolean isTerminal(String status) {
+        return "completed".equals(status) || "failed".equals(status)
+            || "no_answer".equals(status) || "busy".equals(status) || "machine".equals(status);
+    }
+}
@@ -0,0 +1,1111 @@
+package com.ivrcallmanager.service;
+
+import android.Manifest;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.telecom.TelecomManager;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+import android.widget.Toast;
+
+import androidx.core.app.NotificationCompat;
+import androidx.core.content.ContextCompat;
+
+import com.ivrcallmanager.MainActivity;
+import com.ivrcallmanager.audio.AudioCache;
+import com.ivrcallmanager.audio.AudioEngine;
+import com.ivrcallmanager.audio.AudioPrefetcher;
+import com.ivrcallmanager.audio.PcmCache;
+import com.ivrcallmanager.audio.PromptAssembler;
+import com.ivrcallmanager.audio.TtsRenderer;
+import com.ivrcallmanager.audio.UplinkCapture;
+import com.ivrcallmanager.call.AnswerDetector;
+import com.ivrcallmanager.call.CallProgressMonitor;
+import com.ivrcallmanager.call.CallScheduler;
+import com.ivrcallmanager.call.CallStateMonitor;
+import com.ivrcallmanager.call.CommandQueue;
+import com.ivrcallmanager.call.DtmfMonitor;
+import com.ivrcallmanager.call.MachineDetector;
+import com.ivrcallmanager.dsp.CallProgressClassifier;
+import com.ivrcallmanager.dsp.CallProgressProfile;
+import com.ivrcallmanager.ivr.IvrFlow;
+import com.ivrcallmanager.ivr.IvrFlowCache;
+import com.ivrcallmanager.ivr.IvrSession;
+import com.ivrcallmanager.network.ApiClient;
+import com.ivrcallmanager.network.CommandChannel;
+import com.ivrcallmanager.network.EventJournal;
+import com.ivrcallmanager.network.ReportOutbox;
+import com.ivrcallmanager.utils.PreferenceManager;
+import com.ivrcallmanager.utils.TaskScheduler;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Foreground service that keeps the device in the calling pool: it registers
+ * the device, listens for call commands, places the calls, plays their audio
+ * and reports the results. It keeps running while the activity is in the
+ * background or destroyed; the activity only binds to it to show state and
+ * to forward user input.
+ *
+ * The service is sticky and remembers whether it was online, so after the
+ * system restarts it the device rejoins the pool on its own.
+ */
+public class DialerService extends Service {
+
+    private static final String TAG = "DialerService";
+
+    public static final String ACTION_START = "com.ivrcallmanager.action.START_DIALER";
+    public static final String ACTION_STOP = "com.ivrcallmanager.action.STOP_DIALER";
+
+    private static final String CHANNEL_ID = "dialer";
+    private static final int NOTIFICATION_ID = 1001;
+    private static final long POLL_INTERVAL_MS = 5000;
+    // Longest answering machine greeting to wait out before leaving the message
+    private static final long MACHINE_GREETING_WAIT_MS = 30000;
+
+    /** Callbacks to the bound activity. All run on the main thread. */
+    public interface Listener {
+        /** Online, polling or push state changed. */
+        void onStateChanged();
+
+        /** A call command is being dialed. */
+        void onCallStarted(String phoneNumber);
+
+        /** The callee pressed a key; it has already been reported. */
+        void onDtmfDigit(String callId, char digit);
+    }
+
+    public class LocalBinder extends Binder {
+        public DialerService getService() {
+            return DialerService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+
+    private PreferenceManager prefManager;
+    private ApiClient apiClient;
+    private TaskScheduler scheduler;
+    private ReportOutbox reportOutbox;
+    private CommandChannel commandChannel;
+    private CommandQueue commandQueue;
+    private CallStateMonitor callStateMonitor;
+    private CallScheduler callScheduler;
+    private AudioCache audioCache;
+    private PcmCache pcmCache;
+    private AudioEngine audioEngine;
+    private AudioPrefetcher audioPrefetcher;
+    private IvrFlowCache ivrFlowCache;
+    private final PromptAssembler promptAssembler = new PromptAssembler();
+    private TtsRenderer ttsRenderer;
+    private UplinkCapture uplinkCapture;
+    private AnswerDetector answerDetector;
+    private CallProgressMonitor callProgressMonitor;
+    private MachineDetector machineDetector;
+    private DtmfMonitor dtmfMonitor;
+    private Handler mainHandler;
+    private Handler pollingHandler;
+    private PowerManager.WakeLock wakeLock;
+    private Listener listener;
+
+    // IVR flow of the call being placed, and its walk once answered
+    private IvrFlow currentFlow;
+    private Map<String, File> currentSpoken;
+    // Assembled personalised message for the current call
+    private int[] currentPrompt;
+    private IvrSession ivrSession;
+
+    private final Runnable playAudio = this::startMessage;
+
+    private boolean isConnected = false;
+    private boolean isRegistering = false;
+    private boolean isPolling = false;
+
+    public static Intent startIntent(Context context) {
+        return new Intent(context, DialerService.class).setAction(ACTION_START);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        prefManager = new PreferenceManager(this);
+        apiClient = ApiClient.getInstance();
+        scheduler = new TaskScheduler();
+        reportOutbox = new ReportOutbox(apiClient, prefManager,
+            new EventJournal(getFilesDir(), prefManager.getDeviceId()),
+            scheduler.executor(TaskScheduler.Lane.CONTROL));
+        commandQueue = new CommandQueue(getFilesDir());
+        callStateMonitor = new CallStateMonitor(this, scheduler.executor(TaskScheduler.Lane.CONTROL));
+        callScheduler = new CallScheduler(commandQueue, new CallScheduler.Dialer() {
+            @Override
+            public boolean isLineFree() {
+                return DialerService.this.isLineFree();
+            }
+
+            @Override
+            public boolean dial(JSONObject command) {
+                return handleCallCommand(command);
+            }
+        }, prefManager.getCallGapMs());
+        audioCache = new AudioCache(getFilesDir(), apiClient, prefManager);
+        pcmCache = new PcmCache(getFilesDir(), audioCache);
+        audioEngine = new AudioEngine(this, audioCache, pcmCache, scheduler);
+        audioEngine.setPromptListener(new AudioEngine.PromptListener() {
+            @Override
+            public void onPromptStarted(int audioFileId) {
+                if (ivrSession != null) {
+                    ivrSession.onPromptStarted();
+                }
+            }
+
+            @Override
+            public void onPromptEnded(int audioFileId, long playedMs, boolean completed) {
+                Log.d(TAG, "Prompt " + audioFileId + " played " + playedMs + "ms" + (completed ? "" : " (cut off)"));
+                if (ivrSession != null) {
+                    ivrSession.onPromptEnded(playedMs);
+                }
+            }
+        });
+        audioPrefetcher = new AudioPrefetcher(audioCache, pcmCache, scheduler.executor(TaskScheduler.Lane.BULK));
+        ivrFlowCache = new IvrFlowCache(getFilesDir(), apiClient, prefManager);
+        ttsRenderer = new TtsRenderer(this, pcmCache);
+        uplinkCapture = new UplinkCapture(this, scheduler.executor(TaskScheduler.Lane.CAPTURE));
+        answerDetector = new AnswerDetector(uplinkCapture);
+        callProgressMonitor = new CallProgressMonitor(uplinkCapture);
+        machineDetector = new MachineDetector(uplinkCapture);
+        dtmfMonitor = new DtmfMonitor(uplinkCapture);
+        mainHandler = new Handler(Looper.getMainLooper());
+        pollingHandler = new Handler(Looper.getMainLooper());
+        commandChannel = new CommandChannel(prefManager, new CommandChannel.Listener() {
+            @Override
+            public void onCommandsPending() {
+                fetchCallCommands();
+            }
+
+            @Override
+            public void onChannelStateChanged(boolean connected) {
+                handleChannelStateChanged(connected);
+            }
+        });
+
+        createNotificationChannel();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Must be called promptly after every startForegroundService()
+        startForegroundCompat();
+
+        String action = intent != null ? intent.getAction() : null;
+
+        if (ACTION_STOP.equals(action)) {
+            goOffline();
+        } else if (ACTION_START.equals(action) || prefManager.isDialerOnline()) {
+            // A null intent is a sticky restart; resume if we were online
+            goOnline();
+        } else {
+            stopSelf();
+        }
+
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        callStateMonitor.cancel();
+        stopCallAudio();
+        audioEngine.release();
+        ttsRenderer.shutdown();
+
+        if (isConnected) {
+            reportOutbox.flushNow();
+            updateDeviceStatus("offline");
+            stopPolling();
+        }
+
+        releaseWakeLock();
+        scheduler.shutdown();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public boolean isConnected() {
+        return isConnected;
+    }
+
+    public boolean isRegistering() {
+        return isRegistering;
+    }
+
+    public boolean isPolling() {
+        return isPolling;
+    }
+
+    public boolean isPushConnected() {
+        return commandChannel.isConnected();
+    }
+
+    public CallScheduler.Metrics getCallMetrics() {
+        return callScheduler.getMetrics();
+    }
+
+    /** Register with the backend and start taking calls. */
+    public void goOnline() {
+        if (isConnected || isRegistering) return;
+
+        String token = prefManager.getAuthToken();
+        if (token == null || token.isEmpty()) {
+            Log.w(TAG, "Not logged in, dialer stays offline");
+            stopSelf();
+            return;
+        }
+
+        isRegistering = true;
+        prefManager.setDialerOnline(true);
+        notifyStateChanged();
+
+        // Register device with backend
+        boolean queued = scheduler.execute(TaskScheduler.Lane.CONTROL, () -> {
+            try {
+                String result = registerDeviceWithBackend();
+
+                mainHandler.post(() -> {
+                    isRegistering = false;
+                    handleDeviceRegistrationResponse(result);
+                });
+
+            } catch (Exception e) {
+                Log.e(TAG, "Device registration failed", e);
+                mainHandler.post(() -> {
+                    isRegistering = false;
+                    notifyStateChanged();
+                    Toast.makeText(this, "Registration failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                    // Keep retrying while we are supposed to be online
+                    if (prefManager.isDialerOnline()) {
+                        mainHandler.postDelayed(this::goOnline, POLL_INTERVAL_MS * 6);
+                    }
+                });
+            }
+        });
+        if (!queued) {
+            isRegistering = false;
+            notifyStateChanged();
+            mainHandler.postDelayed(this::goOnline, POLL_INTERVAL_MS);
+        }
+    }
+
+    /** Leave the calling pool and stop the service. */
+    public void goOffline() {
+        prefManager.setDialerOnline(false);
+        mainHandler.removeCallbacksAndMessages(null);
+
+        if (isConnected) {
+            reportOutbox.flushNow();
+            updateDeviceStatus("offline");
+            stopPolling();
+            scheduler.logMetrics();
+            Log.d(TAG, "Audio prefetch: " + audioPrefetcher.describe());
+            Log.d(TAG, "Audio cache: " + audioCache.describe());
+            Log.d(TAG, "PCM cache: " + pcmCache.describe());
+            Log.d(TAG, "Call scheduler: " + callScheduler.getMetrics());
+        }
+
+        isConnected = false;
+        releaseWakeLock();
+        notifyStateChanged();
+
+        stopForeground(true);
+        stopSelf();
+    }
+
+    public void reportDtmf(String callId, String dtmfResponse) {
+        reportOutbox.reportDtmf(callId, dtmfResponse);
+    }
+
+    public void reportCallStatus(String callId, String status, Boolean answered, String notes) {
+        reportOutbox.reportStatus(callId, status, answered, notes);
+    }
+
+    private String registerDeviceWithBackend() throws Exception {
+        // Create JSON payload
+        JSONObject json = new JSONObject();
+        json.put("deviceId", prefManager.getDeviceId());
+        json.put("deviceName", prefManager.getDeviceName());
+        json.put("deviceModel", Build.MODEL);
+        json.put("androidVersion", Build.VERSION.RELEASE);
+        json.put("appVersion", "2.0.0");
+
+        ApiClient.ApiResponse response = apiClient.post(ApiClient.Endpoint.REGISTER,
+            "/devices/register", prefManager.getAuthToken(), json);
+
+        Log.d(TAG, "Device Registration Response Code: " + response.code);
+        Log.d(TAG, "Device Registration Response: " + response.body);
+        return response.body;
+    }
+
+    private void handleDeviceRegistrationResponse(String response) {
+        try {
+            JSONObject json = new JSONObject(response);
+            boolean success = json.optBoolean("success", false);
+
+            if (success) {
+                isConnected = true;
+                acquireWakeLock();
+
+                // Update device status to online
+                updateDeviceStatus("online");
+
+                // Send any call reports left over from a previous session
+                reportOutbox.flushNow();
+
+                startPolling();
+
+                Toast.makeText(this, "Device registered and listening for calls!", Toast.LENGTH_SHORT).show();
+
+            } else {
+                String message = json.optString("message", "Device registration failed");
+                Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+                goOffline();
+                return;
+            }
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error parsing device registration response", e);
+            Toast.makeText(this, "Error parsing server response", Toast.LENGTH_LONG).show();
+        }
+
+        notifyStateChanged();
+    }
+
+    // HTTP poll used only while the push channel is down
+    private final Runnable pollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (isPolling && isConnected && !commandChannel.isConnected()) {
+                fetchCallCommands();
+                pollingHandler.postDelayed(this, POLL_INTERVAL_MS);
+            }
+        }
+    };
+
+    private void startPolling() {
+        if (isPolling) return;
+
+        isPolling = true;
+        Log.d(TAG, "Starting call command listener (push with polling fallback)...");
+
+        // Poll until the push channel is up, then it takes over
+        commandChannel.connect();
+        pollingHandler.post(pollRunnable);
+        // Commands restored from disk need their audio too
+        audioPrefetcher.scan(commandQueue.snapshot());
+        callScheduler.start();
+    }
+
+    private void stopPolling() {
+        isPolling = false;
+        callScheduler.stop();
+        pollingHandler.removeCallbacksAndMessages(null);
+        commandChannel.disconnect();
+        Log.d(TAG, "Stopped call command listener");
+    }
+
+    private void handleChannelStateChanged(boolean connected) {
+        pollingHandler.removeCallbacks(pollRunnable);
+
+        if (connected) {
+            Log.d(TAG, "Push channel up - polling paused");
+            // Replay any journaled reports now that the network is back
+            reportOutbox.flushNow();
+            // Pick up anything queued while the channel was down
+            if (isPolling && isConnected) {
+                fetchCallCommands();
+            }
+        } else if (isPolling && isConnected) {
+            Log.d(TAG, "Push channel down - falling back to polling");
+            pollingHandler.post(pollRunnable);
+        }
+
+        notifyStateChanged();
+    }
+
+    private void fetchCallCommands() {
+        boolean queued = scheduler.execute(TaskScheduler.Lane.CONTROL, () -> {
+            try {
+                checkForCallCommands();
+            } catch (Exception e) {
+                Log.e(TAG, "Error checking for call commands", e);
+            }
+        });
+        if (!queued) {
+            // The next poll or push fetches them
+            Log.w(TAG, "Control lane full, command fetch skipped");
+        }
+    }
+
+    private void checkForCallCommands() throws Exception {
+        ApiClient.ApiResponse response = apiClient.get(ApiClient.Endpoint.COMMANDS,
+            "/devices/" + prefManager.getDeviceId() + "/commands/pending", prefManager.getAuthToken());
+
+        if (response.code != 200) {
+            Log.w(TAG, "Call commands response code: " + response.code);
+            return;
+        }
+
+        JSONObject data = response.json().optJSONObject("data");
+        JSONArray commands = data != null ? data.optJSONArray("commands") : null;
+
+        if (commands == null || commands.length() == 0) return;
+
+        Log.d(TAG, "Received " + commands.length() + " call commands");
+
+        // Only acknowledge once the commands are durably queued on the device
+        List<String> ackIds = commandQueue.offerAll(commands);
+        if (!ackIds.isEmpty()) {
+            acknowledgeCommands(ackIds);
+        }
+
+        audioPrefetcher.scan(commandQueue.snapshot());
+
+        mainHandler.post(callScheduler::onCommandsQueued);
+    }
+
+    private void acknowledgeCommands(List<String> commandIds) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("commandIds", new JSONArray(commandIds));
+
+        ApiClient.ApiResponse response = apiClient.post(ApiClient.Endpoint.COMMANDS,
+            "/devices/" + prefManager.getDeviceId() + "/commands/ack", prefManager.getAuthToken(), json);
+
+        Log.d(TAG, "Command ack response: " + response.code + " (" + commandIds.size() + " commands)");
+    }
+
+    private void onCallFinished(boolean connected) {
+        currentFlow = null;
+        currentSpoken = null;
+        currentPrompt = null;
+        prefManager.clearCurrentCall();
+        callScheduler.onCallEnded(connected);
+        updateNotification();
+    }
+
+    // Whether the line is free of calls this service did not place
+    @SuppressWarnings("MissingPermission")
+    private boolean isLineFree() {
+        TelephonyManager telephonyManager = (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
+        try {
+            return telephonyManager == null
+                || telephonyManager.getCallState() == TelephonyManager.CALL_STATE_IDLE;
+        } catch (SecurityException e) {
+            return true;
+        }
+    }
+
+    // Returns true if the command placed (or tried to place) a call
+    private boolean handleCallCommand(JSONObject command) {
+        try {
+            String action = command.optString("action");
+
+            if ("make_call".equals(action)) {
+                String phoneNumber = command.optString("phoneNumber");
+                String callId = command.optString("callId");
+                int audioFileId = command.optInt("audioFileId", 0);
+                int ivrFlowId = command.optInt("ivrFlowId", 0);
+                JSONObject prompt = command.optJSONObject("prompt");
+
+                Log.d(TAG, "Received call command: " + phoneNumber + " (CallID: " + callId + ")");
+
+                // Store current call info for tracking
+                prefManager.setCurrentCallId(callId);
+                prefManager.setCurrentPhoneNumber(phoneNumber);
+                prefManager.setCurrentAudioFileId(audioFileId);
+
+                // Keep the look-ahead full now that the queue has moved on
+                audioPrefetcher.scan(commandQueue.snapshot());
+
+                currentFlow = null;
+                currentPrompt = null;
+                if (ivrFlowId > 0) {
+                    prepareIvrCall(phoneNumber, callId, ivrFlowId);
+                } else if (prompt != null) {
+                    preparePromptCall(phoneNumber, callId, prompt);
+                } else if (audioFileId > 0 && !audioPrefetcher.isReady(audioFileId)) {
+                    // Never dial before the message can be played; the slot stays held meanwhile.
+                    // Where playback can stream, the start of the file is enough.
+                    Log.d(TAG, "Waiting for audio " + audioFileId + " before calling " + phoneNumber);
+                    updateNotification("Fetching audio for " + phoneNumber);
+                    audioPrefetcher.ensureReady(audioFileId, AudioEngine.canStream(), (id, ready) -> {
+                        if (!isConnected) {
+                            reportCallStatus(callId, "failed", null, "Device went offline before dialing");
+                            onCallFinished(false);
+                        } else if (ready) {
+                            startCall(phoneNumber, callId);
+                        } else {
+                            reportCallStatus(callId, "failed", null, "Audio file " + id + " could not be downloaded");
+                            onCallFinished(false);
+                        }
+                    });
+                } else {
+                    startCall(phoneNumber, callId);
+                }
+                return true;
+            }
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error handling call command", e);
+        }
+        return false;
+    }
+
+    // The whole flow and every prompt it can play are fetched before dialing,
+    // so walking its menus during the call never waits on the network
+    private void prepareIvrCall(String phoneNumber, String callId, int ivrFlowId) {
+        updateNotification("Fetching IVR flow for " + phoneNumber);
+
+        boolean queued = scheduler.execute(TaskScheduler.Lane.BULK, () -> {
+            IvrFlow flow = ivrFlowCache.load(ivrFlowId);
+            // Text prompts are spoken into the PCM cache now, never once the call is up
+            Map<String, File> spoken = flow != null ? renderPromptTexts(flow) : null;
+
+            mainHandler.post(() -> {
+                if (flow == null) {
+                    reportCallStatus(callId, "failed", null, "IVR flow " + ivrFlowId + " could not be loaded");
+                    onCallFinished(false);
+                    return;
+                }
+                if (spoken == null) {
+                    reportCallStatus(callId, "failed", null, "Text prompts of IVR flow " + ivrFlowId + " could not be spoken");
+                    onCallFinished(false);
+                    return;
+                }
+
+                preparePrompts(flow.audioFileIds(), callId, "IVR flow " + ivrFlowId, () -> {
+                    currentFlow = flow;
+                    currentSpoken = spoken;
+                    startCall(phoneNumber, callId);
+                });
+            });
+        });
+        if (!queued) {
+            failBusy(callId);
+        }
+    }
+
+    // Worker thread; null if any text could not be rendered
+    private Map<String, File> renderPromptTexts(IvrFlow flow) {
+        Map<String, File> spoken = new HashMap<>();
+        for (String text : flow.promptTexts()) {
+            File pcm = ttsRenderer.render(text, flow.language);
+            if (pcm == null) return null;
+            spoken.put(text, pcm);
+        }
+        return spoken;
+    }
+
+    private void preparePromptCall(String phoneNumber, String callId, JSONObject prompt) {
+        int[] sequence;
+        try {
+            sequence = promptAssembler.assemble(prompt);
+        } catch (Exception e) {
+            Log.e(TAG, "Error assembling prompt for " + callId, e);
+            reportCallStatus(callId, "failed", null, "Prompt could not be assembled: " + e.getMessage());
+            onCallFinished(false);
+            return;
+        }
+
+        Set<Integer> fragments = new LinkedHashSet<>();
+        for (int audioFileId : sequence) {
+            fragments.add(audioFileId);
+        }
+
+        updateNotification("Preparing message for " + phoneNumber);
+        preparePrompts(fragments, callId, "the personalised message", () -> {
+            currentPrompt = sequence;
+            startCall(phoneNumber, callId);
+        });
+    }
+
+    /**
+     * Make sure every prompt is downloaded and decoded, then dial. Prompts
+     * already decoded for an earlier call of the campaign need nothing more,
+     * so usually only the first call waits here.
+     */
+    private void preparePrompts(Set<Integer> prompts, String callId, String what, Runnable dial) {
+        boolean queued = scheduler.execute(TaskScheduler.Lane.BULK, () -> {
+            Set<Integer> missing = new LinkedHashSet<>();
+            for (int audioFileId : prompts) {
+                if (pcmCache.get(audioFileId) == null) missing.add(audioFileId);
+            }
+
+            mainHandler.post(() -> {
+                if (missing.isEmpty()) {
+                    dialPrepared(callId, dial);
+                    return;
+                }
+
+                Log.d(TAG, "Preparing " + missing.size() + " prompts of " + what);
+                int[] waiting = { missing.size() };
+                boolean[] failed = { false };
+                for (int id : missing) {
+                    audioPrefetcher.ensureReady(id, false, (audioId, ready) -> {
+                        if (!ready) failed[0] = true;
+                        if (--waiting[0] > 0) return;
+
+                        if (failed[0]) {
+                            reportCallStatus(callId, "failed", null, "Prompts of " + what + " could not be downloaded");
+                            onCallFinished(false);
+                            return;
+                        }
+                        boolean decoding = scheduler.execute(TaskScheduler.Lane.BULK, () -> {
+                            for (int audioFileId : missing) {
+                                if (pcmCache.decode(audioFileId) == null) {
+                                    Log.w(TAG, "Prompt " + audioFileId + " could not be decoded; it will play through MediaPlayer");
+                                }
+                            }
+                            mainHandler.post(() -> dialPrepared(callId, dial));
+                        });
+                        if (!decoding) {
+                            failBusy(callId);
+                        }
+                    });
+                }
+            });
+        });
+        if (!queued) {
+            failBusy(callId);
+        }
+    }
+
+    // The work lane refused the call's preparation: report it and free the
+    // call slot rather than hold it for work that will never run
+    private void failBusy(String callId) {
+        reportCallStatus(callId, "failed", null, "Device too busy to prepare the call");
+        onCallFinished(false);
+    }
+
+    private void dialPrepared(String callId, Runnable dial) {
+        if (!isConnected) {
+            reportCallStatus(callId, "failed", null, "Device went offline before dialing");
+            onCallFinished(false);
+            return;
+        }
+
+        dial.run();
+    }
+
+    private void startCall(String phoneNumber, String callId) {
+        if (listener != null) {
+            listener.onCallStarted(phoneNumber);
+        }
+        makePhoneCall(phoneNumber, callId);
+    }
+
+    private void makePhoneCall(String phoneNumber, String callId) {
+        try {
+            if (ContextCompat.checkSelfPermission(this, Manifest.permission.CALL_PHONE)
+                != PackageManager.PERMISSION_GRANTED) {
+                Toast.makeText(this, "Phone permission required", Toast.LENGTH_LONG).show();
+                reportCallStatus(callId, "failed", null, "CALL_PHONE permission not granted");
+                onCallFinished(false);
+                return;
+            }
+
+            Log.d(TAG, "Making phone call to: " + phoneNumber);
+            updateNotification("Calling " + phoneNumber);
+
+            int audioFileId = prefManager.getCurrentAudioFileId();
+
+            reportCallStatus(callId, "initiated", null, null);
+
+            if (audioFileId > 0) {
+                audioEngine.prepare(audioFileId);
+            }
+
+            // Watch the line before dialing so the off-hook transition is not missed
+            startCallMonitoring(callId, phoneNumber);
+
+            placeCall(phoneNumber);
+            callScheduler.onCallPlaced();
+
+            Toast.makeText(this, "📞 Call initiated to: " + phoneNumber, Toast.LENGTH_SHORT).show();
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error making phone call", e);
+            Toast.makeText(this, "Failed to make call: " + e.getMessage(), Toast.LENGTH_LONG).show();
+
+            if (callId != null) {
+                reportCallStatus(callId, "failed", null, "Error: " + e.getMessage());
+            }
+            callStateMonitor.cancel();
+            stopCallAudio();
+            onCallFinished(false);
+        }
+    }
+
+    // Background activity starts are blocked on newer Android versions, so go
+    // through the telecom service when it is available
+    @SuppressWarnings("MissingPermission")
+    private void placeCall(String phoneNumber) {
+        Uri uri = Uri.parse("tel:" + phoneNumber);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            TelecomManager telecomManager = (TelecomManager) getSystemService(Context.TELECOM_SERVICE);
+            telecomManager.placeCall(uri, null);
+        } else {
+            Intent callIntent = new Intent(Intent.ACTION_CALL, uri);
+            callIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            startActivity(callIntent);
+        }
+    }
+
+    private void startCallMonitoring(String callId, String phoneNumber) {
+        callStateMonitor.begin(phoneNumber, new CallStateMonitor.Listener() {
+            // Set once a busy or unreachable tone has been reported for this call
+            private boolean failedEarly = false;
+            // Set when an answering machine picked up; reported with the outcome
+            private String machineNote = null;
+            // Set when the call audio showed the callee picking up
+            private boolean answered = false;
+
+            @Override
+            public void onCallStarted() {
+                reportCallStatus(callId, "ringing", null, null);
+                uplinkCapture.start();
+
+                callProgressMonitor.begin(callProgressProfile(), this::onProgressTone);
+
+                // Start the message when the callee picks up, not at a fixed delay
+                answerDetector.begin(prefManager.getAnswerFallbackMs(), signal -> {
+                    // From here on a busy tone means the callee hung up, not that the call failed
+                    callProgressMonitor.cancel();
+                    onAnswered(signal);
+                });
+
+                dtmfMonitor.begin(digit -> {
+                    if (ivrSession != null) {
+                        ivrSession.onDigit(digit);
+                    }
+                    reportDtmf(callId, String.valueOf(digit));
+                    if (listener != null) {
+                        listener.onDtmfDigit(callId, digit);
+                    }
+                });
+            }
+
+            @Override
+            public void onLineIdle(long lineTimeMs) {
+                // The slot is freed with the outcome, so the gap can follow it
+                stopCallAudio();
+            }
+
+            @Override
+            public void onOutcome(CallStateMonitor.Outcome outcome) {
+                if (failedEarly) {
+                    // Already reported; the call log would only call it unanswered
+                    Log.d(TAG, "Call " + callId + " ended " + outcome.lineTimeSec + "s after dialing");
+                } else if (machineNote != null) {
+                    int durationSec = outcome.answered != null ? outcome.durationSec : outcome.lineTimeSec;
+                    reportOutbox.reportStatus(callId, "machine", true,
+                        machineNote + " (" + durationSec + "s)", durationSec);
+                } else if (outcome.answered == null) {
+                    reportOutbox.reportStatus(callId, "completed", null,
+                        "Line time " + outcome.lineTimeSec + "s (call log unavailable)", outcome.lineTimeSec);
+                } else if (outcome.answered) {
+                    reportOutbox.reportStatus(callId, "completed", true,
+                        "Duration: " + outcome.durationSec + "s", outcome.durationSec);
+                } else {
+                    reportOutbox.reportStatus(callId, "no_answer", false,
+                        "Not answered (" + outcome.lineTimeSec + "s ringing)", 0);
+                }
+
+                boolean connected = !failedEarly && (outcome.answered != null ? outcome.answered : answered);
+                onCallFinished(connected);
+            }
+
+            @Override
+            public void onTimeout(boolean started, long lineTimeMs) {
+                stopCallAudio();
+                int lineTimeSec = (int) (lineTimeMs / 1000);
+                if (machineNote != null) {
+                    reportOutbox.reportStatus(callId, "machine", true,
+                        machineNote + " (" + lineTimeSec + "s)", lineTimeSec);
+                } else if (!failedEarly) {
+                    reportOutbox.reportStatus(callId, "failed", null,
+                        started ? "Call exceeded maximum duration" : "Call did not start",
+                        started ? lineTimeSec : null);
+                }
+                onCallFinished(started && !failedEarly && answered);
+            }
+
+            private void onAnswered(String signal) {
+                // The fallback fires on a timer, so it proves nothing
+                answered = !"fallback".equals(signal);
+                if (answered) {
+                    reportOutbox.reportAnswered(callId, "Answer detected (" + signal + ")");
+                }
+                boolean hasAudio = prefManager.getCurrentAudioFileId() > 0 || currentFlow != null || currentPrompt != null;
+                String policy = prefManager.getMachinePolicy();
+
+                // Without the call audio there is nothing to tell a machine by
+                if ("fallback".equals(signal) || PreferenceManager.MACHINE_POLICY_PLAY.equals(policy)) {
+                    if (hasAudio) {
+                        mainHandler.postDelayed(playAudio, prefManager.getAnswerLeadInMs());
+                    }
+                    return;
+                }
+
+                int speechSoFarMs = "speech".equals(signal) ? AnswerDetector.SPEECH_WINDOW_MS : 0;
+                machineDetector.begin(speechSoFarMs, (result, reason) -> {
+                    if (result != MachineDetector.Result.MACHINE) {
+                        if (hasAudio) {
+                            mainHandler.postDelayed(playAudio, prefManager.getAnswerLeadInMs());
+                        }
+                        return;
+                    }
+
+                    machineNote = "Answering machine: " + reason;
+                    if (PreferenceManager.MACHINE_POLICY_LEAVE_MESSAGE.equals(policy)) {
+                        if (hasAudio) {
+                            machineDetector.awaitGreetingEnd(MACHINE_GREETING_WAIT_MS, greetingSignal -> {
+                                machineNote += "; message left after " + greetingSignal;
+                                mainHandler.post(playAudio);
+                            });
+                        }
+                    } else {
+                        stopCallAudio();
+                        endCall();
+                    }
+                });
+            }
+
+            private void onProgressTone(CallProgressClassifier.Result result) {
+                if (result == CallProgressClassifier.Result.RINGBACK) return;
+
+                failedEarly = true;
+                stopCallAudio();
+
+                switch (result) {
+                    case BUSY:
+                        reportOutbox.reportStatus(callId, "busy", false, "Busy tone", 0);
+                        break;
+                    case CONGESTION:
+                        reportOutbox.reportStatus(callId, "failed", false, "Network congestion tone", 0);
+                        break;
+                    default:
+                        reportOutbox.reportStatus(callId, "failed", false,
+                            "Number unreachable (special information tone)", 0);
+                        break;
+                }
+
+                // The line going idle and its outcome then free the slot as for any other call
+                endCall();
+            }
+        });
+    }
+
+    private CallProgressProfile callProgressProfile() {
+        String region = prefManager.getCallProgressRegion();
+        if (region.isEmpty()) {
+            TelephonyManager telephonyManager = (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
+            region = telephonyManager != null ? telephonyManager.getNetworkCountryIso() : null;
+        }
+        return CallProgressProfile.forRegion(region);
+    }
+
+    // Hanging up needs API 28 and ANSWER_PHONE_CALLS; without them the call runs
+    // until the far end drops it or the call monitor times it out
+    @SuppressWarnings({"MissingPermission", "deprecation"})
+    private void endCall() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P
+            || ContextCompat.checkSelfPermission(this, Manifest.permission.ANSWER_PHONE_CALLS)
+                != PackageManager.PERMISSION_GRANTED) {
+            Log.d(TAG, "Cannot hang up, waiting for the call to end");
+            return;
+        }
+
+        try {
+            TelecomManager telecomManager = (TelecomManager) getSystemService(Context.TELECOM_SERVICE);
+            if (!telecomManager.endCall()) {
+                Log.w(TAG, "No call to hang up");
+            }
+        } catch (SecurityException e) {
+            Log.e(TAG, "Hanging up not allowed", e);
+        }
+    }
+
+    // Play the call's message, or walk it through its IVR flow
+    private void startMessage() {
+        if (currentPrompt != null) {
+            audioEngine.playPrompts(currentPrompt, null);
+            return;
+        }
+        if (currentFlow == null) {
+            audioEngine.play();
+            return;
+        }
+
+        String callId = prefManager.getCurrentCallId();
+        ivrSession = new IvrSession(callId, currentFlow, audioEngine, currentSpoken, reason -> endCall());
+        ivrSession.start();
+    }
+
+    private void stopCallAudio() {
+        if (ivrSession != null) {
+            ivrSession.cancel();
+            reportOutbox.reportIvrPath(ivrSession.getCallId(), ivrSession.getFlowId(), ivrSession.getPath());
+            ivrSession = null;
+        }
+        answerDetector.cancel();
+        callProgressMonitor.cancel();
+        machineDetector.cancel();
+        dtmfMonitor.cancel();
+        uplinkCapture.stop();
+        mainHandler.removeCallbacks(playAudio);
+        audioEngine.stop();
+    }
+
+    private void updateDeviceStatus(String status) {
+        boolean queued = scheduler.execute(TaskScheduler.Lane.CONTROL, () -> {
+            try {
+                JSONObject json = new JSONObject();
+                json.put("status", status);
+
+                ApiClient.ApiResponse response = apiClient.put(ApiClient.Endpoint.REPORT,
+                    "/devices/" + prefManager.getDeviceId() + "/status", prefManager.getAuthToken(), json);
+                Log.d(TAG, "Status update response: " + response.code);
+
+            } catch (Exception e) {
+                Log.e(TAG, "Error updating device status", e);
+            }
+        });
+        if (!queued) {
+            Log.w(TAG, "Control lane full, device status " + status + " not sent");
+        }
+    }
+
+    private void notifyStateChanged() {
+        updateNotification();
+        if (listener != null) {
+            listener.onStateChanged();
+        }
+    }
+
+    private String describeState() {
+        if (isRegistering) {
+            return "Registering device...";
+        } else if (isConnected && isPolling && commandChannel.isConnected()) {
+            return "Listening for calls (push)" + describeCallMetrics();
+        } else if (isConnected && isPolling) {
+            return "Listening for calls (polling)" + describeCallMetrics();
+        } else if (isConnected) {
+            return "Connected";
+        }
+        return "Offline";
+    }
+
+    private String describeCallMetrics() {
+        CallScheduler.Metrics metrics = callScheduler.getMetrics();
+        return String.format(java.util.Locale.US, " · %d queued · %.0f calls/h",
+            metrics.queueDepth, metrics.callsPerHour);
+    }
+
+    private void createNotificationChannel() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID, "Dialer",
+                NotificationManager.IMPORTANCE_LOW);
+            channel.setDescription("Shows while the device is taking calls");
+            getSystemService(NotificationManager.class).createNotificationChannel(channel);
+        }
+    }
+
+    private Notification buildNotification(String text) {
+        int flags = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0;
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+            new Intent(this, MainActivity.class), flags);
+
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+            .setContentTitle("IVR Call Manager")
+            .setContentText(text)
+            .setSmallIcon(android.R.drawable.sym_action_call)
+            .setContentIntent(contentIntent)
+            .setOngoing(true)
+            .setOnlyAlertOnce(true)
+            .setPriority(NotificationCompat.PRIORITY_LOW)
+            .build();
+    }
+
+    private void startForegroundCompat() {
+        Notification notification = buildNotification(describeState());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            int type = ServiceInfo.FOREGROUND_SERVICE_TYPE_PHONE_CALL;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                // Needed to read the call audio while in the background
+                type |= ServiceInfo.FOREGROUND_SERVICE_TYPE_MICROPHONE;
+            }
+            startForeground(NOTIFICATION_ID, notification, type);
+        } else {
+            startForeground(NOTIFICATION_ID, notification);
+        }
+    }
+
+    private void updateNotification() {
+        updateNotification(describeState());
+    }
+
+    private void updateNotification(String text) {
+        if (!isConnected && !isRegistering) return;
+
+        NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        manager.notify(NOTIFICATION_ID, buildNotification(text));
+    }
+
+    // Keep the CPU awake between polls and calls while the screen is off
+    private void acquireWakeLock() {
+        if (wakeLock == null) {
+            PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+            wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "IVRCallManager:dialer");
+            wakeLock.setReferenceCounted(false);
+        }
+        if (!wakeLock.isHeld()) {
+            wakeLock.acquire();
+        }
+    }
+
+    private void releaseWakeLock() {
+        if (wakeLock != null && wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+    }
+}
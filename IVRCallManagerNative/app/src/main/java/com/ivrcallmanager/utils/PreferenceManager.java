@@ -8,6 +8,11 @@ import java.util.UUID;
 
 public class PreferenceManager {
     
+    // What to do when an answering machine picks up
+    public static final String MACHINE_POLICY_HANG_UP = "hang_up";
+    public static final String MACHINE_POLICY_LEAVE_MESSAGE = "leave_message";
+    public static final String MACHINE_POLICY_PLAY = "play";
+    
     private static final String PREF_NAME = "IVRCallManager";
     private static final String KEY_AUTH_TOKEN = "auth_token";
     private static final String KEY_USER_ID = "user_id";
@@ -22,6 +27,27 @@ public class PreferenceManager {
     private static final String KEY_CURRENT_PHONE_NUMBER = "current_phone_number";
     private static final String KEY_CURRENT_AUDIO_FILE_ID = "current_audio_file_id";
     
+    // Whether the dialer service should be online, so it can resume after a restart
+    private static final String KEY_DIALER_ONLINE = "dialer_online";
+    
+    // Minimum pause between the end of one call and the next dial
+    private static final String KEY_CALL_GAP_MS = "call_gap_ms";
+    private static final long DEFAULT_CALL_GAP_MS = 2000;
+    
+    // Pause between detecting the answer and starting the message
+    private static final String KEY_ANSWER_LEAD_IN_MS = "answer_lead_in_ms";
+    private static final long DEFAULT_ANSWER_LEAD_IN_MS = 300;
+    
+    // When the call audio cannot be heard, start the message this long after off-hook
+    private static final String KEY_ANSWER_FALLBACK_MS = "answer_fallback_ms";
+    private static final long DEFAULT_ANSWER_FALLBACK_MS = 5000;
+    
+    // Country whose busy and ringback tones to expect; empty means the network's country
+    private static final String KEY_CALL_PROGRESS_REGION = "call_progress_region";
+    
+    // Hang up, leave the message after the beep, or play as to a person (no detection)
+    private static final String KEY_MACHINE_POLICY = "machine_policy";
+    
     private SharedPreferences preferences;
     private Context context;
     
@@ -126,6 +152,54 @@ public class PreferenceManager {
         editor.apply();
     }
     
+    public void setDialerOnline(boolean online) {
+        preferences.edit().putBoolean(KEY_DIALER_ONLINE, online).apply();
+    }
+    
+    public boolean isDialerOnline() {
+        return preferences.getBoolean(KEY_DIALER_ONLINE, false);
+    }
+    
+    public void setCallGapMs(long gapMs) {
+        preferences.edit().putLong(KEY_CALL_GAP_MS, gapMs).apply();
+    }
+    
+    public long getCallGapMs() {
+        return preferences.getLong(KEY_CALL_GAP_MS, DEFAULT_CALL_GAP_MS);
+    }
+    
+    public void setAnswerLeadInMs(long leadInMs) {
+        preferences.edit().putLong(KEY_ANSWER_LEAD_IN_MS, leadInMs).apply();
+    }
+    
+    public long getAnswerLeadInMs() {
+        return preferences.getLong(KEY_ANSWER_LEAD_IN_MS, DEFAULT_ANSWER_LEAD_IN_MS);
+    }
+    
+    public void setAnswerFallbackMs(long fallbackMs) {
+        preferences.edit().putLong(KEY_ANSWER_FALLBACK_MS, fallbackMs).apply();
+    }
+    
+    public long getAnswerFallbackMs() {
+        return preferences.getLong(KEY_ANSWER_FALLBACK_MS, DEFAULT_ANSWER_FALLBACK_MS);
+    }
+    
+    public void setCallProgressRegion(String countryCode) {
+        preferences.edit().putString(KEY_CALL_PROGRESS_REGION, countryCode).apply();
+    }
+    
+    public String getCallProgressRegion() {
+        return preferences.getString(KEY_CALL_PROGRESS_REGION, "");
+    }
+    
+    public void setMachinePolicy(String policy) {
+        preferences.edit().putString(KEY_MACHINE_POLICY, policy).apply();
+    }
+    
+    public String getMachinePolicy() {
+        return preferences.getString(KEY_MACHINE_POLICY, MACHINE_POLICY_HANG_UP);
+    }
+    
     // Static methods for backward compatibility
     public static void saveLoginData(Context context, String email, String token) {
         SharedPreferences prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
@@ -0,0 +1,200 @@
+package com.ivrcallmanager.utils;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background work split into separate lanes so slow work in one lane never
+ * holds up another: a large audio download or a prompt being played cannot
+ * delay command fetches or status reports.
+ *
+ * Each lane has its own threads, a bounded queue and a thread priority, and
+ * keeps simple metrics (queue depth, wait time, rejections). A task that does
+ * not fit in its lane's queue is refused, never silently dropped: callers
+ * get false from {@link #execute} (or a RejectedExecutionException from the
+ * {@link #executor} view) and must undo whatever they set up for it.
+ */
+public class TaskScheduler {
+
+    private static final String TAG = "TaskScheduler";
+
+    public enum Lane {
+        // Command fetch/ack, registration and call reports
+        CONTROL(2, 64, Process.THREAD_PRIORITY_DEFAULT),
+        // Audio downloads and other large transfers
+        BULK(2, 16, Process.THREAD_PRIORITY_BACKGROUND),
+        // Audio playback into a live call
+        AUDIO(1, 4, Process.THREAD_PRIORITY_URGENT_AUDIO),
+        // Reading the call audio for the in-call detectors
+        CAPTURE(1, 2, Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        final int threads;
+        final int queueLimit;
+        final int threadPriority;
+
+        Lane(int threads, int queueLimit, int threadPriority) {
+            this.threads = threads;
+            this.queueLimit = queueLimit;
+            this.threadPriority = threadPriority;
+        }
+    }
+
+    /** Point-in-time view of one lane. */
+    public static class LaneMetrics {
+        public final Lane lane;
+        public final int queueDepth;
+        public final int active;
+        public final long completed;
+        public final long rejected;
+        public final long lastWaitMs;
+        public final long maxWaitMs;
+        public final long avgWaitMs;
+
+        LaneMetrics(Lane lane, int queueDepth, int active, long completed, long rejected,
+                    long lastWaitMs, long maxWaitMs, long avgWaitMs) {
+            this.lane = lane;
+            this.queueDepth = queueDepth;
+            this.active = active;
+            this.completed = completed;
+            this.rejected = rejected;
+            this.lastWaitMs = lastWaitMs;
+            this.maxWaitMs = maxWaitMs;
+            this.avgWaitMs = avgWaitMs;
+        }
+
+        @Override
+        public String toString() {
+            return lane + ": queued=" + queueDepth + " active=" + active + " done=" + completed
+                + " rejected=" + rejected + " wait(last/avg/max)=" + lastWaitMs + "/" + avgWaitMs + "/" + maxWaitMs + "ms";
+        }
+    }
+
+    private static class LaneState {
+        final ThreadPoolExecutor pool;
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong totalWaitMs = new AtomicLong();
+        final AtomicLong lastWaitMs = new AtomicLong();
+        final AtomicLong maxWaitMs = new AtomicLong();
+
+        LaneState(ThreadPoolExecutor pool) {
+            this.pool = pool;
+        }
+    }
+
+    private final Map<Lane, LaneState> lanes = new EnumMap<>(Lane.class);
+    private final Map<Lane, Executor> executors = new EnumMap<>(Lane.class);
+
+    public TaskScheduler() {
+        for (Lane lane : Lane.values()) {
+            final LaneState[] holder = new LaneState[1];
+
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                lane.threads, lane.threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(lane.queueLimit),
+                newThreadFactory(lane),
+                (RejectedExecutionHandler) (task, executor) -> {
+                    holder[0].rejected.incrementAndGet();
+                    Log.w(TAG, lane + " lane full (" + lane.queueLimit + " queued), task refused");
+                    throw new RejectedExecutionException(lane + " lane full");
+                });
+            pool.allowCoreThreadTimeOut(true);
+
+            LaneState state = new LaneState(pool);
+            holder[0] = state;
+            lanes.put(lane, state);
+            executors.put(lane, task -> {
+                if (!execute(lane, task)) {
+                    throw new RejectedExecutionException(lane + " lane full");
+                }
+            });
+        }
+    }
+
+    /**
+     * Run a task on the given lane. Returns false, and counts the rejection,
+     * if the lane queue is full or the scheduler is shut down; the task will
+     * then never run.
+     */
+    public boolean execute(Lane lane, Runnable task) {
+        LaneState state = lanes.get(lane);
+        final long queuedAt = System.currentTimeMillis();
+
+        try {
+            state.pool.execute(() -> {
+                long waitMs = System.currentTimeMillis() - queuedAt;
+                state.lastWaitMs.set(waitMs);
+                state.totalWaitMs.addAndGet(waitMs);
+                if (waitMs > state.maxWaitMs.get()) {
+                    state.maxWaitMs.set(waitMs);
+                }
+
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    Log.e(TAG, "Uncaught error in " + lane + " task", e);
+                } finally {
+                    state.completed.incrementAndGet();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /** Executor view of one lane, for components that take a plain Executor. */
+    public Executor executor(Lane lane) {
+        return executors.get(lane);
+    }
+
+    public LaneMetrics getMetrics(Lane lane) {
+        LaneState state = lanes.get(lane);
+        long completed = state.completed.get();
+
+        return new LaneMetrics(
+            lane,
+            state.pool.getQueue().size(),
+            state.pool.getActiveCount(),
+            completed,
+            state.rejected.get(),
+            state.lastWaitMs.get(),
+            state.maxWaitMs.get(),
+            completed > 0 ? state.totalWaitMs.get() / completed : 0);
+    }
+
+    public void logMetrics() {
+        for (Lane lane : Lane.values()) {
+            Log.d(TAG, getMetrics(lane).toString());
+        }
+    }
+
+    public void shutdown() {
+        for (LaneState state : lanes.values()) {
+            state.pool.shutdown();
+        }
+    }
+
+    private static java.util.concurrent.ThreadFactory newThreadFactory(Lane lane) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(lane.threadPriority);
+                runnable.run();
+            }, "ivr-" + lane.name().toLowerCase() + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,293 @@
+package com.ivrcallmanager.dsp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CallProgressClassifierTest {
+
+    private static final int RATE = 8000;
+    // As UplinkCapture delivers them
+    private static final int FRAME_SAMPLES = 160;
+
+    private static final CallProgressProfile[] PROFILES = {
+        CallProgressProfile.INDIA,
+        CallProgressProfile.NORTH_AMERICA,
+        CallProgressProfile.UNITED_KINGDOM,
+        CallProgressProfile.EUROPE
+    };
+
+    // About 2 s from the first tone: on, off and on of the slowest busy cadence (India's 750 ms) and a frame
+    private static final int BUDGET_MS = 2300;
+    // The network usually takes a moment to connect the tone after dialing
+    private static final int LEAD_MS = 500;
+
+    // Each tone about -20 dBFS over a quiet line
+    private static final double AMPLITUDE = 3000;
+    private static final double NOISE = 100;
+
+    private static final double[][] SIT = { { 913.8, 1370.6, 1776.7 }, { 985.2, 1428.5, 1776.7 } };
+
+    @Test
+    public void detectsBusyInEveryRegion() {
+        for (CallProgressProfile profile : PROFILES) {
+            Verdict verdict = classify(profile, new Signal().silence(LEAD_MS).cadence(profile.busy, 8000));
+            verdict.assertFinal(profile, CallProgressClassifier.Result.BUSY);
+        }
+    }
+
+    @Test
+    public void detectsCongestionInEveryRegion() {
+        for (CallProgressProfile profile : PROFILES) {
+            Verdict verdict = classify(profile, new Signal().silence(LEAD_MS).cadence(profile.congestion, 8000));
+            verdict.assertFinal(profile, CallProgressClassifier.Result.CONGESTION);
+        }
+    }
+
+    @Test
+    public void detectsSitInEveryRegion() {
+        for (CallProgressProfile profile : PROFILES) {
+            for (double[] frequencies : SIT) {
+                for (int segmentMs : new int[] { 274, 380 }) {
+                    Signal signal = new Signal().silence(LEAD_MS);
+                    for (double frequency : frequencies) {
+                        signal.tone(new double[] { frequency }, segmentMs);
+                    }
+                    // The intercept message follows
+                    signal.speech(3000);
+
+                    classify(profile, signal).assertFinal(profile, CallProgressClassifier.Result.SIT);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void reportsRingbackWithoutEndingTheCall() {
+        for (CallProgressProfile profile : PROFILES) {
+            int cycle = 0;
+            for (int ms : profile.ringback.cadence) cycle += ms;
+
+            Verdict verdict = classify(profile, new Signal().silence(LEAD_MS).cadence(profile.ringback, 3 * cycle));
+
+            assertEquals(profile.region, Arrays.asList(CallProgressClassifier.Result.RINGBACK), verdict.results);
+            // One cycle and the on run that proves it
+            assertTrue(profile.region + " ringback after " + verdict.firstMs(),
+                verdict.firstMs() <= cycle + profile.ringback.cadence[0] + 2 * frameMs());
+        }
+    }
+
+    @Test
+    public void busyAfterRingbackIsStillFinal() {
+        for (CallProgressProfile profile : PROFILES) {
+            int cycle = 0;
+            for (int ms : profile.ringback.cadence) cycle += ms;
+
+            Verdict verdict = classify(profile, new Signal().silence(LEAD_MS)
+                .cadence(profile.ringback, 2 * cycle).cadence(profile.busy, 8000));
+
+            assertEquals(profile.region,
+                Arrays.asList(CallProgressClassifier.Result.RINGBACK, CallProgressClassifier.Result.BUSY),
+                verdict.results);
+        }
+    }
+
+    @Test
+    public void detectsBusyWhenListeningStartsMidTone() {
+        for (CallProgressProfile profile : PROFILES) {
+            Signal signal = new Signal().silence(0).cadence(profile.busy, 8000);
+
+            assertEquals(profile.region, Arrays.asList(CallProgressClassifier.Result.BUSY), classify(profile, signal).results);
+        }
+    }
+
+    @Test
+    public void ignoresSpeech() {
+        for (CallProgressProfile profile : PROFILES) {
+            Verdict verdict = classify(profile, new Signal().silence(LEAD_MS).speech(15000));
+
+            assertEquals(profile.region, 0, verdict.results.size());
+        }
+    }
+
+    @Test
+    public void ignoresSilenceAndNoise() {
+        for (CallProgressProfile profile : PROFILES) {
+            assertEquals(profile.region, 0, classify(profile, new Signal().silence(15000)).results.size());
+
+            Signal loud = new Signal().silence(15000);
+            loud.noise = 3000;
+            assertEquals(profile.region, 0, classify(profile, loud).results.size());
+        }
+    }
+
+    @Test
+    public void ignoresASteadyTone() {
+        // Dial tone and the like never turn off, so they have no cadence
+        for (CallProgressProfile profile : PROFILES) {
+            Signal signal = new Signal().silence(LEAD_MS).tone(profile.busy.frequencies, 10000);
+
+            assertEquals(profile.region, 0, classify(profile, signal).results.size());
+        }
+    }
+
+    @Test
+    public void resetListensAgain() {
+        CallProgressProfile profile = CallProgressProfile.EUROPE;
+        short[] busy = new Signal().silence(LEAD_MS).cadence(profile.busy, 4000).pcm();
+
+        List<CallProgressClassifier.Result> results = new ArrayList<>();
+        CallProgressClassifier classifier = new CallProgressClassifier(profile, RATE, results::add);
+        feed(classifier, busy);
+        classifier.reset();
+        feed(classifier, busy);
+
+        assertEquals(Arrays.asList(CallProgressClassifier.Result.BUSY, CallProgressClassifier.Result.BUSY), results);
+    }
+
+    @Test
+    public void picksTheProfileForTheRegion() {
+        assertSame(CallProgressProfile.INDIA, CallProgressProfile.forRegion("in"));
+        assertSame(CallProgressProfile.NORTH_AMERICA, CallProgressProfile.forRegion("US"));
+        assertSame(CallProgressProfile.NORTH_AMERICA, CallProgressProfile.forRegion("CA"));
+        assertSame(CallProgressProfile.UNITED_KINGDOM, CallProgressProfile.forRegion("GB"));
+        assertSame(CallProgressProfile.UNITED_KINGDOM, CallProgressProfile.forRegion("UK"));
+        assertSame(CallProgressProfile.EUROPE, CallProgressProfile.forRegion("DE"));
+        assertSame(CallProgressProfile.EUROPE, CallProgressProfile.forRegion(null));
+    }
+
+    private static int frameMs() {
+        return FRAME_SAMPLES * 1000 / RATE;
+    }
+
+    private static Verdict classify(CallProgressProfile profile, Signal signal) {
+        Verdict verdict = new Verdict(signal.toneStartMs);
+        CallProgressClassifier classifier = new CallProgressClassifier(profile, RATE, result -> {
+            verdict.results.add(result);
+            verdict.times.add(verdict.nowMs);
+        });
+
+        short[] pcm = signal.pcm();
+        for (int offset = 0; offset + FRAME_SAMPLES <= pcm.length; offset += FRAME_SAMPLES) {
+            verdict.nowMs = (offset + FRAME_SAMPLES) * 1000 / RATE;
+            classifier.process(pcm, offset, FRAME_SAMPLES);
+        }
+        return verdict;
+    }
+
+    private static void feed(CallProgressClassifier classifier, short[] pcm) {
+        for (int offset = 0; offset + FRAME_SAMPLES <= pcm.length; offset += FRAME_SAMPLES) {
+            classifier.process(pcm, offset, FRAME_SAMPLES);
+        }
+    }
+
+    // What the classifier reported and when, in ms of audio
+    private static final class Verdict {
+        final List<CallProgressClassifier.Result> results = new ArrayList<>();
+        final List<Integer> times = new ArrayList<>();
+        final int toneStartMs;
+        int nowMs;
+
+        Verdict(int toneStartMs) {
+            this.toneStartMs = toneStartMs;
+        }
+
+        // Time from the first tone to the first report
+        int firstMs() {
+            return times.get(0) - toneStartMs;
+        }
+
+        void assertFinal(CallProgressProfile profile, CallProgressClassifier.Result expected) {
+            assertEquals(profile.region, Arrays.asList(expected), results);
+            assertTrue(profile.region + " " + expected + " after " + firstMs() + "ms", firstMs() <= BUDGET_MS);
+        }
+    }
+
+    // Builds a test signal piece by piece
+    private static final class Signal {
+        private final Random random = new Random(11);
+        private double[] samples = new double[0];
+        private int length = 0;
+        int toneStartMs = -1;
+        double noise = NOISE;
+
+        Signal silence(int ms) {
+            grow(ms * RATE / 1000);
+            return this;
+        }
+
+        Signal tone(double[] frequencies, int ms) {
+            markToneStart();
+            int start = length;
+            grow(ms * RATE / 1000);
+            for (double frequency : frequencies) {
+                double phase = random.nextDouble() * 2 * Math.PI;
+                for (int i = start; i < length; i++) {
+                    samples[i] += AMPLITUDE * Math.sin(2 * Math.PI * frequency * i / RATE + phase);
+                }
+            }
+            return this;
+        }
+
+        // The tone's on/off cadence, repeated for ms
+        Signal cadence(CallProgressProfile.Tone tone, int ms) {
+            int end = length + ms * RATE / 1000;
+            for (int i = 0; length < end; i++) {
+                int run = Math.min(tone.cadence[i % tone.cadence.length], (end - length) * 1000 / RATE);
+                if (i % 2 == 0) {
+                    tone(tone.frequencies, run);
+                } else {
+                    silence(run);
+                }
+            }
+            return this;
+        }
+
+        // Voiced syllables of a wandering pitch with short pauses between them
+        Signal speech(int ms) {
+            int end = length + ms * RATE / 1000;
+            while (length < end) {
+                int syllable = Math.min((120 + random.nextInt(250)) * RATE / 1000, end - length);
+                double pitch = 100 + random.nextInt(150);
+                int start = length;
+                grow(syllable);
+                for (int harmonic = 1; harmonic * pitch < RATE / 2; harmonic++) {
+                    double amplitude = AMPLITUDE / harmonic;
+                    for (int i = start; i < length; i++) {
+                        double glide = pitch * (1 + 0.1 * (i - start) / syllable);
+                        samples[i] += amplitude * Math.sin(2 * Math.PI * harmonic * glide * (i - start) / RATE);
+                    }
+                }
+                grow(Math.min((40 + random.nextInt(200)) * RATE / 1000, end - length));
+            }
+            return this;
+        }
+
+        short[] pcm() {
+            short[] pcm = new short[length];
+            for (int i = 0; i < length; i++) {
+                double value = samples[i] + random.nextGaussian() * noise;
+                pcm[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+            }
+            return pcm;
+        }
+
+        private void markToneStart() {
+            if (toneStartMs < 0) toneStartMs = length * 1000 / RATE;
+        }
+
+        private void grow(int count) {
+            if (samples.length < length + count) {
+                samples = Arrays.copyOf(samples, Math.max(samples.length * 2, length + count));
+            }
+            length += count;
+        }
+    }
+}
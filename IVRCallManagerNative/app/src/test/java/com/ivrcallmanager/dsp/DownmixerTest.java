@@ -0,0 +1,73 @@
+package com.ivrcallmanager.dsp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DownmixerTest {
+
+    @Test
+    public void averagesStereoFrames() {
+        short[] input = { 100, 300, -50, 50, 1000, 0, -7, -8 };
+        short[] output = new short[4];
+
+        int written = Downmixer.downmix(input, 0, 4, 2, output, 0);
+
+        assertEquals(4, written);
+        // Halves round toward zero
+        assertArrayEquals(new short[] { 200, 0, 500, -7 }, output);
+    }
+
+    @Test
+    public void averagesAnyChannelCount() {
+        short[] input = { 3, 6, 9, 30, 60, 90 };
+        short[] output = new short[2];
+
+        Downmixer.downmix(input, 0, 2, 3, output, 0);
+
+        assertArrayEquals(new short[] { 6, 60 }, output);
+    }
+
+    @Test
+    public void copiesMono() {
+        short[] input = { 1, -2, 3, -4 };
+        short[] output = new short[6];
+
+        int written = Downmixer.downmix(input, 1, 3, 1, output, 2);
+
+        assertEquals(3, written);
+        assertArrayEquals(new short[] { 0, 0, -2, 3, -4, 0 }, output);
+    }
+
+    @Test
+    public void doesNotOverflowAtFullScale() {
+        short[] input = { Short.MAX_VALUE, Short.MAX_VALUE, Short.MIN_VALUE, Short.MIN_VALUE };
+        short[] output = new short[2];
+
+        Downmixer.downmix(input, 0, 2, 2, output, 0);
+
+        assertArrayEquals(new short[] { Short.MAX_VALUE, Short.MIN_VALUE }, output);
+    }
+
+    @Test
+    public void canWorkInPlace() {
+        short[] buffer = { 10, 20, 30, 40, 50, 60, 70, 80 };
+
+        int written = Downmixer.downmix(buffer, 0, 4, 2, buffer, 0);
+
+        assertArrayEquals(new short[] { 15, 35, 55, 75 }, Arrays.copyOf(buffer, written));
+    }
+
+    @Test
+    public void readsFromAndWritesToOffsets() {
+        short[] input = { 99, 99, 2, 4, 6, 8 };
+        short[] output = { 99, 99, 99 };
+
+        Downmixer.downmix(input, 2, 2, 2, output, 1);
+
+        assertArrayEquals(new short[] { 99, 3, 7 }, output);
+    }
+}
@@ -0,0 +1,228 @@
+package com.ivrcallmanager.dsp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DtmfDetectorTest {
+
+    private static final int RATE = 8000;
+    private static final String KEYS = "123A456B789C*0#D";
+    private static final double[] ROWS = { 697, 770, 852, 941 };
+    private static final double[] COLUMNS = { 1209, 1336, 1477, 1633 };
+
+    // Each tone about -18 dBFS, in noise about 20 dB below the pair
+    private static final double AMPLITUDE = 4000;
+    private static final double NOISE = 400;
+
+    private final StringBuilder digits = new StringBuilder();
+    private final List<Integer> durations = new ArrayList<>();
+    private final Random random = new Random(42);
+    private DtmfDetector detector;
+
+    @Before
+    public void setUp() {
+        detector = new DtmfDetector(RATE, (digit, durationMs) -> {
+            digits.append(digit);
+            durations.add(durationMs);
+        });
+    }
+
+    @Test
+    public void detectsAllSixteenKeysInNoise() {
+        Signal signal = new Signal();
+        for (char key : KEYS.toCharArray()) {
+            signal.key(key, 60).silence(60);
+        }
+        feed(signal.noise(NOISE));
+
+        assertEquals(KEYS, digits.toString());
+    }
+
+    @Test
+    public void detectsTheShortestStandardPressAndGap() {
+        // 40 ms on and 40 ms off is the fastest dialing a decoder has to follow
+        Signal signal = new Signal().silence(40);
+        for (int i = 0; i < 5; i++) {
+            signal.key('5', 40).silence(40);
+        }
+        feed(signal.noise(NOISE));
+
+        assertEquals("55555", digits.toString());
+    }
+
+    @Test
+    public void ignoresTooShortTones() {
+        feed(new Signal().silence(50).key('7', 20).silence(100).key('8', 15).silence(100).noise(NOISE));
+
+        assertEquals("", digits.toString());
+    }
+
+    @Test
+    public void reportsAHeldKeyOnceWithItsDuration() {
+        feed(new Signal().silence(50).key('9', 500).silence(100).noise(NOISE));
+
+        assertEquals("9", digits.toString());
+        int duration = durations.get(0);
+        assertTrue("duration " + duration, duration >= 450 && duration <= 550);
+    }
+
+    @Test
+    public void reportsTheKeyOnlyWhenReleased() {
+        feed(new Signal().silence(50).key('3', 200).noise(NOISE));
+        assertEquals("", digits.toString());
+
+        feed(new Signal().silence(100).noise(NOISE));
+        assertEquals("3", digits.toString());
+    }
+
+    @Test
+    public void acceptsTwistWithinLimits() {
+        // Column 6 dB below the row, then 3 dB above it
+        feed(new Signal().silence(50)
+            .pair(ROWS[1], AMPLITUDE, COLUMNS[1], AMPLITUDE * db(-6), 80).silence(80)
+            .pair(ROWS[2], AMPLITUDE, COLUMNS[2], AMPLITUDE * db(3), 80).silence(80)
+            .noise(NOISE));
+
+        assertEquals("59", digits.toString());
+    }
+
+    @Test
+    public void rejectsExcessiveTwist() {
+        // Column 10 dB below the row, then 6 dB above it
+        feed(new Signal().silence(50)
+            .pair(ROWS[1], AMPLITUDE, COLUMNS[1], AMPLITUDE * db(-10), 80).silence(80)
+            .pair(ROWS[2], AMPLITUDE, COLUMNS[2], AMPLITUDE * db(6), 80).silence(80)
+            .noise(NOISE));
+
+        assertEquals("", digits.toString());
+    }
+
+    @Test
+    public void rejectsSingleTones() {
+        feed(new Signal().silence(50)
+            .tone(ROWS[0], AMPLITUDE, 200).silence(80)
+            .tone(COLUMNS[3], AMPLITUDE, 200).silence(80)
+            .noise(NOISE));
+
+        assertEquals("", digits.toString());
+    }
+
+    @Test
+    public void rejectsLoudNoise() {
+        feed(new Signal().silence(2000).noise(3000));
+
+        assertEquals("", digits.toString());
+    }
+
+    @Test
+    public void rejectsVoiceLikeHarmonics() {
+        // A 200 Hz voice with its harmonics falling across both tone groups
+        Signal signal = new Signal();
+        for (int harmonic = 1; harmonic <= 10; harmonic++) {
+            signal.add(200 * harmonic, AMPLITUDE / harmonic, 0, 1000);
+        }
+        feed(signal.noise(NOISE));
+
+        assertEquals("", digits.toString());
+    }
+
+    @Test
+    public void rejectsAKeyTooQuietToBeDialed() {
+        feed(new Signal().silence(50)
+            .pair(ROWS[0], 100, COLUMNS[0], 100, 200).silence(80)
+            .noise(20));
+
+        assertEquals("", digits.toString());
+    }
+
+    @Test
+    public void blockSizeDoesNotMatter() {
+        short[] samples = new Signal().silence(30).key('1', 60).silence(50).key('#', 70).silence(60).noise(NOISE);
+
+        feed(samples, 1);
+        feed(samples, 333);
+
+        assertEquals("1#1#", digits.toString());
+    }
+
+    @Test
+    public void resetDropsAKeyInProgress() {
+        feed(new Signal().silence(50).key('4', 200).noise(NOISE));
+        detector.reset();
+        feed(new Signal().silence(100).noise(NOISE));
+
+        assertEquals("", digits.toString());
+    }
+
+    private void feed(short[] samples) {
+        feed(samples, 160);
+    }
+
+    private void feed(short[] samples, int chunk) {
+        for (int offset = 0; offset < samples.length; offset += chunk) {
+            detector.process(samples, offset, Math.min(chunk, samples.length - offset));
+        }
+    }
+
+    private static double db(double db) {
+        return Math.pow(10, db / 20);
+    }
+
+    // Builds a test signal piece by piece
+    private final class Signal {
+        private double[] samples = new double[0];
+        private int length = 0;
+
+        Signal key(char key, int ms) {
+            int index = KEYS.indexOf(key);
+            return pair(ROWS[index / 4], AMPLITUDE, COLUMNS[index % 4], AMPLITUDE, ms);
+        }
+
+        Signal pair(double low, double lowAmplitude, double high, double highAmplitude, int ms) {
+            int start = length;
+            add(low, lowAmplitude, start, ms);
+            return add(high, highAmplitude, start, ms);
+        }
+
+        Signal tone(double frequency, double amplitude, int ms) {
+            return add(frequency, amplitude, length, ms);
+        }
+
+        Signal silence(int ms) {
+            int count = ms * RATE / 1000;
+            if (samples.length < length + count) {
+                samples = Arrays.copyOf(samples, Math.max(samples.length * 2, length + count));
+            }
+            length += count;
+            return this;
+        }
+
+        // Adds a sine over ms starting at sample start, growing the signal as needed
+        Signal add(double frequency, double amplitude, int start, int ms) {
+            int count = ms * RATE / 1000;
+            if (start + count > length) silence((start + count - length) * 1000 / RATE);
+            double phase = random.nextDouble() * 2 * Math.PI;
+            for (int i = 0; i < count; i++) {
+                samples[start + i] += amplitude * Math.sin(2 * Math.PI * frequency * i / RATE + phase);
+            }
+            return this;
+        }
+
+        short[] noise(double rms) {
+            short[] pcm = new short[length];
+            for (int i = 0; i < length; i++) {
+                double value = samples[i] + random.nextGaussian() * rms;
+                pcm[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+            }
+            return pcm;
+        }
+    }
+}
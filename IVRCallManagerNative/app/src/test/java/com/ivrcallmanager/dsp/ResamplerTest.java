@@ -0,0 +1,186 @@
+package com.ivrcallmanager.dsp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResamplerTest {
+
+    private static final double AMPLITUDE = 10000;
+
+    // A minute of CD-rate stereo converts in well under 200 ms on a desktop core; this only catches
+    // a filter that has stopped skipping the taps between input samples (tens of times slower)
+    private static final long PROMPT_BUDGET_MS = 1500;
+
+    @Test
+    public void keepsTheVoiceBandLevelFrom44100To8000() {
+        for (double frequency : new double[] { 300, 1000, 2000 }) {
+            double gain = gainDb(44100, 8000, frequency);
+            assertEquals(frequency + " Hz", 0, gain, 0.1);
+        }
+        // The transition band starts above the voice band
+        double edge = gainDb(44100, 8000, 3000);
+        assertTrue("3000 Hz at " + edge + " dB", edge > -1);
+    }
+
+    @Test
+    public void keepsTheVoiceBandLevelFromOtherDeviceRates() {
+        for (int rate : new int[] { 48000, 22050, 16000 }) {
+            double gain = gainDb(rate, 8000, 1000);
+            assertEquals(rate + " Hz input", 0, gain, 0.1);
+        }
+    }
+
+    @Test
+    public void keepsTheLevelOfASteadyInput() {
+        short[] input = new short[44100];
+        Arrays.fill(input, (short) 1000);
+
+        short[] output = resample(new Resampler(44100, 8000), input);
+
+        for (int i = 2000; i < 6000; i++) {
+            assertEquals("sample " + i, 1000, output[i], 1);
+        }
+    }
+
+    @Test
+    public void suppressesWhatWouldAliasInto8000() {
+        // Each of these folds back into 0-4 kHz if it gets through the filter
+        for (double frequency : new double[] { 5000, 6000, 10000, 15000, 21000 }) {
+            double gain = gainDb(44100, 8000, frequency);
+            assertTrue(frequency + " Hz at " + gain + " dB", gain < -70);
+        }
+    }
+
+    @Test
+    public void producesOneSecondPerSecond() {
+        Resampler resampler = new Resampler(44100, 8000);
+        short[] input = tone(44100, 1000, 44100);
+        short[] output = new short[resampler.maxOutput(input.length)];
+
+        int written = resampler.process(input, 0, input.length, output, 0);
+
+        assertEquals(8000, written, 1);
+    }
+
+    @Test
+    public void blocksGiveTheSameOutputAsOneCall() {
+        Random random = new Random(7);
+        short[] input = new short[44100];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (short) (random.nextGaussian() * 4000 + 6000 * Math.sin(2 * Math.PI * 440 * i / 44100));
+        }
+
+        short[] whole = resample(new Resampler(44100, 8000), input);
+
+        Resampler resampler = new Resampler(44100, 8000);
+        short[] blocks = new short[whole.length];
+        int written = 0;
+        for (int offset = 0; offset < input.length; ) {
+            int length = Math.min(1 + random.nextInt(700), input.length - offset);
+            int count = resampler.process(input, offset, length, blocks, written);
+            assertTrue("block of " + length + " gave " + count, count <= resampler.maxOutput(length));
+            written += count;
+            offset += length;
+        }
+        written += resampler.flush(blocks, written);
+
+        assertEquals(whole.length, written);
+        assertArrayEquals(whole, blocks);
+    }
+
+    @Test
+    public void convertsAMinuteOfStereoPromptQuickly() {
+        // Interleaved 44.1 kHz stereo, cut into buffers the size MediaCodec hands over
+        short[] stereo = new short[60 * 44100 * 2];
+        for (int i = 0; i < stereo.length / 2; i++) {
+            stereo[2 * i] = (short) Math.round(AMPLITUDE * Math.sin(2 * Math.PI * 440 * i / 44100));
+            stereo[2 * i + 1] = (short) Math.round(AMPLITUDE * Math.sin(2 * Math.PI * 660 * i / 44100));
+        }
+
+        // The first run lets the JIT compile the loops, as it has on a device that has decoded before
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            long started = System.nanoTime();
+            int written = convertPrompt(stereo, 2048);
+            best = Math.min(best, (System.nanoTime() - started) / 1000000);
+
+            assertEquals(60 * 8000, written, 20);
+        }
+        assertTrue("60 s prompt took " + best + "ms", best < PROMPT_BUDGET_MS);
+    }
+
+    @Test
+    public void resetStartsOver() {
+        short[] input = tone(44100, 700, 4410);
+        Resampler resampler = new Resampler(44100, 8000);
+        short[] first = resample(resampler, input);
+
+        resampler.process(input, 0, 1234, new short[resampler.maxOutput(1234)], 0);
+        resampler.reset();
+
+        assertArrayEquals(first, resample(resampler, input));
+    }
+
+    @Test
+    public void passesTheSameRateThrough() {
+        short[] input = tone(8000, 1000, 800);
+
+        assertArrayEquals(input, resample(new Resampler(8000, 8000), input));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingRates() {
+        new Resampler(0, 8000);
+    }
+
+    // Level of a tone after resampling, away from the start and end of the filter
+    private static double gainDb(int inputRate, int outputRate, double frequency) {
+        short[] output = resample(new Resampler(inputRate, outputRate), tone(inputRate, frequency, inputRate));
+
+        double energy = 0;
+        int from = output.length / 4;
+        int to = output.length * 3 / 4;
+        for (int i = from; i < to; i++) {
+            energy += (double) output[i] * output[i];
+        }
+        double rms = Math.sqrt(energy / (to - from));
+        return 20 * Math.log10(Math.max(rms, 1e-3) / (AMPLITUDE / Math.sqrt(2)));
+    }
+
+    // Downmix and resample buffer by buffer as PcmDecoder does; returns the 8 kHz samples produced
+    private static int convertPrompt(short[] stereo, int bufferSamples) {
+        Resampler resampler = new Resampler(44100, 8000);
+        short[] samples = new short[bufferSamples];
+        short[] output = new short[resampler.maxOutput(bufferSamples)];
+
+        int written = 0;
+        for (int offset = 0; offset < stereo.length; offset += bufferSamples) {
+            int length = Math.min(bufferSamples, stereo.length - offset);
+            System.arraycopy(stereo, offset, samples, 0, length);
+            int frames = Downmixer.downmix(samples, 0, length / 2, 2, samples, 0);
+            written += resampler.process(samples, 0, frames, output, 0);
+        }
+        return written + resampler.flush(output, 0);
+    }
+
+    private static short[] resample(Resampler resampler, short[] input) {
+        short[] output = new short[resampler.maxOutput(input.length) + resampler.maxOutput(resampler.getTapsPerPhase())];
+        int written = resampler.process(input, 0, input.length, output, 0);
+        written += resampler.flush(output, written);
+        return Arrays.copyOf(output, written);
+    }
+
+    private static short[] tone(int rate, double frequency, int samples) {
+        short[] pcm = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            pcm[i] = (short) Math.round(AMPLITUDE * Math.sin(2 * Math.PI * frequency * i / rate));
+        }
+        return pcm;
+    }
+}
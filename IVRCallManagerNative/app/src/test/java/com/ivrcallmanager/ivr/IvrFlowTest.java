@@ -0,0 +1,204 @@
+package com.ivrcallmanager.ivr;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IvrFlowTest {
+
+    // The data object of GET /api/ivr-flows/:id; the sub-menu comes before its parent on purpose
+    private static final String FLOW = "{"
+        + "'id': 7, 'userId': 3, 'name': 'Support', 'isActive': true,"
+        + "'flowConfig': {}, 'defaultLanguage': 'hi', 'maxRetries': 2, 'timeout': 8,"
+        + "'nodes': ["
+        + "  {'id': 42, 'flowId': 7, 'nodeKey': 'billing', 'nodeName': 'Billing', 'nodeType': 'menu',"
+        + "   'audioFileId': 12, 'audioFile': {'id': 12, 'originalName': 'billing.mp3'},"
+        + "   'promptText': null, 'timeout': 5, 'retryCount': 1, 'retryAudioFileId': 13,"
+        + "   'parentNodeId': 41,"
+        + "   'actions': {'1': {'type': 'goto', 'target': 'goodbye'},"
+        + "               '2': {'type': 'goto', 'target': 'deleted_node'},"
+        + "               '0': {'type': 'repeat'},"
+        + "               '*': {'type': 'back'},"
+        + "               '#': {'type': 'end'}}},"
+        + "  {'id': 41, 'flowId': 7, 'nodeKey': 'main_menu', 'nodeName': 'Main menu', 'nodeType': 'menu',"
+        + "   'audioFileId': 11, 'audioFile': {'id': 11, 'originalName': 'welcome.mp3'},"
+        + "   'promptText': 'Welcome', 'timeout': null, 'retryCount': null, 'retryAudioFileId': null,"
+        + "   'parentNodeId': null,"
+        + "   'actions': {'1': {'type': 'goto', 'target': 'billing'},"
+        + "               '9': {'type': 'transfer', 'number': '+911234567890'},"
+        + "               '*': {'type': 'back'},"
+        + "               'x': {'type': 'end'}}},"
+        + "  {'id': 43, 'flowId': 7, 'nodeKey': 'goodbye', 'nodeName': 'Goodbye', 'nodeType': 'message',"
+        + "   'audioFileId': null, 'audioFile': null, 'promptText': ' Thank you for calling ',"
+        + "   'parentNodeId': 41, 'actions': {}}"
+        + "]}";
+
+    @Test
+    public void startsAtTheFirstNodeWithoutParent() throws JSONException {
+        IvrFlow flow = parse(FLOW);
+
+        assertEquals(3, flow.size());
+        assertEquals("main_menu", flow.key(flow.start));
+    }
+
+    @Test
+    public void startsAtTheConfiguredStartNode() throws JSONException {
+        IvrFlow flow = parse(FLOW.replace("'flowConfig': {}", "'flowConfig': {'startNode': 'billing'}"));
+
+        assertEquals("billing", flow.key(flow.start));
+    }
+
+    @Test
+    public void unknownStartNodeFallsBackToTheRoot() throws JSONException {
+        IvrFlow flow = parse(FLOW.replace("'flowConfig': {}", "'flowConfig': {'startNode': 'nowhere'}"));
+
+        assertEquals("main_menu", flow.key(flow.start));
+    }
+
+    @Test
+    public void startsAtTheFirstNodeWhenEveryNodeHasParent() throws JSONException {
+        IvrFlow flow = parse(FLOW.replace("'parentNodeId': null", "'parentNodeId': 43"));
+
+        assertEquals(0, flow.start);
+    }
+
+    @Test
+    public void resolvesGotoTargetsToNodes() throws JSONException {
+        IvrFlow flow = parse(FLOW);
+        int main = node(flow, "main_menu");
+        int billing = node(flow, "billing");
+
+        assertEquals(billing, flow.next(main, '1'));
+        assertEquals(node(flow, "goodbye"), flow.next(billing, '1'));
+    }
+
+    @Test
+    public void gotoToUnknownNodeIsMissing() throws JSONException {
+        IvrFlow flow = parse(FLOW);
+
+        assertEquals(IvrFlow.MISSING, flow.next(node(flow, "billing"), '2'));
+    }
+
+    @Test
+    public void endActionEndsTheFlow() throws JSONException {
+        IvrFlow flow = parse(FLOW);
+
+        assertEquals(IvrFlow.END, flow.next(node(flow, "billing"), '#'));
+    }
+
+    @Test
+    public void keysWithoutActionDoNothing() throws JSONException {
+        IvrFlow flow = parse(FLOW);
+        int main = node(flow, "main_menu");
+
+        assertEquals(IvrFlow.NO_ACTION, flow.next(main, '5'));
+        assertEquals(IvrFlow.NO_ACTION, flow.next(main, '#'));
+        // Not a DTMF key, so its action is ignored
+        assertEquals(IvrFlow.NO_ACTION, flow.next(main, 'x'));
+        assertEquals(IvrFlow.NO_ACTION, flow.next(node(flow, "goodbye"), '1'));
+    }
+
+    @Test
+    public void repeatStaysOnTheNode() throws JSONException {
+        IvrFlow flow = parse(FLOW);
+        int billing = node(flow, "billing");
+
+        assertEquals(billing, flow.next(billing, '0'));
+    }
+
+    @Test
+    public void backGoesToTheParentNode() throws JSONException {
+        IvrFlow flow = parse(FLOW);
+
+        assertEquals(node(flow, "main_menu"), flow.next(node(flow, "billing"), '*'));
+    }
+
+    @Test
+    public void backAtTheTopRepeatsTheNode() throws JSONException {
+        IvrFlow flow = parse(FLOW);
+        int main = node(flow, "main_menu");
+
+        assertEquals(main, flow.next(main, '*'));
+    }
+
+    @Test
+    public void backToParentOutsideTheFlowIsMissing() throws JSONException {
+        // The main menu gets another id, so nothing in the flow has the billing node's parent id
+        IvrFlow flow = parse(FLOW.replace("'id': 41,", "'id': 99,"));
+
+        assertEquals(IvrFlow.MISSING, flow.next(node(flow, "billing"), '*'));
+    }
+
+    @Test
+    public void transferKeepsTheNumber() throws JSONException {
+        IvrFlow flow = parse(FLOW);
+        int main = node(flow, "main_menu");
+
+        assertEquals(IvrFlow.TRANSFER, flow.next(main, '9'));
+        assertEquals("+911234567890", flow.transferTarget(main, '9'));
+        assertNull(flow.transferTarget(main, '1'));
+    }
+
+    @Test
+    public void unknownActionTypeFailsTheParse() {
+        try {
+            parse(FLOW.replace("{'type': 'repeat'}", "{'type': 'hangup'}"));
+            fail("Expected the unknown action to be rejected");
+        } catch (JSONException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("hangup"));
+        }
+    }
+
+    @Test(expected = JSONException.class)
+    public void duplicateNodeKeyFailsTheParse() throws JSONException {
+        parse(FLOW.replace("'nodeKey': 'goodbye'", "'nodeKey': 'billing'"));
+    }
+
+    @Test(expected = JSONException.class)
+    public void flowWithoutNodesFailsTheParse() throws JSONException {
+        parse("{'id': 7, 'name': 'Empty', 'nodes': []}");
+    }
+
+    @Test
+    public void readsNodePropertiesWithFlowDefaults() throws JSONException {
+        IvrFlow flow = parse(FLOW);
+        int billing = node(flow, "billing");
+        int main = node(flow, "main_menu");
+        int goodbye = node(flow, "goodbye");
+
+        assertEquals("hi", flow.language);
+        assertEquals(5000, flow.timeoutMs(billing));
+        assertEquals(1, flow.retryCount(billing));
+        assertEquals(8000, flow.timeoutMs(main));
+        assertEquals(2, flow.retryCount(main));
+
+        // A recording wins over the text; the text is only spoken where there is none
+        assertNull(flow.promptText(main));
+        assertEquals(0, flow.audioFileId(goodbye));
+        assertEquals("Thank you for calling", flow.promptText(goodbye));
+
+        assertTrue(flow.expectsInput(main));
+        assertFalse(flow.expectsInput(goodbye));
+        assertEquals(new LinkedHashSet<>(Arrays.asList(12, 13, 11)), flow.audioFileIds());
+    }
+
+    private static IvrFlow parse(String json) throws JSONException {
+        return IvrFlow.parse(new JSONObject(json));
+    }
+
+    private static int node(IvrFlow flow, String key) {
+        for (int i = 0; i < flow.size(); i++) {
+            if (flow.key(i).equals(key)) return i;
+        }
+        throw new AssertionError("No node " + key);
+    }
+}
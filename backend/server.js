@@ -44,14 +44,8 @@ const io = new Server(server, {
   }
 });
 
-// Socket.IO connection handling
-io.on('connection', (socket) => {
-  logger.info(`Socket connected: ${socket.id}`);
-  
-  socket.on('disconnect', () => {
-    logger.info(`Socket disconnected: ${socket.id}`);
-  });
-});
+// Socket.IO connection handling (web dashboards and Android device push channel)
+require('./src/sockets/socketHandler')(io);
 
 // Make io available to routes
 app.set('io', io);
@@ -41,7 +41,7 @@ const CallLog = sequelize.define('CallLog', {
     unique: true
   },
   status: {
-    type: DataTypes.ENUM('initiated', 'ringing', 'answered', 'completed', 'failed', 'busy', 'no_answer', 'cancelled'),
+    type: DataTypes.ENUM('initiated', 'ringing', 'answered', 'completed', 'failed', 'busy', 'no_answer', 'machine', 'cancelled'),
     allowNull: false
   },
   startTime: {
@@ -1,3 +1,4 @@
+const crypto = require('crypto');
 const { DataTypes } = require('sequelize');
 const { sequelize } = require('../config/database');
 
@@ -100,4 +101,69 @@ Device.prototype.incrementCallStats = function(success = true) {
   return this.save();
 };
 
+// Read-modify-write of the pending queue inside a transaction, with the row
+// locked and re-read first, so concurrent queueing, acks and campaign clears
+// cannot overwrite each other's changes. `update` gets the current queue and
+// returns { commands, result }.
+Device.prototype.updatePendingCommands = function(update) {
+  return sequelize.transaction(async (transaction) => {
+    const locked = await Device.findByPk(this.id, {
+      transaction,
+      lock: transaction.LOCK.UPDATE
+    });
+    const { commands, result } = update(locked.pendingCommands || []);
+
+    locked.pendingCommands = commands;
+    locked.changed('pendingCommands', true);
+    await locked.save({ transaction, fields: ['pendingCommands'] });
+
+    // Mirror the stored queue without marking this instance dirty, so a
+    // later save() of other fields does not write a stale copy back
+    this.setDataValue('pendingCommands', commands);
+    this.changed('pendingCommands', false);
+    return result;
+  });
+};
+
+// Append commands to the pending queue. Each command gets a commandId so the
+// device can acknowledge exactly the commands it has durably queued. With
+// `replaceCampaignId`, commands already queued for that campaign are dropped.
+Device.prototype.queueCommands = function(commands, { replaceCampaignId } = {}) {
+  const queued = commands.map(cmd => ({
+    ...cmd,
+    commandId: cmd.commandId || crypto.randomBytes(8).toString('hex')
+  }));
+  return this.updatePendingCommands(pending => {
+    const kept = replaceCampaignId === undefined
+      ? pending
+      : pending.filter(cmd => !cmd.campaignId || cmd.campaignId.toString() !== replaceCampaignId.toString());
+    return { commands: [...kept, ...queued], result: queued };
+  });
+};
+
+// Remove acknowledged commands from the pending queue
+Device.prototype.ackCommands = function(commandIds) {
+  const acked = new Set(commandIds.map(String));
+  return this.updatePendingCommands(pending => {
+    const commands = pending.filter(cmd => !acked.has(String(cmd.commandId || cmd.callId)));
+    return { commands, result: pending.length - commands.length };
+  });
+};
+
+// Drop every pending command of a campaign; resolves to how many were dropped
+Device.prototype.clearCampaignCommands = function(campaignId) {
+  return this.updatePendingCommands(pending => {
+    const commands = pending.filter(cmd => !cmd.campaignId || cmd.campaignId.toString() !== campaignId.toString());
+    return { commands, result: pending.length - commands.length };
+  });
+};
+
+// Take the oldest pending command off the queue, for the legacy single-command poll
+Device.prototype.takeCommand = function() {
+  return this.updatePendingCommands(pending => ({
+    commands: pending.slice(1),
+    result: pending.length > 0 ? pending[0] : null
+  }));
+};
+
 module.exports = Device;
\ No newline at end of file
@@ -1,10 +1,26 @@
 const express = require('express');
+const crypto = require('crypto');
 const auth = require('../middleware/auth');
 const logger = require('../config/logger');
 const { AudioFile } = require('../models');
 
 const router = express.Router();
 
+// SHA-256 of each file's data keyed by id, invalidated when the row changes
+const digestCache = new Map();
+
+const audioDigest = (audioFile) => {
+  const version = audioFile.updatedAt ? new Date(audioFile.updatedAt).getTime() : 0;
+  const cached = digestCache.get(audioFile.id);
+  if (cached && cached.version === version) {
+    return cached.sha256;
+  }
+
+  const sha256 = crypto.createHash('sha256').update(audioFile.data).digest('hex');
+  digestCache.set(audioFile.id, { version, sha256 });
+  return sha256;
+};
+
 // @route   GET /api/audio
 // @desc    Get all audio files for user
 // @access  Private
@@ -31,6 +47,86 @@ router.get('/', auth, async (req, res) => {
   }
 });
 
+// @route   GET /api/audio/:id/download
+// @desc    Download audio file data, revalidated with its content hash as ETag
+// @access  Private
+router.get('/:id/download', auth, async (req, res) => {
+  try {
+    const audioFile = await AudioFile.findOne({
+      where: { 
+        id: req.params.id,
+        uploadedBy: req.user.id 
+      }
+    });
+
+    if (!audioFile) {
+      return res.status(404).json({
+        success: false,
+        message: 'Audio file not found'
+      });
+    }
+
+    const sha256 = audioDigest(audioFile);
+    const etag = `"${sha256}"`;
+
+    // no-transform keeps the compression middleware away, so byte ranges
+    // always refer to the stored file
+    res.set({
+      'ETag': etag,
+      'X-Content-SHA256': sha256,
+      'Cache-Control': 'private, no-cache, no-transform',
+      'Accept-Ranges': 'bytes'
+    });
+
+    const ifNoneMatch = req.get('If-None-Match');
+    if (ifNoneMatch && ifNoneMatch.split(',').map(tag => tag.trim()).includes(etag)) {
+      return res.status(304).end();
+    }
+
+    const data = audioFile.data;
+    const total = data.length;
+    res.set('Content-Type', audioFile.mimeType);
+
+    // Resume support: honour a single byte range unless If-Range names an older version
+    const range = req.get('Range');
+    const ifRange = req.get('If-Range');
+    const match = range && /^bytes=(\d*)-(\d*)$/.exec(range.trim());
+
+    if (match && (!ifRange || ifRange === etag)) {
+      let start;
+      let end;
+      if (match[1] === '') {
+        // Suffix range: the last N bytes
+        start = Math.max(total - parseInt(match[2], 10), 0);
+        end = total - 1;
+      } else {
+        start = parseInt(match[1], 10);
+        end = match[2] === '' ? total - 1 : Math.min(parseInt(match[2], 10), total - 1);
+      }
+
+      if (Number.isNaN(start) || Number.isNaN(end) || start >= total || start > end) {
+        res.set('Content-Range', `bytes */${total}`);
+        return res.status(416).end();
+      }
+
+      res.set({
+        'Content-Range': `bytes ${start}-${end}/${total}`,
+        'Content-Length': end - start + 1
+      });
+      return res.status(206).end(data.subarray(start, end + 1));
+    }
+
+    res.set('Content-Length', total);
+    res.end(data);
+  } catch (error) {
+    logger.error('Download audio file error:', error);
+    res.status(500).json({
+      success: false,
+      message: 'Server error'
+    });
+  }
+});
+
 // @route   GET /api/audio/:id
 // @desc    Get single audio file
 // @access  Private
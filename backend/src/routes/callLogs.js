@@ -7,13 +7,112 @@ const { CallLog, Campaign, Contact } = require('../models');
 
 const router = express.Router();
 
+const CALL_STATUSES = ['initiated', 'ringing', 'answered', 'completed', 'failed', 'busy', 'no_answer', 'machine'];
+const TERMINAL_STATUSES = ['completed', 'failed', 'busy', 'no_answer', 'machine'];
+
+// Device event ids a call log has applied, kept in its metadata so a journal
+// replay after a lost response is recognised even across backend restarts
+const MAX_APPLIED_EVENT_IDS = 200;
+
+// An event's own id first, then the ids of the events a merged status event stands for
+const eventIdsOf = (event) => (event.eventId
+  ? [event.eventId, ...(Array.isArray(event.eventIds) ? event.eventIds.map(String) : [])]
+  : []);
+
+const appliedEventIdsOf = (callLog) => (callLog && callLog.metadata && callLog.metadata.appliedEventIds) || [];
+
+const hasAppliedEvent = (callLog, eventIds) => eventIds.length > 0 && appliedEventIdsOf(callLog).includes(eventIds[0]);
+
+// Metadata update recording eventIds as applied, to go out with the log's own update
+const withAppliedEvents = (callLog, eventIds) => (eventIds.length === 0 ? {} : {
+  metadata: {
+    ...((callLog && callLog.metadata) || {}),
+    appliedEventIds: [...appliedEventIdsOf(callLog), ...eventIds].slice(-MAX_APPLIED_EVENT_IDS)
+  }
+});
+
+// Apply a device call status report to its call log, creating the log if
+// needed. Resolves to { callLog, duplicate }.
+const applyCallStatus = async (user, callId, { status, deviceId, answered, notes, duration, answeredAt }, eventIds = []) => {
+  let callLog = await CallLog.findOne({
+    where: { 
+      id: callId,
+      userId: user.id 
+    }
+  });
+
+  if (hasAppliedEvent(callLog, eventIds)) {
+    return { callLog, duplicate: true };
+  }
+
+  if (!callLog) {
+    // Create new call log if not exists (for backward compatibility)
+    callLog = await CallLog.create({
+      id: callId,
+      userId: user.id,
+      deviceId: deviceId || 'unknown',
+      status,
+      answered: answered || false,
+      notes: notes || '',
+      duration: duration !== undefined ? duration : null,
+      startTime: new Date(),
+      ...withAppliedEvents(null, eventIds)
+    });
+  } else {
+    // Update existing call log
+    await callLog.update({
+      status,
+      answered: answered !== undefined ? answered : callLog.answered,
+      notes: notes || callLog.notes,
+      duration: duration !== undefined ? duration : callLog.duration,
+      // Seconds from the call being placed to the callee picking up
+      responseTime: answeredAt
+        ? Math.max(0, Math.round((new Date(answeredAt) - new Date(callLog.startTime)) / 1000))
+        : callLog.responseTime,
+      endTime: TERMINAL_STATUSES.includes(status) ? new Date() : callLog.endTime,
+      ...withAppliedEvents(callLog, eventIds)
+    });
+  }
+
+  logger.info(`Call log status updated: ${callId} -> ${status} by device ${deviceId}`);
+  return { callLog, duplicate: false };
+};
+
+// Record a DTMF response on a call log. Resolves to { callLog, duplicate },
+// with a null callLog if the log does not exist.
+const applyDtmfResponse = async (user, callId, { dtmfResponse, deviceId, timestamp }, eventIds = []) => {
+  const callLog = await CallLog.findOne({
+    where: { 
+      id: callId,
+      userId: user.id 
+    }
+  });
+
+  if (!callLog) {
+    return { callLog: null, duplicate: false };
+  }
+  if (hasAppliedEvent(callLog, eventIds)) {
+    return { callLog, duplicate: true };
+  }
+
+  await callLog.update({
+    dtmfResponse,
+    dtmfTimestamp: timestamp ? new Date(timestamp) : new Date(),
+    answered: true, // If DTMF response received, call was answered
+    ...withAppliedEvents(callLog, eventIds)
+  });
+
+  logger.info(`DTMF response recorded: ${callId} -> ${dtmfResponse} by device ${deviceId}`);
+  return { callLog, duplicate: false };
+};
+
 // @route   POST /api/call-logs
 // @desc    Create new call log entry
 // @access  Private
 router.post('/', auth, [
   body('phoneNumber').trim().isLength({ min: 10, max: 15 }),
   body('deviceId').trim().isLength({ min: 1 }),
-  body('status').isIn(['initiated', 'ringing', 'answered', 'completed', 'failed', 'busy', 'no_answer']),
+  body('status').isIn(CALL_STATUSES),
   body('contactId').optional().isInt(),
   body('campaignId').optional().isInt(),
   body('audioFileId').optional().isInt()
@@ -208,10 +307,12 @@ module.exports = router;
 // @desc    Update call log status
 // @access  Private
 router.put('/:callId/status', auth, [
-  body('status').isIn(['initiated', 'ringing', 'answered', 'completed', 'failed', 'busy', 'no_answer']),
+  body('status').isIn(CALL_STATUSES),
   body('deviceId').optional().trim(),
   body('answered').optional().isBoolean(),
-  body('notes').optional().trim()
+  body('notes').optional().trim(),
+  body('duration').optional().isInt({ min: 0 }),
+  body('answeredAt').optional().isISO8601()
 ], async (req, res) => {
   try {
     const errors = validationResult(req);
@@ -223,39 +324,7 @@ router.put('/:callId/status', auth, [
       });
     }
 
-    const { callId } = req.params;
-    const { status, deviceId, answered, notes } = req.body;
-
-    // Find or create call log
-    let callLog = await CallLog.findOne({
-      where: { 
-        id: callId,
-        userId: req.user.id 
-      }
-    });
-
-    if (!callLog) {
-      // Create new call log if not exists (for backward compatibility)
-      callLog = await CallLog.create({
-        id: callId,
-        userId: req.user.id,
-        deviceId: deviceId || 'unknown',
-        status,
-        answered: answered || false,
-        notes: notes || '',
-        startTime: new Date()
-      });
-    } else {
-      // Update existing call log
-      await callLog.update({
-        status,
-        answered: answered !== undefined ? answered : callLog.answered,
-        notes: notes || callLog.notes,
-        endTime: ['completed', 'failed', 'no_answer'].includes(status) ? new Date() : callLog.endTime
-      });
-    }
-
-    logger.info(`Call log status updated: ${callId} -> ${status} by device ${deviceId}`);
+    const { callLog } = await applyCallStatus(req.user, req.params.callId, req.body);
 
     res.json({
       success: true,
@@ -290,15 +359,9 @@ router.put('/:callId/dtmf', auth, [
     }
 
     const { callId } = req.params;
-    const { dtmfResponse, deviceId, timestamp } = req.body;
+    const { dtmfResponse } = req.body;
 
-    // Find call log
-    let callLog = await CallLog.findOne({
-      where: { 
-        id: callId,
-        userId: req.user.id 
-      }
-    });
+    const { callLog } = await applyDtmfResponse(req.user, callId, req.body);
 
     if (!callLog) {
       return res.status(404).json({
@@ -307,15 +370,6 @@ router.put('/:callId/dtmf', auth, [
       });
     }
 
-    // Update DTMF response
-    await callLog.update({
-      dtmfResponse,
-      dtmfTimestamp: timestamp ? new Date(timestamp) : new Date(),
-      answered: true // If DTMF response received, call was answered
-    });
-
-    logger.info(`DTMF response recorded: ${callId} -> ${dtmfResponse} by device ${deviceId}`);
-
     res.json({
       success: true,
       message: 'DTMF response recorded successfully',
@@ -334,6 +388,83 @@ router.put('/:callId/dtmf', auth, [
   }
 });
 
+// @route   POST /api/call-logs/batch
+// @desc    Apply a batch of device call status and DTMF reports in order
+// @access  Private
+router.post('/batch', auth, [
+  body('events').isArray({ min: 1, max: 500 }),
+  body('events.*.type').isIn(['status', 'dtmf']),
+  body('events.*.callId').isLength({ min: 1 }),
+  body('events.*.eventId').optional().isString(),
+  body('events.*.eventIds').optional().isArray({ max: 100 }),
+  body('events.*.duration').optional().isInt({ min: 0 }),
+  body('events.*.answeredAt').optional().isISO8601()
+], async (req, res) => {
+  try {
+    const errors = validationResult(req);
+    if (!errors.isEmpty()) {
+      return res.status(400).json({
+        success: false,
+        message: 'Invalid input',
+        errors: errors.array()
+      });
+    }
+
+    // One result per event, in order. A failed event is `retryable` unless
+    // sending it again cannot help; later events of the same call are held
+    // back so the device resends them after it, in order
+    const results = [];
+    const heldCalls = new Set();
+    for (const event of req.body.events) {
+      const base = { callId: event.callId, type: event.type, eventId: event.eventId };
+      if (heldCalls.has(event.callId)) {
+        results.push({ ...base, success: false, retryable: true, message: 'Earlier event for this call failed' });
+        continue;
+      }
+
+      const eventIds = eventIdsOf(event);
+      try {
+        if (event.type === 'status') {
+          if (!CALL_STATUSES.includes(event.status)) {
+            results.push({ ...base, success: false, retryable: false, message: 'Invalid status' });
+            continue;
+          }
+          const { duplicate } = await applyCallStatus(req.user, event.callId, event, eventIds);
+          results.push({ ...base, success: true, ...(duplicate && { duplicate: true }) });
+        } else {
+          const { callLog, duplicate } = await applyDtmfResponse(req.user, event.callId, event, eventIds);
+          results.push({
+            ...base,
+            success: !!callLog,
+            ...(duplicate && { duplicate: true }),
+            ...(!callLog && { retryable: false, message: 'Call log not found' })
+          });
+        }
+      } catch (error) {
+        logger.error(`Batch event error for call ${event.callId}:`, error);
+        heldCalls.add(event.callId);
+        results.push({ ...base, success: false, retryable: true, message: 'Server error' });
+      }
+    }
+
+    logger.info(`Call report batch applied: ${req.body.events.length} events by ${req.user.email}`);
+
+    res.json({
+      success: true,
+      data: {
+        processed: results.length,
+        results
+      }
+    });
+  } catch (error) {
+    logger.error('Call report batch error:', error);
+    res.status(500).json({
+      success: false,
+      message: 'Server error'
+    });
+  }
+});
+
 // @route   GET /api/call-logs/:callId
 // @desc    Get single call log
 // @access  Private
@@ -415,12 +546,20 @@ router.delete('/:callId', auth, async (req, res) => {
 });
 
 // @route   POST /api/call-logs/:callId/ivr-navigation
-// @desc    Track IVR navigation path (for interactive IVR flows)
+// @desc    Track IVR navigation path (for interactive IVR flows): one step, or
+//          with `path` the whole walk of a call, as devices report it after the call
 // @access  Private
 router.post('/:callId/ivr-navigation', auth, [
-  body('nodeKey').trim().isLength({ min: 1 }),
-  body('dtmfPressed').optional().trim().isLength({ max: 1 }),
-  body('timestamp').optional().isISO8601()
+  body('nodeKey').if(body('path').not().exists()).trim().isLength({ min: 1 }),
+  body('dtmfPressed').optional({ nullable: true }).trim().isLength({ max: 1 }),
+  body('timestamp').optional().isISO8601(),
+  body('path').optional().isArray({ min: 1, max: 500 }),
+  body('path.*.nodeKey').isLength({ min: 1 }),
+  body('path.*.dtmfPressed').optional({ nullable: true }).isLength({ max: 1 }),
+  body('path.*.timestamp').optional().isISO8601(),
+  body('path.*.promptMs').optional().isInt({ min: 0 }),
+  body('flowId').optional().isInt(),
+  body('eventId').optional().isString()
 ], async (req, res) => {
   try {
     const errors = validationResult(req);
@@ -446,41 +585,65 @@ router.post('/:callId/ivr-navigation', auth, [
       });
     }
 
-    const { nodeKey, dtmfPressed, timestamp } = req.body;
+    const { flowId, eventId } = req.body;
+    const steps = req.body.path || [{
+      nodeKey: req.body.nodeKey,
+      dtmfPressed: req.body.dtmfPressed,
+      timestamp: req.body.timestamp
+    }];
+    const lastStep = steps[steps.length - 1];
+
+    // A device resends its path if the response was lost
+    const eventIds = eventId ? [String(eventId)] : [];
+    if (hasAppliedEvent(callLog, eventIds)) {
+      return res.json({
+        success: true,
+        message: 'IVR navigation already tracked',
+        data: { callId: req.params.callId, duplicate: true }
+      });
+    }
 
     // Add to IVR path
-    const ivrPath = callLog.ivrPath || [];
-    ivrPath.push({
-      nodeKey,
-      dtmfPressed: dtmfPressed || null,
-      timestamp: timestamp || new Date().toISOString()
-    });
-
-    // Add to DTMF responses if DTMF was pressed
-    const dtmfResponses = callLog.dtmfResponses || [];
-    if (dtmfPressed) {
-      dtmfResponses.push({
-        key: dtmfPressed,
-        nodeKey,
-        timestamp: timestamp || new Date().toISOString()
+    const ivrPath = [...(callLog.ivrPath || [])];
+    const dtmfResponses = [...(callLog.dtmfResponses || [])];
+    for (const step of steps) {
+      const stepTime = step.timestamp || new Date().toISOString();
+      ivrPath.push({
+        nodeKey: step.nodeKey,
+        dtmfPressed: step.dtmfPressed || null,
+        ...(step.event && { event: step.event }),
+        ...(Number.isFinite(step.promptMs) && { promptMs: step.promptMs }),
+        ...(step.bargeIn === true && { bargeIn: true }),
+        timestamp: stepTime
       });
+
+      // Add to DTMF responses if DTMF was pressed
+      if (step.dtmfPressed) {
+        dtmfResponses.push({
+          key: step.dtmfPressed,
+          nodeKey: step.nodeKey,
+          timestamp: stepTime
+        });
+      }
     }
 
     await callLog.update({
       ivrPath,
       dtmfResponses,
-      currentNodeKey: nodeKey
+      currentNodeKey: lastStep.nodeKey,
+      ...(flowId && { ivrFlowId: flowId }),
+      ...withAppliedEvents(callLog, eventIds)
     });
 
-    logger.info(`IVR navigation tracked: ${req.params.callId} -> ${nodeKey} (DTMF: ${dtmfPressed || 'none'})`);
+    logger.info(`IVR navigation tracked: ${req.params.callId} -> ${lastStep.nodeKey} (${steps.length} step(s))`);
 
     res.json({
       success: true,
       message: 'IVR navigation tracked successfully',
       data: {
         callId: req.params.callId,
-        nodeKey,
-        dtmfPressed,
+        nodeKey: lastStep.nodeKey,
+        dtmfPressed: lastStep.dtmfPressed || null,
         ivrPath
       }
     });
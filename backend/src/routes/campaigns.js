@@ -3,9 +3,17 @@ const { body, validationResult } = require('express-validator');
 const auth = require('../middleware/auth');
 const logger = require('../config/logger');
 const { Campaign, AudioFile } = require('../models');
+const { notifyDeviceCommands } = require('../sockets/socketHandler');
 
 const router = express.Router();
 
+// Values a call template's prompt can read out for a contact
+const contactVariables = (contact) => ({
+  ...(contact.customFields || {}),
+  name: contact.name,
+  phone: contact.phone
+});
+
 // @route   GET /api/campaigns
 // @desc    Get all campaigns for user
 // @access  Private
@@ -276,7 +284,26 @@ router.post('/:id/start', auth, async (req, res) => {
     }
 
     // Get all online devices for this user
-    const { Device, Contact, CallLog } = require('../models');
+    const { Device, Contact, CallLog, CallTemplate } = require('../models');
+
+    // A campaign with a call template has its message assembled on the device
+    // from the template's fragments, so no contact needs an audio file of their own
+    let prompt = null;
+    const templateId = campaign.settings && campaign.settings.templateId;
+    if (templateId) {
+      const template = await CallTemplate.findOne({
+        where: { id: templateId, createdBy: req.user.id, isActive: true }
+      });
+      const parts = template && template.settings && template.settings.prompt;
+      if (!Array.isArray(parts) || parts.length === 0) {
+        return res.status(400).json({
+          success: false,
+          message: 'Campaign template not found or has no prompt'
+        });
+      }
+      prompt = { parts, fragments: template.settings.fragments || {} };
+    }
+
     const onlineDevices = await Device.findAll({
       where: { 
         userId: req.user.id,
@@ -347,6 +374,7 @@ router.post('/:id/start', auth, async (req, res) => {
         phoneNumber: contact.phone,
         callId: `campaign_${campaign.id}_contact_${contact.id}_${Date.now()}_${index}`,
         audioFileId: campaign.audioFileId,
+        ...(prompt && { prompt: { ...prompt, variables: contactVariables(contact) } }),
         campaignId: campaign.id,
         contactId: contact.id,
         timestamp: new Date().toISOString(),
@@ -357,14 +385,10 @@ router.post('/:id/start', auth, async (req, res) => {
         retryDelay: 300000 // 5 minute delay between retries
       }));
 
-      // Clear existing commands for this campaign to prevent duplicates
-      const currentCommands = (device.pendingCommands || []).filter(cmd => 
-        !cmd.campaignId || cmd.campaignId.toString() !== campaign.id.toString()
-      );
-      
-      // Add new commands to device's pending queue
-      device.pendingCommands = [...currentCommands, ...commands];
-      await device.save();
+      // Replace existing commands for this campaign to prevent duplicates
+      await device.queueCommands(commands, { replaceCampaignId: campaign.id });
+
+      notifyDeviceCommands(req, device.deviceId, device.pendingCommands.length);
 
       distribution.push({
         deviceId: device.deviceId,
@@ -450,10 +474,7 @@ router.post('/:id/pause', auth, async (req, res) => {
     for (const device of devices) {
       if (device.pendingCommands && device.pendingCommands.length > 0) {
         // Remove commands for this campaign
-        device.pendingCommands = device.pendingCommands.filter(cmd => 
-          !cmd.campaignId || cmd.campaignId.toString() !== req.params.id
-        );
-        await device.save();
+        await device.clearCampaignCommands(req.params.id);
       }
     }
 
@@ -512,13 +533,8 @@ router.post('/:id/stop', auth, async (req, res) => {
     let clearedCommands = 0;
     for (const device of devices) {
       if (device.pendingCommands && device.pendingCommands.length > 0) {
-        const originalCount = device.pendingCommands.length;
         // Remove commands for this campaign
-        device.pendingCommands = device.pendingCommands.filter(cmd => 
-          !cmd.campaignId || cmd.campaignId.toString() !== req.params.id
-        );
-        clearedCommands += originalCount - device.pendingCommands.length;
-        await device.save();
+        clearedCommands += await device.clearCampaignCommands(req.params.id);
       }
     }
 
@@ -732,7 +748,7 @@ router.get('/:id/status', auth, async (req, res) => {
     const stats = {
       totalCalls: callLogs.length,
       inProgress: callLogs.filter(log => log.status === 'in_progress').length,
-      completed: callLogs.filter(log => ['completed', 'answered', 'no_answer'].includes(log.status)).length,
+      completed: callLogs.filter(log => ['completed', 'answered', 'busy', 'no_answer', 'machine'].includes(log.status)).length,
       failed: callLogs.filter(log => log.status === 'failed').length,
       answered: callLogs.filter(log => log.answered === true).length,
       dtmfResponses: callLogs.filter(log => log.dtmfResponse).length
@@ -761,7 +777,7 @@ router.get('/:id/status', auth, async (req, res) => {
       device.totalCalls++;
       
       if (log.status === 'in_progress') device.inProgress++;
-      else if (['completed', 'answered', 'no_answer'].includes(log.status)) device.completed++;
+      else if (['completed', 'answered', 'busy', 'no_answer', 'machine'].includes(log.status)) device.completed++;
       else if (log.status === 'failed') device.failed++;
       
       if (log.answered) device.answered++;
@@ -912,7 +928,7 @@ router.get('/live-calls', auth, async (req, res) => {
     const recentCompleted = await CallLog.findAll({
       where: {
         ...whereClause,
-        status: ['completed', 'answered', 'no_answer', 'failed'],
+        status: ['completed', 'answered', 'busy', 'no_answer', 'machine', 'failed'],
         updatedAt: {
           [require('sequelize').Op.gte]: new Date(Date.now() - 5 * 60 * 1000) // Last 5 minutes
         }
@@ -1001,7 +1017,7 @@ router.get('/live-calls', auth, async (req, res) => {
     const recentCompleted = await CallLog.findAll({
       where: {
         ...whereClause,
-        status: ['completed', 'answered', 'no_answer', 'failed'],
+        status: ['completed', 'answered', 'busy', 'no_answer', 'machine', 'failed'],
         updatedAt: {
           [require('sequelize').Op.gte]: new Date(Date.now() - 5 * 60 * 1000) // Last 5 minutes
         }
@@ -4,6 +4,7 @@ const auth = require('../middleware/auth');
 const logger = require('../config/logger');
 const crypto = require('crypto');
 const { Device } = require('../models');
+const { notifyDeviceCommands } = require('../sockets/socketHandler');
 
 const router = express.Router();
 
@@ -371,18 +372,107 @@ router.get('/:deviceId/commands', auth, async (req, res) => {
     device.lastSeen = new Date();
     await device.save();
 
-    // Check for pending call commands
-    const pendingCommands = device.pendingCommands || device.dataValues.pending_commands || [];
+    // Legacy single-command response: only remove the command actually sent
+    // so the rest of the queue survives for the next poll
+    const command = await device.takeCommand();
+
+    res.json(command || {});
+  } catch (error) {
+    logger.error('Get device commands error:', error);
+    res.status(500).json({
+      success: false,
+      message: 'Server error'
+    });
+  }
+});
+
+// @route   GET /api/devices/:deviceId/commands/pending
+// @desc    Get all pending commands for device (removed only once acknowledged)
+// @access  Private
+router.get('/:deviceId/commands/pending', auth, async (req, res) => {
+  try {
+    const device = await Device.findOne({
+      where: { 
+        deviceId: req.params.deviceId,
+        userId: req.user.id 
+      }
+    });
     
-    // Clear pending commands after sending
-    if (pendingCommands.length > 0) {
-      device.pendingCommands = [];
-      await device.save();
+    if (!device) {
+      return res.status(404).json({
+        success: false,
+        message: 'Device not found'
+      });
     }
 
-    res.json(pendingCommands.length > 0 ? pendingCommands[0] : {});
+    device.lastSeen = new Date();
+    await device.save();
+
+    // Older queued commands may predate commandId; fall back to callId
+    const commands = (device.pendingCommands || []).map(cmd => ({
+      ...cmd,
+      commandId: cmd.commandId || cmd.callId
+    }));
+
+    res.json({
+      success: true,
+      data: {
+        commands,
+        total: commands.length
+      }
+    });
   } catch (error) {
-    logger.error('Get device commands error:', error);
+    logger.error('Get pending device commands error:', error);
+    res.status(500).json({
+      success: false,
+      message: 'Server error'
+    });
+  }
+});
+
+// @route   POST /api/devices/:deviceId/commands/ack
+// @desc    Acknowledge commands the device has durably queued
+// @access  Private
+router.post('/:deviceId/commands/ack', auth, [
+  body('commandIds').isArray({ min: 1 })
+], async (req, res) => {
+  try {
+    const errors = validationResult(req);
+    if (!errors.isEmpty()) {
+      return res.status(400).json({
+        success: false,
+        message: 'Invalid input',
+        errors: errors.array()
+      });
+    }
+
+    const device = await Device.findOne({
+      where: { 
+        deviceId: req.params.deviceId,
+        userId: req.user.id 
+      }
+    });
+    
+    if (!device) {
+      return res.status(404).json({
+        success: false,
+        message: 'Device not found'
+      });
+    }
+
+    const acknowledged = await device.ackCommands(req.body.commandIds);
+
+    logger.info(`Device ${req.params.deviceId} acknowledged ${acknowledged} commands`);
+
+    res.json({
+      success: true,
+      data: {
+        acknowledged,
+        remaining: device.pendingCommands.length
+      }
+    });
+  } catch (error) {
+    logger.error('Ack device commands error:', error);
     res.status(500).json({
       success: false,
       message: 'Server error'
@@ -397,7 +487,8 @@ router.post('/:deviceId/send-command', auth, [
   body('action').isIn(['make_call', 'stop_call', 'test']),
   body('phoneNumber').optional().trim(),
   body('callId').optional().trim(),
-  body('audioFileId').optional().isInt()
+  body('audioFileId').optional().isInt(),
+  body('ivrFlowId').optional().isInt()
 ], async (req, res) => {
   try {
     const errors = validationResult(req);
@@ -423,20 +514,18 @@ router.post('/:deviceId/send-command', auth, [
       });
     }
 
-    const command = {
+    // Store command in device's pending commands
+    const [command] = await device.queueCommands([{
       action: req.body.action,
       phoneNumber: req.body.phoneNumber,
       callId: req.body.callId,
       audioFileId: req.body.audioFileId,
+      ivrFlowId: req.body.ivrFlowId,
       timestamp: new Date().toISOString(),
       deviceId: req.params.deviceId
-    };
+    }]);
 
-    // Store command in device's pending commands
-    const pendingCommands = device.pendingCommands || [];
-    pendingCommands.push(command);
-    device.pendingCommands = pendingCommands;
-    await device.save();
+    notifyDeviceCommands(req, req.params.deviceId, device.pendingCommands.length);
 
     logger.info(`Command sent to device ${req.params.deviceId}: ${req.body.action}`);
 
@@ -129,7 +129,13 @@ router.post('/', auth, [
   body('audioFileId').optional().isInt(),
   body('script').optional().trim().isLength({ max: 2000 }),
   body('dtmfOptions').optional().isObject(),
-  body('settings').optional().isObject()
+  body('settings').optional().isObject(),
+  // Personalised message the device assembles from recorded fragments
+  body('settings.prompt').optional().isArray({ min: 1, max: 50 }),
+  body('settings.prompt.*.type').optional().isIn(['audio', 'variable', 'number', 'digits', 'date']),
+  body('settings.prompt.*.audioFileId').optional().isInt(),
+  body('settings.prompt.*.variable').optional().isString(),
+  body('settings.fragments').optional().isObject()
 ], async (req, res) => {
   try {
     const errors = validationResult(req);
@@ -202,7 +208,13 @@ router.put('/:id', auth, [
   body('audioFileId').optional().isInt(),
   body('script').optional().trim().isLength({ max: 2000 }),
   body('dtmfOptions').optional().isObject(),
-  body('settings').optional().isObject()
+  body('settings').optional().isObject(),
+  // Personalised message the device assembles from recorded fragments
+  body('settings.prompt').optional().isArray({ min: 1, max: 50 }),
+  body('settings.prompt.*.type').optional().isIn(['audio', 'variable', 'number', 'digits', 'date']),
+  body('settings.prompt.*.audioFileId').optional().isInt(),
+  body('settings.prompt.*.variable').optional().isString(),
+  body('settings.fragments').optional().isObject()
 ], async (req, res) => {
   try {
     const errors = validationResult(req);
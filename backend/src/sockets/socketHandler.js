@@ -1,5 +1,33 @@
+const jwt = require('jsonwebtoken');
+const { User, Device } = require('../models');
 const logger = require('../config/logger');
 
+// Resolve the account a socket's JWT belongs to; throws if it is missing,
+// invalid or the account is not active
+const verifySocketUser = async (token) => {
+  if (!token || !process.env.JWT_SECRET) {
+    throw new Error('Access token required');
+  }
+
+  const decoded = jwt.verify(token, process.env.JWT_SECRET);
+  const user = await User.findByPk(decoded.userId);
+  if (!user || user.status !== 'active') {
+    throw new Error('Invalid token - user not found or inactive');
+  }
+  return user;
+};
+
+// Only the caller's own devices may be addressed
+const ownedDeviceIds = async (userId, deviceIds) => {
+  if (!Array.isArray(deviceIds) || deviceIds.length === 0) return [];
+
+  const devices = await Device.findAll({
+    where: { userId, deviceId: deviceIds.map(String) },
+    attributes: ['deviceId']
+  });
+  return devices.map(device => device.deviceId);
+};
+
 module.exports = (io) => {
   // Store connected users and devices
   const connectedUsers = new Map();
@@ -9,24 +37,38 @@ module.exports = (io) => {
     logger.info(`Socket connected: ${socket.id}`);
 
     // Handle user authentication
-    socket.on('authenticate', (data) => {
+    socket.on('authenticate', async (data) => {
       try {
-        const { userId, userType = 'web', deviceId } = data;
-        
+        const { userType = 'web', deviceId, token } = data || {};
+
+        // Every client presents the same JWT as its REST calls; the account
+        // comes from the token, never from the payload
+        const user = await verifySocketUser(token);
+        const userId = user.id;
+
         if (userType === 'web') {
           // Web client authentication
           connectedUsers.set(socket.id, { userId, socketId: socket.id });
           socket.join(`user:${userId}`);
           logger.info(`Web user authenticated: ${userId}`);
         } else if (userType === 'device') {
+          // The device room carries call command notifications, so it is
+          // only joined for a device registered to this account
+          const device = await Device.findOne({ where: { deviceId: String(deviceId), userId } });
+          if (!device) {
+            throw new Error('Device not registered to this user');
+          }
+
           // Android device authentication
-          connectedDevices.set(socket.id, { userId, deviceId, socketId: socket.id });
+          connectedDevices.set(socket.id, { userId, deviceId, socketId: socket.id, lastSeen: new Date() });
           socket.join(`device:${deviceId}`);
           socket.join(`user:${userId}`);
           logger.info(`Device authenticated: ${deviceId} for user ${userId}`);
           
           // Notify web clients about device connection
           socket.to(`user:${userId}`).emit('device:connected', { deviceId });
+        } else {
+          throw new Error(`Unknown client type ${userType}`);
         }
 
         socket.emit('authenticated', { success: true });
@@ -37,9 +79,16 @@ module.exports = (io) => {
     });
 
     // Handle campaign events
-    socket.on('campaign:start', (data) => {
+    socket.on('campaign:start', async (data) => {
       try {
-        const { campaignId, deviceIds = [] } = data;
+        const user = connectedUsers.get(socket.id);
+        if (!user) {
+          socket.emit('error', { message: 'Not authenticated' });
+          return;
+        }
+
+        const { campaignId } = data || {};
+        const deviceIds = await ownedDeviceIds(user.userId, (data || {}).deviceIds);
         
         // Notify selected devices to start campaign
         deviceIds.forEach(deviceId => {
@@ -50,7 +99,6 @@ module.exports = (io) => {
         });
 
         // Notify web clients
-        const user = connectedUsers.get(socket.id);
         if (user) {
           socket.to(`user:${user.userId}`).emit('campaign:started', {
             campaignId,
@@ -66,9 +114,16 @@ module.exports = (io) => {
       }
     });
 
-    socket.on('campaign:pause', (data) => {
+    socket.on('campaign:pause', async (data) => {
       try {
-        const { campaignId, deviceIds = [] } = data;
+        const user = connectedUsers.get(socket.id);
+        if (!user) {
+          socket.emit('error', { message: 'Not authenticated' });
+          return;
+        }
+
+        const { campaignId } = data || {};
+        const deviceIds = await ownedDeviceIds(user.userId, (data || {}).deviceIds);
         
         deviceIds.forEach(deviceId => {
           socket.to(`device:${deviceId}`).emit('campaign:pause', {
@@ -77,7 +132,6 @@ module.exports = (io) => {
           });
         });
 
-        const user = connectedUsers.get(socket.id);
         if (user) {
           socket.to(`user:${user.userId}`).emit('campaign:paused', {
             campaignId,
@@ -93,9 +147,16 @@ module.exports = (io) => {
       }
     });
 
-    socket.on('campaign:stop', (data) => {
+    socket.on('campaign:stop', async (data) => {
       try {
-        const { campaignId, deviceIds = [] } = data;
+        const user = connectedUsers.get(socket.id);
+        if (!user) {
+          socket.emit('error', { message: 'Not authenticated' });
+          return;
+        }
+
+        const { campaignId } = data || {};
+        const deviceIds = await ownedDeviceIds(user.userId, (data || {}).deviceIds);
         
         deviceIds.forEach(deviceId => {
           socket.to(`device:${deviceId}`).emit('campaign:stop', {
@@ -104,7 +165,6 @@ module.exports = (io) => {
           });
         });
 
-        const user = connectedUsers.get(socket.id);
         if (user) {
           socket.to(`user:${user.userId}`).emit('campaign:stopped', {
             campaignId,
@@ -234,9 +294,17 @@ module.exports = (io) => {
     // Handle real-time notifications
     socket.on('notification:send', (data) => {
       try {
-        const { userId, message, type = 'info' } = data;
+        // Only to the sender's own account, never to a user named in the payload
+        const sender = connectedUsers.get(socket.id) || connectedDevices.get(socket.id);
+        if (!sender) {
+          socket.emit('error', { message: 'Not authenticated' });
+          return;
+        }
+
+        const { userId } = sender;
+        const { message, type = 'info' } = data || {};
         
-        // Send notification to specific user
+        // Send notification to the sender's other clients
         socket.to(`user:${userId}`).emit('notification:received', {
           message,
           type,
@@ -344,4 +412,13 @@ module.exports = (io) => {
   }, 60000); // Run every minute
 
   logger.info('Socket.IO handlers initialized');
-};
\ No newline at end of file
+};
+
+// Wake a device's push channel so it fetches new commands immediately
+// instead of waiting for its next fallback poll
+module.exports.notifyDeviceCommands = (req, deviceId, count) => {
+  const io = req.app.get('io');
+  if (io) {
+    io.to(`device:${deviceId}`).emit('commands:pending', { deviceId, count });
+  }
+};